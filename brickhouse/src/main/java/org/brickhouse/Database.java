@@ -44,6 +44,22 @@ public interface Database extends Closeable {
      */
     SqlTable getTable(String name, boolean create, boolean setDis, boolean stats);
 
+    /**
+     * As getTable(String, boolean, boolean, boolean), but specifying how the table's rows are stored. The format is
+     * used when the table is created. An existing table must already be in the given format; see migrateTable.
+     * getTable methods without a format use that of an existing table, and create new tables as JSON.
+     */
+    SqlTable getTable(String name, boolean create, boolean setDis, boolean stats, StorageFormat format);
+
+    /**
+     * Rewrites the given table in the given storage format, by copying its rows to a new table and then swapping the
+     * new table in. Writes to the table while it is being migrated may be lost. The migrated table is not compressed;
+     * see SqlTable.enableCompression.
+     * 
+     * @return the number of rows migrated
+     */
+    int migrateTable(String name, StorageFormat format);
+
     Connection getConnection() throws SQLException;
 
     JdbcTemplate getJdbcTemplate();
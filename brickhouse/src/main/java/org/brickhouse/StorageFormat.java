@@ -0,0 +1,33 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse;
+
+/**
+ * How the rows of a database table are stored.
+ */
+public enum StorageFormat {
+    /**
+     * JSON text in a "json" column.
+     */
+    JSON("json"),
+
+    /**
+     * The versioned binary encoding of org.brickhouse.binary in a "data" column.
+     */
+    BINARY("data");
+
+    private final String column;
+
+    private StorageFormat(String column) {
+        this.column = column;
+    }
+
+    public String getColumn() {
+        return column;
+    }
+}
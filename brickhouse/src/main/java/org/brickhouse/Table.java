@@ -48,12 +48,35 @@ public interface Table extends Closeable {
 
     int updateById(HMap map);
 
+    int batchUpdate(List<HMap> records);
+
+    /**
+     * Merges the diff into the row with the given id as HMap.merge does, so that tags with HRemove values are removed
+     * and the others are set. Unlike updateById, the rest of the row is left as it is, even if it is being changed at
+     * the same time.
+     * 
+     * @return the number of rows that were changed, which is 0 if the id does not exist
+     */
+    int applyDiff(HReference id, HMap diff);
+
+    void upsert(HMap record);
+
+    void batchUpsert(List<HMap> records);
+
     int deleteById(String id);
 
     int deleteById(HReference id);
 
     int deleteAll(Filter filter);
 
+    /**
+     * Runs the given work, and then commits the writes that it made to the transaction all at once. Nothing is
+     * written if the work throws an exception.
+     * 
+     * @return the number of rows that were written
+     */
+    int transaction(Consumer<TableTx> work);
+
     boolean include(HMap map, Filter filter);
 
     void addListener(TableListener listener);
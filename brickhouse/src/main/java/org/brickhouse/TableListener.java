@@ -10,8 +10,14 @@ package org.brickhouse;
 import java.util.List;
 
 import org.brickhouse.datatype.HMap;
+import org.brickhouse.datatype.HReference;
 import org.brickhouse.filter.Filter;
 
+/**
+ * Every change to a table is reported through exactly one of these methods, so a listener that keeps a cache or an
+ * index must implement all of them. Methods are added here as tables gain operations; a listener that only cares
+ * about some of them should extend TableListenerAdapter.
+ */
 public interface TableListener {
     void insert(HMap record);
 
@@ -19,6 +25,17 @@ public interface TableListener {
 
     void update(HMap map, int count);
 
+    void batchUpdate(List<HMap> records, int count);
+
+    /**
+     * Only the diff is given, since the table may not have read the changed row.
+     */
+    void applyDiff(HReference id, HMap diff, int count);
+
+    void upsert(HMap record);
+
+    void batchUpsert(List<HMap> records);
+
     void deleteById(String id, int count);
 
     void deleteAll(Filter filter, int count);
@@ -10,6 +10,7 @@ package org.brickhouse;
 import java.util.List;
 
 import org.brickhouse.datatype.HMap;
+import org.brickhouse.datatype.HReference;
 import org.brickhouse.filter.Filter;
 
 public class TableListenerAdapter implements TableListener {
@@ -28,6 +29,26 @@ public class TableListenerAdapter implements TableListener {
         // no op
     }
 
+    @Override
+    public void batchUpdate(List<HMap> records, int count) {
+        // no op
+    }
+
+    @Override
+    public void applyDiff(HReference id, HMap diff, int count) {
+        // no op
+    }
+
+    @Override
+    public void upsert(HMap record) {
+        // no op
+    }
+
+    @Override
+    public void batchUpsert(List<HMap> records) {
+        // no op
+    }
+
     @Override
     public void deleteById(String id, int count) {
         // no op
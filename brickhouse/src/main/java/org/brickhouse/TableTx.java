@@ -0,0 +1,74 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.brickhouse.datatype.HMap;
+import org.brickhouse.datatype.HReference;
+
+/**
+ * The writes of a transaction, as given to Table.transaction. Writes are recorded in order and applied together when
+ * the transaction commits, so they are not visible to reads until then.
+ */
+public class TableTx {
+    public enum OpType {
+        INSERT, UPDATE, UPSERT, DELETE
+    }
+
+    public static class Op {
+        public final OpType type;
+        public final String id;
+        public final HMap row; // null for deletes
+
+        Op(OpType type, String id, HMap row) {
+            this.type = type;
+            this.id = id;
+            this.row = row;
+        }
+    }
+
+    private final List<Op> ops = new ArrayList<>();
+
+    public TableTx insert(HMap record) {
+        return add(OpType.INSERT, record);
+    }
+
+    public TableTx update(HMap map) {
+        return add(OpType.UPDATE, map);
+    }
+
+    public TableTx upsert(HMap record) {
+        return add(OpType.UPSERT, record);
+    }
+
+    public TableTx delete(String id) {
+        if (id == null)
+            throw new RuntimeException("id is required");
+        ops.add(new Op(OpType.DELETE, id, null));
+        return this;
+    }
+
+    public TableTx delete(HReference id) {
+        return delete(id.getId());
+    }
+
+    public List<Op> getOps() {
+        return Collections.unmodifiableList(ops);
+    }
+
+    private TableTx add(OpType type, HMap map) {
+        HReference id = map.id();
+        if (id == null)
+            throw new RuntimeException("id is required");
+        ops.add(new Op(type, id.getId(), map));
+        return this;
+    }
+}
@@ -0,0 +1,415 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.binary;
+
+import java.nio.charset.StandardCharsets;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+import org.brickhouse.ParseException;
+import org.brickhouse.datatype.HBinary;
+import org.brickhouse.datatype.HBoolean;
+import org.brickhouse.datatype.HCoordinates;
+import org.brickhouse.datatype.HDate;
+import org.brickhouse.datatype.HDateTime;
+import org.brickhouse.datatype.HList;
+import org.brickhouse.datatype.HMap;
+import org.brickhouse.datatype.HMarker;
+import org.brickhouse.datatype.HNA;
+import org.brickhouse.datatype.HNumber;
+import org.brickhouse.datatype.HReference;
+import org.brickhouse.datatype.HRemove;
+import org.brickhouse.datatype.HString;
+import org.brickhouse.datatype.HTime;
+import org.brickhouse.datatype.HTimeZone;
+import org.brickhouse.datatype.HUri;
+import org.brickhouse.datatype.HValue;
+import org.brickhouse.datatype.LazyHMap;
+
+/**
+ * Reads values in the binary record encoding described in BinaryFormat.
+ *
+ * Decoders are not thread safe. The static decode method keeps one decoder per thread.
+ */
+public class BinaryDecoder {
+    private static final ThreadLocal<BinaryDecoder> DECODERS = new ThreadLocal<BinaryDecoder>() {
+        @Override
+        protected BinaryDecoder initialValue() {
+            return new BinaryDecoder();
+        }
+    };
+
+    private static final int NAME_CACHE_SIZE = 256;
+
+    public static HMap decode(byte[] record) {
+        BinaryDecoder decoder = DECODERS.get();
+        decoder.reset(record, 0, record.length);
+        try {
+            return decoder.readRecord();
+        }
+        finally {
+            decoder.reset(null, 0, 0);
+        }
+    }
+
+    /**
+     * Indexes the top level tags of a record without decoding their values. See LazyHMap.
+     */
+    public static LazyHMap decodeLazy(byte[] record) {
+        BinaryDecoder decoder = DECODERS.get();
+        decoder.reset(record, 0, record.length);
+        try {
+            int version = decoder.readByte();
+            if (version != BinaryFormat.VERSION)
+                throw new ParseException("Unsupported binary record version " + version);
+
+            LazyBinaryHMap map = new LazyBinaryHMap(record);
+            int count = decoder.readVarint();
+            for (int i = 0; i < count; i++) {
+                String name = decoder.readName();
+                map.index(name, decoder.pos);
+                decoder.skipValue();
+            }
+            if (decoder.pos != decoder.end)
+                throw new ParseException("Unexpected content after record at position " + decoder.pos);
+            return map;
+        }
+        finally {
+            decoder.reset(null, 0, 0);
+        }
+    }
+
+    private static class LazyBinaryHMap extends LazyHMap {
+        private final byte[] record;
+
+        LazyBinaryHMap(byte[] record) {
+            this.record = record;
+        }
+
+        void index(String name, int offset) {
+            addTag(name, offset);
+        }
+
+        @Override
+        protected HValue decodeValue(int offset) {
+            BinaryDecoder decoder = DECODERS.get();
+            decoder.reset(record, offset, record.length - offset);
+            try {
+                return decoder.readValue();
+            }
+            finally {
+                decoder.reset(null, 0, 0);
+            }
+        }
+    }
+
+    private final String[] nameCache = new String[NAME_CACHE_SIZE];
+
+    private GregorianCalendar utc;
+
+    private byte[] buf;
+    private int pos;
+    private int end;
+
+    public void reset(byte[] buf, int offset, int length) {
+        this.buf = buf;
+        this.pos = offset;
+        this.end = offset + length;
+    }
+
+    public int position() {
+        return pos;
+    }
+
+    public HMap readRecord() {
+        int version = readByte();
+        if (version != BinaryFormat.VERSION)
+            throw new ParseException("Unsupported binary record version " + version);
+        HMap map = readMapBody();
+        if (pos != end)
+            throw new ParseException("Unexpected content after record at position " + pos);
+        return map;
+    }
+
+    public HMap readMapBody() {
+        int count = readVarint();
+        HMap map = new HMap();
+        for (int i = 0; i < count; i++) {
+            String name = readName();
+            map.put(name, readValue());
+        }
+        return map;
+    }
+
+    public HValue readValue() {
+        int type = readByte();
+        switch (type) {
+        case BinaryFormat.NULL:
+            return null;
+        case BinaryFormat.MARKER:
+            return HMarker.VALUE;
+        case BinaryFormat.REMOVE:
+            return HRemove.VALUE;
+        case BinaryFormat.NA:
+            return HNA.VALUE;
+        case BinaryFormat.TRUE:
+            return HBoolean.TRUE;
+        case BinaryFormat.FALSE:
+            return HBoolean.FALSE;
+        case BinaryFormat.NUMBER:
+            return new HNumber(readDouble());
+        case BinaryFormat.NUMBER_UNIT:
+            double d = readDouble();
+            return new HNumber(d, readString());
+        case BinaryFormat.STRING:
+            return new HString(readString());
+        case BinaryFormat.REF:
+            return new HReference(readString());
+        case BinaryFormat.REF_DIS:
+            String id = readString();
+            return new HReference(id, readString());
+        case BinaryFormat.URI:
+            return new HUri(readString());
+        case BinaryFormat.BINARY:
+            return new HBinary(readString());
+        case BinaryFormat.DATE:
+            return readDate();
+        case BinaryFormat.TIME:
+            return readTime();
+        case BinaryFormat.DATE_TIME:
+            HDate date = readDate();
+            HTime time = readTime();
+            HTimeZone tz = HTimeZone.forName(readString());
+            return new HDateTime(date, time, tz, readZigzag());
+        case BinaryFormat.DATE_TIME_MILLIS:
+            return readDateTimeMillis();
+        case BinaryFormat.COORDINATES:
+            double lat = readDouble();
+            return new HCoordinates(lat, readDouble());
+        case BinaryFormat.LIST:
+            int size = readVarint();
+            HList list = new HList();
+            for (int i = 0; i < size; i++)
+                list.add(readValue());
+            return list;
+        case BinaryFormat.MAP:
+            return readMapBody();
+        }
+        throw new ParseException("Unknown value type " + type + " at position " + (pos - 1));
+    }
+
+    /**
+     * Moves past a value without creating it.
+     */
+    public void skipValue() {
+        int type = readByte();
+        switch (type) {
+        case BinaryFormat.NULL:
+        case BinaryFormat.MARKER:
+        case BinaryFormat.REMOVE:
+        case BinaryFormat.NA:
+        case BinaryFormat.TRUE:
+        case BinaryFormat.FALSE:
+            return;
+        case BinaryFormat.NUMBER:
+            skip(8);
+            return;
+        case BinaryFormat.NUMBER_UNIT:
+            skip(8);
+            skipString();
+            return;
+        case BinaryFormat.STRING:
+        case BinaryFormat.REF:
+        case BinaryFormat.URI:
+        case BinaryFormat.BINARY:
+            skipString();
+            return;
+        case BinaryFormat.REF_DIS:
+            skipString();
+            skipString();
+            return;
+        case BinaryFormat.DATE:
+            skipDate();
+            return;
+        case BinaryFormat.TIME:
+            skipTime();
+            return;
+        case BinaryFormat.DATE_TIME:
+            skipDate();
+            skipTime();
+            skipString();
+            readVarint();
+            return;
+        case BinaryFormat.DATE_TIME_MILLIS:
+            readVarlong();
+            skipString();
+            readVarint();
+            return;
+        case BinaryFormat.COORDINATES:
+            skip(16);
+            return;
+        case BinaryFormat.LIST:
+            int size = readVarint();
+            for (int i = 0; i < size; i++)
+                skipValue();
+            return;
+        case BinaryFormat.MAP:
+            int count = readVarint();
+            for (int i = 0; i < count; i++) {
+                int code = readVarint();
+                if ((code & 1) == 0)
+                    skip(code >>> 1);
+                skipValue();
+            }
+            return;
+        }
+        throw new ParseException("Unknown value type " + type + " at position " + (pos - 1));
+    }
+
+    private void skipDate() {
+        readVarint();
+        skip(2);
+    }
+
+    private void skipTime() {
+        skip(3);
+        readVarint();
+    }
+
+    private void skipString() {
+        skip(readVarint());
+    }
+
+    private void skip(int len) {
+        check(len);
+        pos += len;
+    }
+
+    private String readName() {
+        int code = readVarint();
+        if ((code & 1) == 1) {
+            int index = code >>> 1;
+            if (index >= BinaryFormat.DICTIONARY.length)
+                throw new ParseException("Unknown dictionary entry " + index);
+            return BinaryFormat.DICTIONARY[index];
+        }
+
+        // Names that are not in the dictionary still repeat from row to row, so reuse the String instances.
+        int len = code >>> 1;
+        check(len);
+        int hash = 0;
+        for (int i = pos; i < pos + len; i++)
+            hash = 31 * hash + buf[i];
+        int slot = (hash ^ (hash >>> 16)) & (NAME_CACHE_SIZE - 1);
+
+        String name = nameCache[slot];
+        if (name == null || !asciiEquals(name, len)) {
+            name = new String(buf, pos, len, StandardCharsets.UTF_8);
+            nameCache[slot] = name;
+        }
+        pos += len;
+        return name;
+    }
+
+    private boolean asciiEquals(String s, int len) {
+        if (s.length() != len)
+            return false;
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80 || buf[pos + i] != c)
+                return false;
+        }
+        return true;
+    }
+
+    private HDate readDate() {
+        int year = readZigzag();
+        int month = readByte();
+        return new HDate(year, month, readByte());
+    }
+
+    private HTime readTime() {
+        int hour = readByte();
+        int minute = readByte();
+        int second = readByte();
+        return new HTime(hour, minute, second, readVarint());
+    }
+
+    private HDateTime readDateTimeMillis() {
+        long millis = readZigzagLong();
+        HTimeZone tz = HTimeZone.forName(readString());
+        int tzOffset = readZigzag();
+
+        // The fields are those of the UTC time at the offset.
+        if (utc == null)
+            utc = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+        utc.setTimeInMillis(millis + tzOffset * 1000L);
+        return new HDateTime(new HDate(utc), new HTime(utc), tz, tzOffset);
+    }
+
+    //
+    // Primitives
+    //
+    public String readString() {
+        int len = readVarint();
+        check(len);
+        String s = new String(buf, pos, len, StandardCharsets.UTF_8);
+        pos += len;
+        return s;
+    }
+
+    public double readDouble() {
+        check(8);
+        long bits = 0;
+        for (int i = 0; i < 8; i++)
+            bits = bits << 8 | buf[pos++] & 0xff;
+        return Double.longBitsToDouble(bits);
+    }
+
+    public int readZigzag() {
+        int i = readVarint();
+        return i >>> 1 ^ -(i & 1);
+    }
+
+    public long readZigzagLong() {
+        long l = readVarlong();
+        return l >>> 1 ^ -(l & 1);
+    }
+
+    public long readVarlong() {
+        long result = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            int b = readByte();
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return result;
+        }
+        throw new ParseException("Malformed varint at position " + pos);
+    }
+
+    public int readVarint() {
+        int result = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = readByte();
+            result |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return result;
+        }
+        throw new ParseException("Malformed varint at position " + pos);
+    }
+
+    public int readByte() {
+        check(1);
+        return buf[pos++] & 0xff;
+    }
+
+    private void check(int len) {
+        if (len < 0 || pos + len > end)
+            throw new ParseException("Unexpected end of record at position " + pos);
+    }
+}
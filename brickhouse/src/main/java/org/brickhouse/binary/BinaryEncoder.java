@@ -0,0 +1,341 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.binary;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.apache.commons.lang3.StringUtils;
+import org.brickhouse.datatype.HBinary;
+import org.brickhouse.datatype.HBoolean;
+import org.brickhouse.datatype.HCoordinates;
+import org.brickhouse.datatype.HDate;
+import org.brickhouse.datatype.HDateTime;
+import org.brickhouse.datatype.HList;
+import org.brickhouse.datatype.HMap;
+import org.brickhouse.datatype.HMarker;
+import org.brickhouse.datatype.HNA;
+import org.brickhouse.datatype.HNumber;
+import org.brickhouse.datatype.HReference;
+import org.brickhouse.datatype.HRemove;
+import org.brickhouse.datatype.HString;
+import org.brickhouse.datatype.HTime;
+import org.brickhouse.datatype.HUri;
+import org.brickhouse.datatype.HValue;
+
+/**
+ * Writes values in the binary record encoding described in BinaryFormat into a growable buffer.
+ *
+ * Encoders are not thread safe. The static encode methods keep one encoder per thread.
+ */
+public class BinaryEncoder {
+    private static final ThreadLocal<BinaryEncoder> ENCODERS = new ThreadLocal<BinaryEncoder>() {
+        @Override
+        protected BinaryEncoder initialValue() {
+            return new BinaryEncoder();
+        }
+    };
+
+    private static final int MAX_RETAINED_SIZE = 64 * 1024;
+
+    /**
+     * Encodes a record as stored in the database, i.e. with the dis of references omitted.
+     */
+    public static byte[] encode(HMap map) {
+        BinaryEncoder encoder = ENCODERS.get();
+        encoder.reset(true);
+        encoder.writeRecord(map);
+        byte[] result = encoder.toByteArray();
+        encoder.release();
+        return result;
+    }
+
+    private byte[] buf = new byte[1024];
+    private int size;
+    private boolean db;
+
+    /**
+     * @param db
+     *            whether to omit the dis of references, as the storage format does.
+     */
+    public BinaryEncoder(boolean db) {
+        this.db = db;
+    }
+
+    private BinaryEncoder() {
+        this(true);
+    }
+
+    public void reset() {
+        size = 0;
+    }
+
+    private void reset(boolean db) {
+        this.db = db;
+        size = 0;
+    }
+
+    private void release() {
+        size = 0;
+        if (buf.length > MAX_RETAINED_SIZE)
+            buf = new byte[1024];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buf, size);
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buf, 0, size);
+    }
+
+    /**
+     * Writes the version byte followed by the map.
+     */
+    public void writeRecord(HMap map) {
+        writeByte(BinaryFormat.VERSION);
+        writeMapBody(map);
+    }
+
+    public void writeMapBody(HMap map) {
+        writeVarint(map.size());
+        map.forEach((key, value) -> {
+            writeName(key);
+            writeValue(value);
+        });
+    }
+
+    public void writeValue(HValue value) {
+        if (value == null)
+            writeByte(BinaryFormat.NULL);
+        else if (value instanceof HString) {
+            writeByte(BinaryFormat.STRING);
+            writeString(((HString) value).getValue());
+        }
+        else if (value instanceof HMarker)
+            writeByte(BinaryFormat.MARKER);
+        else if (value instanceof HNumber) {
+            HNumber n = (HNumber) value;
+            if (StringUtils.isEmpty(n.getUnit())) {
+                writeByte(BinaryFormat.NUMBER);
+                writeDouble(n.getValue());
+            }
+            else {
+                writeByte(BinaryFormat.NUMBER_UNIT);
+                writeDouble(n.getValue());
+                writeString(n.getUnit());
+            }
+        }
+        else if (value instanceof HReference) {
+            HReference r = (HReference) value;
+            if (db || StringUtils.isEmpty(r.getDis())) {
+                writeByte(BinaryFormat.REF);
+                writeString(r.getId());
+            }
+            else {
+                writeByte(BinaryFormat.REF_DIS);
+                writeString(r.getId());
+                writeString(r.getDis());
+            }
+        }
+        else if (value instanceof HMap) {
+            writeByte(BinaryFormat.MAP);
+            writeMapBody((HMap) value);
+        }
+        else if (value instanceof HBoolean)
+            writeByte(((HBoolean) value).isValue() ? BinaryFormat.TRUE : BinaryFormat.FALSE);
+        else if (value instanceof HDateTime) {
+            HDateTime dt = (HDateTime) value;
+            writeByte(BinaryFormat.DATE_TIME);
+            writeDate(dt.getDate());
+            writeTime(dt.getTime());
+            writeString(dt.getTz().name);
+            writeZigzag(dt.getTzOffset());
+        }
+        else if (value instanceof HDate) {
+            writeByte(BinaryFormat.DATE);
+            writeDate((HDate) value);
+        }
+        else if (value instanceof HTime) {
+            writeByte(BinaryFormat.TIME);
+            writeTime((HTime) value);
+        }
+        else if (value instanceof HList) {
+            HList list = (HList) value;
+            writeByte(BinaryFormat.LIST);
+            writeVarint(list.size());
+            for (HValue hv : list.getList())
+                writeValue(hv);
+        }
+        else if (value instanceof HUri) {
+            writeByte(BinaryFormat.URI);
+            writeString(((HUri) value).getValue());
+        }
+        else if (value instanceof HBinary) {
+            writeByte(BinaryFormat.BINARY);
+            writeString(((HBinary) value).getMime());
+        }
+        else if (value instanceof HCoordinates) {
+            HCoordinates c = (HCoordinates) value;
+            writeByte(BinaryFormat.COORDINATES);
+            writeDouble(c.getLat());
+            writeDouble(c.getLng());
+        }
+        else if (value instanceof HRemove)
+            writeByte(BinaryFormat.REMOVE);
+        else if (value instanceof HNA)
+            writeByte(BinaryFormat.NA);
+        else
+            throw new RuntimeException("Unsupported value type: " + value.getClass());
+    }
+
+    /**
+     * Writes a date time as DATE_TIME_MILLIS.
+     */
+    public void writeDateTimeMillis(HDateTime dt) {
+        writeByte(BinaryFormat.DATE_TIME_MILLIS);
+        writeZigzagLong(dt.getMillis());
+        writeString(dt.getTz().name);
+        writeZigzag(dt.getTzOffset());
+    }
+
+    private void writeName(String name) {
+        Integer index = BinaryFormat.DICTIONARY_INDEX.get(name);
+        if (index != null)
+            writeVarint(index << 1 | 1);
+        else
+            writeUtf8(name, true);
+    }
+
+    private void writeDate(HDate date) {
+        writeZigzag(date.getYear());
+        writeByte(date.getMonth());
+        writeByte(date.getDay());
+    }
+
+    private void writeTime(HTime time) {
+        writeByte(time.getHour());
+        writeByte(time.getMinute());
+        writeByte(time.getSecond());
+        writeVarint(time.getMs());
+    }
+
+    //
+    // Primitives
+    //
+    public void writeString(String s) {
+        writeUtf8(s, false);
+    }
+
+    /**
+     * Writes the varint length (shifted left one if this is a name) and the UTF-8 bytes. Most strings are ASCII, so
+     * assume that the length in bytes is the length in chars and only go back and fix things up when it isn't.
+     */
+    private void writeUtf8(String s, boolean name) {
+        int len = s.length();
+        int lengthPos = size;
+        int lengthSize = varintSize(name ? len << 1 : len);
+        ensure(lengthSize + len * 3);
+        size += lengthSize;
+
+        int start = size;
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80)
+                buf[size++] = (byte) c;
+            else if (c < 0x800) {
+                buf[size++] = (byte) (0xc0 | c >> 6);
+                buf[size++] = (byte) (0x80 | c & 0x3f);
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf[size++] = (byte) (0xf0 | cp >> 18);
+                buf[size++] = (byte) (0x80 | cp >> 12 & 0x3f);
+                buf[size++] = (byte) (0x80 | cp >> 6 & 0x3f);
+                buf[size++] = (byte) (0x80 | cp & 0x3f);
+            }
+            else {
+                if (Character.isSurrogate(c))
+                    c = '?';
+                buf[size++] = (byte) (0xe0 | c >> 12);
+                buf[size++] = (byte) (0x80 | c >> 6 & 0x3f);
+                buf[size++] = (byte) (0x80 | c & 0x3f);
+            }
+        }
+
+        int bytes = size - start;
+        int lengthValue = name ? bytes << 1 : bytes;
+        int actualLengthSize = varintSize(lengthValue);
+        if (actualLengthSize != lengthSize) {
+            ensure(actualLengthSize - lengthSize);
+            System.arraycopy(buf, start, buf, lengthPos + actualLengthSize, bytes);
+            size += actualLengthSize - lengthSize;
+        }
+        int end = size;
+        size = lengthPos;
+        writeVarint(lengthValue);
+        size = end;
+    }
+
+    public void writeDouble(double d) {
+        long bits = Double.doubleToRawLongBits(d);
+        ensure(8);
+        for (int shift = 56; shift >= 0; shift -= 8)
+            buf[size++] = (byte) (bits >>> shift);
+    }
+
+    public void writeZigzag(int i) {
+        writeVarint(i << 1 ^ i >> 31);
+    }
+
+    public void writeZigzagLong(long l) {
+        writeVarlong(l << 1 ^ l >> 63);
+    }
+
+    public void writeVarlong(long l) {
+        ensure(10);
+        while ((l & ~0x7fL) != 0) {
+            buf[size++] = (byte) (l & 0x7f | 0x80);
+            l >>>= 7;
+        }
+        buf[size++] = (byte) l;
+    }
+
+    public void writeVarint(int i) {
+        ensure(5);
+        while ((i & ~0x7f) != 0) {
+            buf[size++] = (byte) (i & 0x7f | 0x80);
+            i >>>= 7;
+        }
+        buf[size++] = (byte) i;
+    }
+
+    public void writeByte(int b) {
+        ensure(1);
+        buf[size++] = (byte) b;
+    }
+
+    private static int varintSize(int i) {
+        int n = 1;
+        while ((i & ~0x7f) != 0) {
+            n++;
+            i >>>= 7;
+        }
+        return n;
+    }
+
+    private void ensure(int extra) {
+        if (size + extra > buf.length)
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + extra));
+    }
+}
@@ -0,0 +1,87 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.binary;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Constants of the binary record encoding.
+ *
+ * A record is a version byte followed by a map. A map is a varint entry count followed by the entries. Each entry is
+ * a name and a value. A name is a varint that is either (index << 1 | 1) into the tag name dictionary below, or
+ * (length << 1) followed by that many bytes of UTF-8. A value is a type byte followed by its content. Strings are a
+ * varint byte length followed by UTF-8, numbers are raw big endian IEEE doubles, and signed integers are zigzag
+ * varints.
+ *
+ * The dictionary is part of the format: entries may be appended in a new version, but never removed or reordered.
+ *
+ * A record stored compressed starts with DEFLATED instead of the version byte, followed by the varint id of the
+ * preset dictionary that it was compressed with (0 for none), the varint length of the plain record, and then the
+ * plain record as raw deflate data. See RecordCompressor.
+ *
+ * A grid is GRID_MAGIC and GRID_VERSION followed by frames, each of which is a varint length and then that many
+ * bytes. The first frame is the grid meta as a map body, followed by the column dictionary: a varint count and then
+ * each column name as a string. Each frame after that is a block of up to GRID_BLOCK_SIZE rows: a varint row count
+ * and then, for each column in turn, runs that cover the rows of the block. A run is a varint (length << 2 | kind),
+ * where the kind is RUN_ABSENT for rows without the tag, RUN_MARKER for rows where it is a marker, or RUN_VALUES
+ * followed by a value for each row. An empty frame ends the grid. Date times that are cells are written as
+ * DATE_TIME_MILLIS, i.e. as epoch millis rather than their fields.
+ */
+public final class BinaryFormat {
+    public static final byte VERSION = 1;
+    public static final byte DEFLATED = 0x40;
+
+    public static final byte NULL = 0;
+    public static final byte MARKER = 1;
+    public static final byte REMOVE = 2;
+    public static final byte NA = 3;
+    public static final byte TRUE = 4;
+    public static final byte FALSE = 5;
+    public static final byte NUMBER = 6; // double
+    public static final byte NUMBER_UNIT = 7; // double, unit
+    public static final byte STRING = 8; // string
+    public static final byte REF = 9; // id
+    public static final byte REF_DIS = 10; // id, dis
+    public static final byte URI = 11; // string
+    public static final byte BINARY = 12; // mime
+    public static final byte DATE = 13; // zigzag year, month, day
+    public static final byte TIME = 14; // hour, minute, second, varint ms
+    public static final byte DATE_TIME = 15; // date, time, tz name, zigzag offset
+    public static final byte COORDINATES = 16; // double lat, double lng
+    public static final byte LIST = 17; // varint size, values
+    public static final byte MAP = 18; // varint size, entries
+    public static final byte DATE_TIME_MILLIS = 19; // zigzag varlong epoch millis, tz name, zigzag offset
+
+    static final byte[] GRID_MAGIC = { 'H', 'G', 'R', 'D' };
+    public static final byte GRID_VERSION = 1;
+    public static final int GRID_BLOCK_SIZE = 1024;
+    public static final int RUN_ABSENT = 0;
+    public static final int RUN_MARKER = 1;
+    public static final int RUN_VALUES = 2;
+
+    static final String[] DICTIONARY = { "id", "dis", "mod", "site", "equip", "point", "siteRef", "equipRef",
+            "spaceRef", "navName", "disMacro", "kind", "unit", "tz", "his", "cur", "curVal", "curStatus", "writable",
+            "writeVal", "writeLevel", "sensor", "cmd", "sp", "air", "water", "temp", "humidity", "pressure", "flow",
+            "power", "energy", "elec", "meter", "zone", "discharge", "return", "outside", "mixed", "exhaust", "ahu",
+            "vav", "fan", "damper", "valve", "heating", "cooling", "hot", "chilled", "run", "enable", "occupied",
+            "effective", "area", "geoAddr", "geoCity", "geoState", "geoCountry", "geoPostalCode", "geoStreet",
+            "geoCoord", "primaryFunction", "yearBuilt", "hisInterpolate", "hisTotalized", "minVal", "maxVal",
+            "precision", "enum", "siteMeter", "elecMeterLoad", "connRef", "weatherRef", "floor", "floorRef", "room",
+            "roomRef", "name", "description", "ts", "val", "status", "enabled", "createdTs", "updatedTs" };
+
+    static final Map<String, Integer> DICTIONARY_INDEX = new HashMap<>();
+    static {
+        for (int i = 0; i < DICTIONARY.length; i++)
+            DICTIONARY_INDEX.put(DICTIONARY[i], i);
+    }
+
+    private BinaryFormat() {
+        // Constants only
+    }
+}
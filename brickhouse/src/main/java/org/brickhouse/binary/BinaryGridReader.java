@@ -0,0 +1,180 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.binary;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.brickhouse.ParseException;
+import org.brickhouse.datatype.HGrid;
+import org.brickhouse.datatype.HMap;
+import org.brickhouse.datatype.HMarker;
+import org.brickhouse.datatype.HValue;
+import org.brickhouse.io.HGridReader;
+
+/**
+ * Reads grids in the binary grid format described in BinaryFormat. Rows are read a block at a time, so streaming a
+ * grid with readGrid(metaConsumer, rowConsumer) only holds one block of rows in memory.
+ */
+public class BinaryGridReader implements HGridReader {
+    private final DataInputStream in;
+    private final BinaryDecoder decoder = new BinaryDecoder();
+    private byte[] frame = new byte[1024];
+    private int frameLength;
+    private String[] columns;
+
+    public BinaryGridReader(InputStream in) {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+    }
+
+    /** Read grid from the stream. */
+    @Override
+    public HGrid readGrid() {
+        HMap meta = readHeader();
+        List<HMap> rows = new ArrayList<>();
+        readRows(rows::add);
+        return new HGrid(meta, rows);
+    }
+
+    @Override
+    public int readGrid(Consumer<HMap> metaConsumer, Consumer<HMap> rowConsumer) {
+        HMap meta = readHeader();
+        if (metaConsumer != null)
+            metaConsumer.accept(meta);
+        return readRows(rowConsumer);
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Reads the header frame, and the columns for the row blocks that follow it.
+     * 
+     * @return the grid meta
+     */
+    private HMap readHeader() {
+        try {
+            for (byte b : BinaryFormat.GRID_MAGIC) {
+                if (in.readByte() != b)
+                    throw new ParseException("Not a binary grid");
+            }
+            int version = in.readUnsignedByte();
+            if (version != BinaryFormat.GRID_VERSION)
+                throw new ParseException("Unsupported binary grid version " + version);
+        }
+        catch (EOFException e) {
+            throw new ParseException("Not a binary grid", e);
+        }
+        catch (IOException e) {
+            throw new ParseException(e.toString(), e);
+        }
+
+        readFrame();
+        HMap meta = decoder.readMapBody();
+        int columnCount = decoder.readVarint();
+        if (columnCount < 0 || columnCount > frameLength)
+            throw new ParseException("Invalid column count " + columnCount);
+        columns = new String[columnCount];
+        for (int i = 0; i < columns.length; i++)
+            columns[i] = decoder.readString();
+        checkFrameEnd();
+        return meta;
+    }
+
+    private int readRows(Consumer<HMap> rowConsumer) {
+        int total = 0;
+        while (readFrame() > 0) {
+            int count = decoder.readVarint();
+            if (count > BinaryFormat.GRID_BLOCK_SIZE)
+                throw new ParseException("Block of " + count + " rows is too large");
+
+            HMap[] rows = new HMap[count];
+            for (int i = 0; i < count; i++)
+                rows[i] = new HMap();
+
+            for (String column : columns) {
+                int row = 0;
+                while (row < count) {
+                    int run = decoder.readVarint();
+                    int kind = run & 3;
+                    int end = row + (run >>> 2);
+                    if (end <= row || end > count)
+                        throw new ParseException("Invalid run in column " + column);
+
+                    if (kind == BinaryFormat.RUN_MARKER) {
+                        for (; row < end; row++)
+                            rows[row].put(column, HMarker.VALUE);
+                    }
+                    else if (kind == BinaryFormat.RUN_VALUES) {
+                        for (; row < end; row++) {
+                            HValue value = decoder.readValue();
+                            if (value != null)
+                                rows[row].put(column, value);
+                        }
+                    }
+                    else if (kind == BinaryFormat.RUN_ABSENT)
+                        row = end;
+                    else
+                        throw new ParseException("Unknown run kind " + kind + " in column " + column);
+                }
+            }
+            checkFrameEnd();
+
+            for (HMap row : rows)
+                rowConsumer.accept(row);
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Reads the next frame into the decoder.
+     * 
+     * @return the length of the frame
+     */
+    private int readFrame() {
+        try {
+            int length = 0;
+            for (int shift = 0;; shift += 7) {
+                if (shift == 35)
+                    throw new ParseException("Malformed frame length");
+                int b = in.readUnsignedByte();
+                length |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0)
+                    break;
+            }
+            if (length < 0)
+                throw new ParseException("Malformed frame length");
+
+            if (frame.length < length)
+                frame = new byte[Math.max(length, frame.length * 2)];
+            in.readFully(frame, 0, length);
+            decoder.reset(frame, 0, length);
+            frameLength = length;
+            return length;
+        }
+        catch (EOFException e) {
+            throw new ParseException("Unexpected end of grid", e);
+        }
+        catch (IOException e) {
+            throw new ParseException(e.toString(), e);
+        }
+    }
+
+    private void checkFrameEnd() {
+        if (decoder.position() != frameLength)
+            throw new ParseException("Unexpected content at end of frame");
+    }
+}
@@ -0,0 +1,93 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.binary;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks what compression of stored records saves, and what it costs.
+ */
+public class CompressionStats {
+    private final AtomicLong compressed = new AtomicLong();
+    private final AtomicLong plainBytes = new AtomicLong();
+    private final AtomicLong storedBytes = new AtomicLong();
+    private final AtomicLong compressNanos = new AtomicLong();
+    private final AtomicLong decompressed = new AtomicLong();
+    private final AtomicLong decompressNanos = new AtomicLong();
+
+    void compressed(int plain, int stored, long nanos) {
+        compressed.incrementAndGet();
+        plainBytes.addAndGet(plain);
+        storedBytes.addAndGet(stored);
+        compressNanos.addAndGet(nanos);
+    }
+
+    void decompressed(long nanos) {
+        decompressed.incrementAndGet();
+        decompressNanos.addAndGet(nanos);
+    }
+
+    /**
+     * @return the number of records written through the compressor, including those that were stored plain because
+     *         they did not get any smaller.
+     */
+    public long getCompressed() {
+        return compressed.get();
+    }
+
+    public long getPlainBytes() {
+        return plainBytes.get();
+    }
+
+    public long getStoredBytes() {
+        return storedBytes.get();
+    }
+
+    public long getCompressNanos() {
+        return compressNanos.get();
+    }
+
+    /**
+     * @return the number of compressed records that have been read.
+     */
+    public long getDecompressed() {
+        return decompressed.get();
+    }
+
+    public long getDecompressNanos() {
+        return decompressNanos.get();
+    }
+
+    /**
+     * @return plain bytes divided by stored bytes, or 0 if nothing has been written yet.
+     */
+    public double getRatio() {
+        long stored = storedBytes.get();
+        if (stored == 0)
+            return 0;
+        return (double) plainBytes.get() / stored;
+    }
+
+    public void reset() {
+        compressed.set(0);
+        plainBytes.set(0);
+        storedBytes.set(0);
+        compressNanos.set(0);
+        decompressed.set(0);
+        decompressNanos.set(0);
+    }
+
+    @Override
+    public String toString() {
+        long c = compressed.get();
+        long d = decompressed.get();
+        return "CompressionStats [compressed=" + c + ", ratio=" + String.format("%.2f", getRatio())
+                + ", nanosPerCompress=" + (c == 0 ? 0 : compressNanos.get() / c) + ", decompressed=" + d
+                + ", nanosPerDecompress=" + (d == 0 ? 0 : decompressNanos.get() / d) + "]";
+    }
+}
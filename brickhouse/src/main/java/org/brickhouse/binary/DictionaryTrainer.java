@@ -0,0 +1,143 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.binary;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Builds a preset deflate dictionary from sample records.
+ *
+ * Each sample is cut into overlapping segments, and a segment is scored by how many samples contain each of its
+ * k-byte substrings. Segments are then picked greedily by score, with the substrings of picked segments no longer
+ * counting toward the score of the rest, until the dictionary is full. Deflate encodes nearer matches more cheaply,
+ * so the best segments go at the end of the dictionary.
+ */
+public final class DictionaryTrainer {
+    private static final int K = 8;
+    private static final int SEGMENT_SIZE = 48;
+    private static final int SEGMENT_STEP = 12;
+
+    private static class Segment implements Comparable<Segment> {
+        final byte[] sample;
+        final int offset;
+        final int length;
+        int score;
+
+        Segment(byte[] sample, int offset, int length) {
+            this.sample = sample;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int compareTo(Segment that) {
+            return Integer.compare(that.score, score);
+        }
+    }
+
+    /**
+     * @return the dictionary, which is empty if the samples have nothing in common.
+     */
+    public static byte[] train(List<byte[]> samples, int maxSize) {
+        // The number of samples in which each k-gram appears.
+        Map<Long, Integer> frequencies = new HashMap<>();
+        Set<Long> seen = new HashSet<>();
+        for (byte[] sample : samples) {
+            seen.clear();
+            for (int i = 0; i + K <= sample.length; i++) {
+                Long kgram = kgram(sample, i);
+                if (seen.add(kgram)) {
+                    Integer f = frequencies.get(kgram);
+                    frequencies.put(kgram, f == null ? 1 : f + 1);
+                }
+            }
+        }
+
+        Set<Long> covered = new HashSet<>();
+        PriorityQueue<Segment> queue = new PriorityQueue<>();
+        for (byte[] sample : samples) {
+            for (int offset = 0; offset + K <= sample.length; offset += SEGMENT_STEP) {
+                Segment segment = new Segment(sample, offset, Math.min(SEGMENT_SIZE, sample.length - offset));
+                segment.score = score(segment, frequencies, covered);
+                if (segment.score > 0)
+                    queue.add(segment);
+            }
+        }
+
+        List<Segment> picked = new ArrayList<>();
+        int size = 0;
+        while (size < maxSize && !queue.isEmpty()) {
+            Segment segment = queue.poll();
+
+            // Scores only go down as segments are picked, so a segment that is still the best after rescoring is
+            // the best overall.
+            int score = score(segment, frequencies, covered);
+            if (score <= 0)
+                continue;
+            if (score < segment.score && !queue.isEmpty() && score < queue.peek().score) {
+                segment.score = score;
+                queue.add(segment);
+                continue;
+            }
+
+            picked.add(segment);
+            size += segment.length;
+            for (int i = segment.offset; i + K <= segment.offset + segment.length; i++)
+                covered.add(kgram(segment.sample, i));
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(size, maxSize));
+        for (int i = picked.size() - 1; i >= 0; i--) {
+            Segment segment = picked.get(i);
+            out.write(segment.sample, segment.offset, segment.length);
+        }
+
+        byte[] dictionary = out.toByteArray();
+        if (dictionary.length > maxSize) {
+            // Trim from the front, where the least useful segments are.
+            byte[] trimmed = new byte[maxSize];
+            System.arraycopy(dictionary, dictionary.length - maxSize, trimmed, 0, maxSize);
+            dictionary = trimmed;
+        }
+        return dictionary;
+    }
+
+    /**
+     * Only k-grams that appear in more than one sample are worth having in the dictionary.
+     */
+    private static int score(Segment segment, Map<Long, Integer> frequencies, Set<Long> covered) {
+        int score = 0;
+        for (int i = segment.offset; i + K <= segment.offset + segment.length; i++) {
+            Long kgram = kgram(segment.sample, i);
+            if (!covered.contains(kgram)) {
+                int f = frequencies.get(kgram);
+                if (f > 1)
+                    score += f;
+            }
+        }
+        return score;
+    }
+
+    private static Long kgram(byte[] b, int offset) {
+        long l = 0;
+        for (int i = offset; i < offset + K; i++)
+            l = l << 8 | b[i] & 0xff;
+        return l;
+    }
+
+    private DictionaryTrainer() {
+        // Static only
+    }
+}
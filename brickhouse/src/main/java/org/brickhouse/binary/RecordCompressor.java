@@ -0,0 +1,231 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.binary;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.brickhouse.ParseException;
+
+/**
+ * Compresses binary records with deflate, optionally primed with a preset dictionary (see DictionaryTrainer). Records
+ * are small and repeat the same content from row to row, so most of what deflate can find is in the dictionary rather
+ * than in the record itself.
+ *
+ * Compressed records carry the id of their dictionary, so that a table's dictionary can be retrained without
+ * rewriting the rows that were compressed with an earlier one. Records that would not get smaller are stored plain.
+ * Both kinds can be passed to decompress.
+ */
+public class RecordCompressor {
+    /**
+     * Looks up a dictionary that is not yet known to the compressor, e.g. from the database.
+     */
+    public interface DictionaryLoader {
+        /**
+         * @return the dictionary, or null if there is no dictionary with the given id.
+         */
+        byte[] load(int id);
+    }
+
+    /**
+     * Deflate can only refer back this far, so a larger dictionary is no use.
+     */
+    public static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+    private static final int MAX_RETAINED_SIZE = 64 * 1024;
+
+    /**
+     * The native deflate state is expensive to create, so keep one of each per thread.
+     */
+    private static class Workspace {
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        final Inflater inflater = new Inflater(true);
+        byte[] buf = new byte[1024];
+    }
+
+    private static final ThreadLocal<Workspace> WORKSPACES = new ThreadLocal<Workspace>() {
+        @Override
+        protected Workspace initialValue() {
+            return new Workspace();
+        }
+    };
+
+    private static class Dictionary {
+        final int id;
+        final byte[] bytes;
+
+        Dictionary(int id, byte[] bytes) {
+            this.id = id;
+            this.bytes = bytes;
+        }
+    }
+
+    private final Map<Integer, byte[]> dictionaries = new ConcurrentHashMap<>();
+    private final DictionaryLoader loader;
+    private final CompressionStats stats = new CompressionStats();
+    private volatile Dictionary current;
+
+    public RecordCompressor(DictionaryLoader loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * Compresses records from now on using the given dictionary.
+     *
+     * @param id
+     *            the id that is stored with each record, so that decompress can find the dictionary again. Must be
+     *            positive.
+     * @param dictionary
+     *            the preset dictionary, or null to compress without one.
+     */
+    public void setDictionary(int id, byte[] dictionary) {
+        if (id < 1)
+            throw new IllegalArgumentException("Dictionary id must be positive");
+        if (dictionary != null && dictionary.length > 0)
+            dictionaries.put(id, dictionary);
+        else
+            dictionary = null;
+        current = new Dictionary(id, dictionary);
+    }
+
+    /**
+     * @return whether records are being compressed, i.e. whether setDictionary has been called.
+     */
+    public boolean isEnabled() {
+        return current != null;
+    }
+
+    public CompressionStats getStats() {
+        return stats;
+    }
+
+    public byte[] compress(byte[] record) {
+        Dictionary dict = current;
+        if (dict == null)
+            return record;
+
+        long start = System.nanoTime();
+        Workspace ws = WORKSPACES.get();
+        Deflater deflater = ws.deflater;
+        deflater.reset();
+        if (dict.bytes != null)
+            deflater.setDictionary(dict.bytes);
+        deflater.setInput(record);
+        deflater.finish();
+
+        // Only keep the result if it is smaller than the record, so there is no point deflating beyond that.
+        int id = dict.bytes == null ? 0 : dict.id;
+        int headerSize = 1 + varintSize(id) + varintSize(record.length);
+        int limit = record.length - headerSize;
+        if (ws.buf.length < limit)
+            ws.buf = new byte[Math.max(ws.buf.length * 2, limit)];
+        int size = 0;
+        while (size < limit && !deflater.finished())
+            size += deflater.deflate(ws.buf, size, limit - size);
+
+        byte[] result;
+        if (deflater.finished()) {
+            result = new byte[headerSize + size];
+            result[0] = BinaryFormat.DEFLATED;
+            int pos = writeVarint(result, 1, id);
+            pos = writeVarint(result, pos, record.length);
+            System.arraycopy(ws.buf, 0, result, pos, size);
+        }
+        else
+            result = record;
+
+        if (ws.buf.length > MAX_RETAINED_SIZE)
+            ws.buf = new byte[1024];
+
+        stats.compressed(record.length, result.length, System.nanoTime() - start);
+        return result;
+    }
+
+    /**
+     * @return the plain record. Records that were stored plain are returned as is.
+     */
+    public byte[] decompress(byte[] stored) {
+        if (stored.length == 0 || stored[0] != BinaryFormat.DEFLATED)
+            return stored;
+
+        long start = System.nanoTime();
+        int[] pos = { 1 };
+        int id = readVarint(stored, pos);
+        int length = readVarint(stored, pos);
+
+        Inflater inflater = WORKSPACES.get().inflater;
+        inflater.reset();
+        if (id != 0)
+            inflater.setDictionary(dictionary(id));
+        inflater.setInput(stored, pos[0], stored.length - pos[0]);
+
+        byte[] record = new byte[length];
+        int size = 0;
+        try {
+            while (size < length) {
+                int n = inflater.inflate(record, size, length - size);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                size += n;
+            }
+        }
+        catch (DataFormatException e) {
+            throw new ParseException("Corrupt compressed record: " + e.getMessage());
+        }
+        if (size != length)
+            throw new ParseException("Compressed record is truncated");
+
+        stats.decompressed(System.nanoTime() - start);
+        return record;
+    }
+
+    private byte[] dictionary(int id) {
+        byte[] dict = dictionaries.get(id);
+        if (dict == null) {
+            dict = loader == null ? null : loader.load(id);
+            if (dict == null)
+                throw new ParseException("Unknown compression dictionary " + id);
+            dictionaries.put(id, dict);
+        }
+        return dict;
+    }
+
+    private static int varintSize(int i) {
+        int n = 1;
+        while ((i & ~0x7f) != 0) {
+            n++;
+            i >>>= 7;
+        }
+        return n;
+    }
+
+    private static int writeVarint(byte[] buf, int pos, int i) {
+        while ((i & ~0x7f) != 0) {
+            buf[pos++] = (byte) (i & 0x7f | 0x80);
+            i >>>= 7;
+        }
+        buf[pos++] = (byte) i;
+        return pos;
+    }
+
+    private static int readVarint(byte[] buf, int[] pos) {
+        int result = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (pos[0] == buf.length)
+                break;
+            int b = buf[pos[0]++];
+            result |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return result;
+        }
+        throw new ParseException("Malformed compressed record header");
+    }
+}
@@ -0,0 +1,300 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.datatype;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * The tags of an HMap, in insertion order. Keys and values are kept in parallel arrays, so a record costs two arrays
+ * rather than an entry object per tag plus a hash table, and scanning its tags reads contiguous memory.
+ *
+ * Small maps, which is nearly all records, are searched with a linear scan. Above HASH_THRESHOLD tags an open
+ * addressing index of positions into the arrays is added. Removing a tag shifts the later ones down to keep the order,
+ * so it costs time in proportion to the size of the map.
+ */
+class CompactMap extends AbstractMap<String, HValue> {
+    static final int HASH_THRESHOLD = 16;
+
+    private static final String[] NO_KEYS = {};
+    private static final HValue[] NO_VALUES = {};
+
+    private String[] keys;
+    private HValue[] values;
+    private int size;
+    // Positions plus one, so that 0 is an empty slot. Null while the map is small enough to scan.
+    private int[] index;
+    private int modCount;
+    private Set<Entry<String, HValue>> entrySet;
+
+    CompactMap() {
+        keys = NO_KEYS;
+        values = NO_VALUES;
+    }
+
+    CompactMap(Map<String, HValue> map) {
+        if (map instanceof CompactMap) {
+            CompactMap that = (CompactMap) map;
+            keys = Arrays.copyOf(that.keys, that.size);
+            values = Arrays.copyOf(that.values, that.size);
+            size = that.size;
+            if (that.index != null)
+                index = that.index.clone();
+        }
+        else {
+            keys = new String[map.size()];
+            values = new HValue[map.size()];
+            putAll(map);
+        }
+    }
+
+    private int indexOf(Object key) {
+        if (index == null) {
+            for (int i = 0; i < size; i++) {
+                if (keys[i].equals(key))
+                    return i;
+            }
+            return -1;
+        }
+
+        int mask = index.length - 1;
+        for (int slot = spread(key.hashCode()) & mask;; slot = (slot + 1) & mask) {
+            int pos = index[slot] - 1;
+            if (pos < 0)
+                return -1;
+            if (keys[pos].equals(key))
+                return pos;
+        }
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private void rebuildIndex() {
+        if (size <= HASH_THRESHOLD) {
+            index = null;
+            return;
+        }
+
+        int capacity = Integer.highestOneBit(size * 3 - 1) << 1;
+        if (index == null || index.length != capacity)
+            index = new int[capacity];
+        else
+            Arrays.fill(index, 0);
+        for (int i = 0; i < size; i++)
+            addToIndex(i);
+    }
+
+    private void addToIndex(int pos) {
+        int mask = index.length - 1;
+        int slot = spread(keys[pos].hashCode()) & mask;
+        while (index[slot] != 0)
+            slot = (slot + 1) & mask;
+        index[slot] = pos + 1;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key != null && indexOf(key) != -1;
+    }
+
+    @Override
+    public HValue get(Object key) {
+        if (key == null)
+            return null;
+        int i = indexOf(key);
+        return i == -1 ? null : values[i];
+    }
+
+    @Override
+    public HValue put(String key, HValue value) {
+        Objects.requireNonNull(key, "key");
+        int i = indexOf(key);
+        if (i != -1) {
+            HValue old = values[i];
+            values[i] = value;
+            return old;
+        }
+
+        if (size == keys.length) {
+            int capacity = Math.max(4, size + (size >> 1));
+            keys = Arrays.copyOf(keys, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        keys[size] = key;
+        values[size] = value;
+        size++;
+        modCount++;
+
+        if (index != null && size * 3 <= index.length * 2)
+            addToIndex(size - 1);
+        else if (size > HASH_THRESHOLD)
+            rebuildIndex();
+        return null;
+    }
+
+    @Override
+    public HValue remove(Object key) {
+        if (key == null)
+            return null;
+        int i = indexOf(key);
+        if (i == -1)
+            return null;
+        HValue old = values[i];
+        removeAt(i);
+        return old;
+    }
+
+    private void removeAt(int i) {
+        int moved = size - i - 1;
+        System.arraycopy(keys, i + 1, keys, i, moved);
+        System.arraycopy(values, i + 1, values, i, moved);
+        size--;
+        keys[size] = null;
+        values[size] = null;
+        modCount++;
+        if (index != null)
+            rebuildIndex();
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(keys, 0, size, null);
+        Arrays.fill(values, 0, size, null);
+        size = 0;
+        index = null;
+        modCount++;
+    }
+
+    @Override
+    public void forEach(BiConsumer<? super String, ? super HValue> action) {
+        int expected = modCount;
+        for (int i = 0; i < size; i++) {
+            action.accept(keys[i], values[i]);
+            if (modCount != expected)
+                throw new ConcurrentModificationException();
+        }
+    }
+
+    @Override
+    public Set<Entry<String, HValue>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new AbstractSet<Entry<String, HValue>>() {
+                @Override
+                public Iterator<Entry<String, HValue>> iterator() {
+                    return new EntryIterator();
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+
+                @Override
+                public void clear() {
+                    CompactMap.this.clear();
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    /**
+     * Entries are copies, since positions change when tags are removed. Setting a value writes it to the map.
+     */
+    private class Node extends SimpleEntry<String, HValue> {
+        private static final long serialVersionUID = 1L;
+
+        Node(int i) {
+            super(keys[i], values[i]);
+        }
+
+        @Override
+        public HValue setValue(HValue value) {
+            super.setValue(value);
+            return put(getKey(), value);
+        }
+    }
+
+    private class EntryIterator implements Iterator<Entry<String, HValue>> {
+        private int next;
+        private int last = -1;
+        private int expected = modCount;
+
+        @Override
+        public boolean hasNext() {
+            return next < size;
+        }
+
+        @Override
+        public Entry<String, HValue> next() {
+            if (modCount != expected)
+                throw new ConcurrentModificationException();
+            if (next >= size)
+                throw new NoSuchElementException();
+            last = next++;
+            return new Node(last);
+        }
+
+        @Override
+        public void remove() {
+            if (last == -1)
+                throw new IllegalStateException();
+            if (modCount != expected)
+                throw new ConcurrentModificationException();
+            removeAt(last);
+            next = last;
+            last = -1;
+            expected = modCount;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof CompactMap))
+            return super.equals(o);
+        if (o == this)
+            return true;
+        CompactMap that = (CompactMap) o;
+        if (size != that.size)
+            return false;
+        for (int i = 0; i < size; i++) {
+            int j = that.indexOf(keys[i]);
+            if (j == -1 || !Objects.equals(values[i], that.values[j]))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 0;
+        for (int i = 0; i < size; i++)
+            hash += keys[i].hashCode() ^ Objects.hashCode(values[i]);
+        return hash;
+    }
+}
@@ -9,8 +9,6 @@ package org.brickhouse.datatype;
 
 import java.util.Calendar;
 
-import org.apache.commons.lang3.StringUtils;
-
 public class HDate extends HValue implements Comparable<HDate> {
     private final int year;
     private final int month;
@@ -48,6 +46,31 @@ public class HDate extends HValue implements Comparable<HDate> {
         return HDateTime.now().getDate();
     }
 
+    /**
+     * @return the number of days since 1970-01-01, in the proleptic Gregorian calendar.
+     */
+    long toEpochDay() {
+        int y = month <= 2 ? year - 1 : year;
+        int era = Math.floorDiv(y, 400);
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+
+    static HDate ofEpochDay(long epochDay) {
+        long z = epochDay + 719468;
+        long era = Math.floorDiv(z, 146097);
+        int dayOfEra = (int) (z - era * 146097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int mp = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        return new HDate((int) year, month, day);
+    }
+
     public int getYear() {
         return year;
     }
@@ -62,15 +85,32 @@ public class HDate extends HValue implements Comparable<HDate> {
 
     @Override
     public String toString() {
-        StringBuilder sb = new StringBuilder();
-        sb.append(StringUtils.leftPad(Integer.toString(year), 4, '0'));
-        sb.append('-');
-        sb.append(StringUtils.leftPad(Integer.toString(month), 2, '0'));
-        sb.append('-');
-        sb.append(StringUtils.leftPad(Integer.toString(day), 2, '0'));
+        StringBuilder sb = new StringBuilder(10);
+        appendTo(sb);
         return sb.toString();
     }
 
+    /**
+     * Appends the date as yyyy-mm-dd.
+     */
+    public void appendTo(StringBuilder sb) {
+        if (year < 1000) {
+            sb.append('0');
+            if (year < 100)
+                sb.append('0');
+            if (year < 10)
+                sb.append('0');
+        }
+        sb.append(year).append('-');
+        appendTwoDigits(sb, month);
+        sb.append('-');
+        appendTwoDigits(sb, day);
+    }
+
+    static void appendTwoDigits(StringBuilder sb, int value) {
+        sb.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
@@ -7,10 +7,6 @@
  */
 package org.brickhouse.datatype;
 
-import java.util.Calendar;
-import java.util.GregorianCalendar;
-import java.util.TimeZone;
-
 import org.brickhouse.ParseException;
 import org.brickhouse.zinc.ZincReader;
 
@@ -27,9 +23,9 @@ public class HDateTime extends HValue implements Comparable<HDateTime> {
     private final int tzOffset;
     private final HTimeZone tz;
     // This represents the millis since epoch, not the ms as in the time field.
-    private volatile long millis;
+    private final long millis;
 
-    private static final TimeZone utc = TimeZone.getTimeZone("Etc/UTC");
+    private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000L;
 
     public HDateTime(HDate date, HTime time, HTimeZone tz, int tzOffset) {
         if (date == null || time == null || tz == null)
@@ -39,23 +35,19 @@ public class HDateTime extends HValue implements Comparable<HDateTime> {
         this.time = time;
         this.tz = tz;
         this.tzOffset = tzOffset;
+        millis = localMillis(date, time) - tzOffset * 1000L;
     }
 
+    /**
+     * Takes the offset from the time zone, as it was at the given local time.
+     */
     public HDateTime(HDate date, HTime time, HTimeZone tz) {
-        GregorianCalendar c = new GregorianCalendar(date.getYear(), date.getMonth() - 1, date.getDay(), time.getHour(),
-                time.getMinute(), time.getSecond());
-        if (time.getMs() != 0)
-            c.set(Calendar.MILLISECOND, time.getMs());
-        c.setTimeZone(tz.java);
-
-        int tzOffset = c.get(Calendar.ZONE_OFFSET) / 1000 + c.get(Calendar.DST_OFFSET) / 1000;
-
-        long millis = c.getTimeInMillis();
+        long millis = tz.toUtc(localMillis(date, time));
 
         this.date = date;
         this.time = time;
         this.tz = tz;
-        this.tzOffset = tzOffset;
+        this.tzOffset = tz.getOffset(millis) / 1000;
         this.millis = millis;
     }
 
@@ -72,18 +64,23 @@ public class HDateTime extends HValue implements Comparable<HDateTime> {
     }
 
     public HDateTime(long millis, HTimeZone tz) {
-        Calendar c = new GregorianCalendar(tz.java);
-        c.setTimeInMillis(millis);
-
-        int tzOffset = c.get(15) / 1000 + c.get(16) / 1000;
+        int offset = tz.getOffset(millis);
+        long local = millis + offset;
 
-        this.date = new HDate(c);
-        this.time = new HTime(c);
+        this.date = HDate.ofEpochDay(Math.floorDiv(local, MILLIS_PER_DAY));
+        this.time = HTime.ofMillisOfDay((int) Math.floorMod(local, MILLIS_PER_DAY));
         this.tz = tz;
-        this.tzOffset = tzOffset;
+        this.tzOffset = offset / 1000;
         this.millis = millis;
     }
 
+    /**
+     * @return the milliseconds since the epoch of the date and time as if they were in UTC.
+     */
+    private static long localMillis(HDate date, HTime time) {
+        return date.toEpochDay() * MILLIS_PER_DAY + time.toMillisOfDay();
+    }
+
     public static HDateTime now() {
         return new HDateTime(System.currentTimeMillis());
     }
@@ -109,14 +106,6 @@ public class HDateTime extends HValue implements Comparable<HDateTime> {
     }
 
     public long getMillis() {
-        if (millis <= 0L) {
-            GregorianCalendar c = new GregorianCalendar(date.getYear(), date.getMonth() - 1, date.getDay(),
-                    time.getHour(), time.getMinute(), time.getSecond());
-            c.setTimeZone(utc);
-            c.set(Calendar.MILLISECOND, time.getMs());
-            c.set(Calendar.ZONE_OFFSET, tzOffset * 1000);
-            millis = c.getTimeInMillis();
-        }
         return millis;
     }
 
@@ -165,43 +154,38 @@ public class HDateTime extends HValue implements Comparable<HDateTime> {
 
     @Override
     public int compareTo(HDateTime that) {
-        long thisMillis = getMillis();
-        long thatMillis = that.getMillis();
-        if (thisMillis < thatMillis)
-            return -1;
-        if (thisMillis > thatMillis)
-            return 1;
-        return 0;
+        return Long.compare(millis, that.millis);
     }
 
     @Override
     public String toString() {
-        StringBuffer s = new StringBuffer();
-        s.append(date);
-        s.append('T');
-        s.append(time);
+        StringBuilder sb = new StringBuilder(40);
+        appendTo(sb);
+        return sb.toString();
+    }
+
+    /**
+     * Appends the date time in Zinc format, e.g. 2015-04-25T18:13:20-04:00 New_York.
+     */
+    public void appendTo(StringBuilder sb) {
+        date.appendTo(sb);
+        sb.append('T');
+        time.appendTo(sb);
         if (tzOffset == 0)
-            s.append('Z');
+            sb.append('Z');
         else {
             int offset = tzOffset;
             if (offset < 0) {
-                s.append('-');
+                sb.append('-');
                 offset = -offset;
             }
             else
-                s.append('+');
-
-            int zh = offset / 3600;
-            int zm = (offset % 3600) / 60;
-            if (zh < 10)
-                s.append('0');
-            s.append(zh).append(':');
-            if (zm < 10)
-                s.append('0');
-            s.append(zm);
-        }
-        s.append(' ').append(tz);
+                sb.append('+');
 
-        return s.toString();
+            HDate.appendTwoDigits(sb, offset / 3600);
+            sb.append(':');
+            HDate.appendTwoDigits(sb, (offset % 3600) / 60);
+        }
+        sb.append(' ').append(tz.name);
     }
 }
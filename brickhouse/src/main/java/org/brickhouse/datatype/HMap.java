@@ -7,10 +7,10 @@
  */
 package org.brickhouse.datatype;
 
-import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.function.BiConsumer;
 
 public class HMap extends HValue {
     public static final HMap EMPTY = new HMap() {
@@ -55,27 +55,28 @@ public class HMap extends HValue {
         }
     };
 
-    private final Map<String, HValue> map = new LinkedHashMap<>();
+    private final CompactMap map;
 
     public HMap() {
-        // no op
+        map = new CompactMap();
     }
 
     public HMap(Map<String, Object> map) {
+        this.map = new CompactMap();
         map.putAll(map);
     }
 
     public HMap(HMap map) {
-        this.map.putAll(map.map);
+        this.map = new CompactMap(map.getMap());
     }
 
     public HMap merge(HMap diff) {
-        for (Entry<String, HValue> e : diff.entrySet()) {
-            if (e.getValue() == HRemove.VALUE)
-                map.remove(e.getKey());
+        diff.forEach((key, value) -> {
+            if (value == HRemove.VALUE)
+                map.remove(key);
             else
-                map.put(e.getKey(), e.getValue());
-        }
+                map.put(key, value);
+        });
         return this;
     }
 
@@ -131,6 +132,10 @@ public class HMap extends HValue {
         return map.isEmpty();
     }
 
+    public int size() {
+        return map.size();
+    }
+
     public boolean containsKey(String name) {
         return map.containsKey(name);
     }
@@ -247,6 +252,31 @@ public class HMap extends HValue {
         return map.entrySet();
     }
 
+    /**
+     * Visits the tags in order. Unlike iterating entrySet, this reads the tags in place without creating an entry for
+     * each, so it is the cheaper way to walk a map.
+     */
+    public void forEach(BiConsumer<String, HValue> action) {
+        map.forEach(action);
+    }
+
+    /**
+     * A 64 bit hash of the tags that does not depend on the order in which they were put, so that maps that are equal
+     * have the same hash. Maps with the same hash are very likely, but not certain, to be equal.
+     */
+    public long contentHash() {
+        long hash = 0;
+        for (Entry<String, HValue> e : entrySet()) {
+            long h = ((long) e.getKey().hashCode() << 32) ^ (e.getValue().hashCode() & 0xFFFFFFFFL);
+            // Mix each entry before adding them up so that similar entries don't cancel out.
+            h *= 0x9E3779B97F4A7C15L;
+            h ^= h >>> 31;
+            h *= 0xBF58476D1CE4E5B9L;
+            hash += h ^ (h >>> 29);
+        }
+        return hash;
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
@@ -265,10 +295,10 @@ public class HMap extends HValue {
             return false;
         HMap other = (HMap) obj;
         if (map == null) {
-            if (other.map != null)
+            if (other.getMap() != null)
                 return false;
         }
-        else if (!map.equals(other.map))
+        else if (!map.equals(other.getMap()))
             return false;
         return true;
     }
@@ -9,8 +9,6 @@ package org.brickhouse.datatype;
 
 import java.util.Calendar;
 
-import org.apache.commons.lang3.StringUtils;
-
 public class HTime extends HValue implements Comparable<HTime> {
     public static final HTime MIDNIGHT = new HTime(0, 0, 0, 0);
 
@@ -74,6 +72,16 @@ public class HTime extends HValue implements Comparable<HTime> {
         }
     }
 
+    int toMillisOfDay() {
+        return ((hour * 60 + minute) * 60 + second) * 1000 + ms;
+    }
+
+    static HTime ofMillisOfDay(int millis) {
+        int ms = millis % 1000;
+        int seconds = millis / 1000;
+        return new HTime(seconds / 3600, seconds / 60 % 60, seconds % 60, ms);
+    }
+
     public int getHour() {
         return hour;
     }
@@ -143,21 +151,28 @@ public class HTime extends HValue implements Comparable<HTime> {
 
     @Override
     public String toString() {
-        StringBuilder sb = new StringBuilder();
-        sb.append(StringUtils.leftPad(Integer.toString(hour), 2, '0'));
+        StringBuilder sb = new StringBuilder(12);
+        appendTo(sb);
+        return sb.toString();
+    }
+
+    /**
+     * Appends the time as hh:mm:ss, followed by the milliseconds, without trailing zeros, if there are any.
+     */
+    public void appendTo(StringBuilder sb) {
+        HDate.appendTwoDigits(sb, hour);
         sb.append(':');
-        sb.append(StringUtils.leftPad(Integer.toString(minute), 2, '0'));
+        HDate.appendTwoDigits(sb, minute);
         sb.append(':');
-        sb.append(StringUtils.leftPad(Integer.toString(second), 2, '0'));
+        HDate.appendTwoDigits(sb, second);
         if (ms != 0) {
-            sb.append('.');
-            String millis = StringUtils.leftPad(Integer.toString(ms), 3, '0');
-            int len = 3;
-            while (millis.charAt(len - 1) == '0')
-                len--;
-            sb.append(millis.substring(0, len));
+            sb.append('.').append((char) ('0' + ms / 100));
+            if (ms % 100 != 0) {
+                sb.append((char) ('0' + ms / 10 % 10));
+                if (ms % 10 != 0)
+                    sb.append((char) ('0' + ms % 10));
+            }
         }
-        return sb.toString();
     }
 
     //
@@ -10,6 +10,7 @@ package org.brickhouse.datatype;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * HTimeZone handles the mapping between Haystack timezone
@@ -38,26 +39,23 @@ public final class HTimeZone {
      * return null on error based on check flag.
      */
     public static HTimeZone forName(String name, boolean checked) {
-        synchronized (cache) {
-            // lookup in cache
-            HTimeZone tz = cache.get(name);
-            if (tz != null)
-                return tz;
-
-            // map haystack id to Java full id
-            String javaId = toJava.get(name);
-            if (javaId == null) {
-                if (checked)
-                    throw new RuntimeException("Unknown tz: " + name);
-                return null;
-            }
-
-            // resolve full id to HTimeZone and cache
-            TimeZone java = TimeZone.getTimeZone(javaId);
-            tz = new HTimeZone(name, java);
-            cache.put(name, tz);
+        // lookup in cache, without locking
+        HTimeZone tz = cache.get(name);
+        if (tz != null)
             return tz;
+
+        // map haystack id to Java full id
+        String javaId = toJava.get(name);
+        if (javaId == null) {
+            if (checked)
+                throw new RuntimeException("Unknown tz: " + name);
+            return null;
         }
+
+        // resolve full id to HTimeZone and cache, keeping the first if another thread got there too
+        tz = new HTimeZone(name, TimeZone.getTimeZone(javaId));
+        HTimeZone existing = cache.putIfAbsent(name, tz);
+        return existing == null ? tz : existing;
     }
 
     public static HTimeZone fromJava(TimeZone java) {
@@ -89,6 +87,29 @@ public final class HTimeZone {
     /** Java representation of this timezone. */
     public final TimeZone java;
 
+    /**
+     * @return the offset from UTC in milliseconds at the given time.
+     */
+    public int getOffset(long millis) {
+        return java.getOffset(millis);
+    }
+
+    /**
+     * Converts a local time, as milliseconds since the epoch as if it were UTC, to the time in UTC. As with
+     * GregorianCalendar, a local time that occurs twice when the clocks go back is taken to be the later one, and one
+     * that is skipped when they go forward is moved forward by the gap.
+     */
+    public long toUtc(long localMillis) {
+        // Offsets are within 18 hours, so the local time's possible offsets are in effect between these two times.
+        int early = java.getOffset(localMillis - OFFSET_RANGE);
+        int late = java.getOffset(localMillis + OFFSET_RANGE);
+        if (early == late || java.getOffset(localMillis - late) == late)
+            return localMillis - late;
+        return localMillis - early;
+    }
+
+    private static final long OFFSET_RANGE = 18 * 60 * 60 * 1000L;
+
     /** Return Haystack timezone name */
     @Override
     public String toString() {
@@ -96,7 +117,7 @@ public final class HTimeZone {
     }
 
     // haystack name -> HTimeZone
-    private static Map<String, HTimeZone> cache = new HashMap<>();
+    private static final ConcurrentHashMap<String, HTimeZone> cache = new ConcurrentHashMap<>();
 
     // haystack name <-> java name mapping
     private static Map<String, String> toJava;
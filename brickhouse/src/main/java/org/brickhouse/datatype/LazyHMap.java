@@ -0,0 +1,227 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.datatype;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * A map over a stored record that only decodes the tags that are asked for. Table scans filter rows with these so that
+ * rejected rows only cost an index of their top level tags, plus the values that the filter looked at.
+ *
+ * get, has, containsKey, size and isEmpty work from the index. Everything else decodes the whole record into this
+ * map first, after which it behaves like any other HMap. decode() returns a plain HMap copy instead, for handing rows
+ * on to callers.
+ *
+ * Subclasses build the index with addTag as they scan the record, and decode single values by their offset. Because
+ * values are only decoded on demand, a malformed value may not be detected until it is asked for.
+ */
+public abstract class LazyHMap extends HMap {
+    private String[] names = new String[16];
+    private int[] offsets = new int[16];
+    private HValue[] values;
+    private int count;
+    private boolean materialized;
+
+    protected void addTag(String name, int offset) {
+        if (count == names.length) {
+            names = Arrays.copyOf(names, count * 2);
+            offsets = Arrays.copyOf(offsets, count * 2);
+        }
+        names[count] = name;
+        offsets[count] = offset;
+        count++;
+    }
+
+    /**
+     * Decodes the value at the given offset, as given to addTag.
+     */
+    protected abstract HValue decodeValue(int offset);
+
+    /**
+     * @return a plain map of all of the tags.
+     */
+    public HMap decode() {
+        if (materialized)
+            return new HMap(this);
+        HMap map = new HMap();
+        decodeInto(map);
+        return map;
+    }
+
+    private void decodeInto(HMap map) {
+        for (int i = 0; i < count; i++)
+            map.put(names[i], valueAt(i));
+    }
+
+    private HValue valueAt(int index) {
+        if (values == null)
+            values = new HValue[count];
+        HValue value = values[index];
+        if (value == null) {
+            value = decodeValue(offsets[index]);
+            values[index] = value;
+        }
+        return value;
+    }
+
+    private int indexOf(String name) {
+        // Search backwards, since a repeated tag takes its last value.
+        for (int i = count - 1; i >= 0; i--) {
+            if (names[i].equals(name))
+                return i;
+        }
+        return -1;
+    }
+
+    private void materialize() {
+        if (!materialized) {
+            materialized = true;
+            decodeInto(this);
+            names = null;
+            offsets = null;
+            values = null;
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T extends HValue> T get(String key) {
+        if (materialized)
+            return super.get(key);
+        int index = indexOf(key);
+        if (index == -1)
+            return null;
+        return (T) valueAt(index);
+    }
+
+    @Override
+    public boolean containsKey(String name) {
+        if (materialized)
+            return super.containsKey(name);
+        return indexOf(name) != -1;
+    }
+
+    @Override
+    public boolean has(String name) {
+        return containsKey(name);
+    }
+
+    @Override
+    public HMap merge(HMap diff) {
+        materialize();
+        return super.merge(diff);
+    }
+
+    @Override
+    public HMap put(String key, String value) {
+        materialize();
+        return super.put(key, value);
+    }
+
+    @Override
+    public HMap put(String key, boolean b) {
+        materialize();
+        return super.put(key, b);
+    }
+
+    @Override
+    public HMap put(String key, HValue value) {
+        materialize();
+        return super.put(key, value);
+    }
+
+    @Override
+    public HMap put(String key, int value) {
+        materialize();
+        return super.put(key, value);
+    }
+
+    @Override
+    public HMap put(String marker) {
+        materialize();
+        return super.put(marker);
+    }
+
+    @Override
+    public HValue remove(String key) {
+        materialize();
+        return super.remove(key);
+    }
+
+    @Override
+    public HMap delete(String key) {
+        materialize();
+        return super.delete(key);
+    }
+
+    @Override
+    public Map<String, HValue> getMap() {
+        materialize();
+        return super.getMap();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        if (materialized)
+            return super.isEmpty();
+        return count == 0;
+    }
+
+    @Override
+    public int size() {
+        if (materialized)
+            return super.size();
+        // A repeated tag is only counted once.
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            if (indexOf(names[i]) == i)
+                size++;
+        }
+        return size;
+    }
+
+    @Override
+    public Set<String> keySet() {
+        materialize();
+        return super.keySet();
+    }
+
+    @Override
+    public Set<Entry<String, HValue>> entrySet() {
+        materialize();
+        return super.entrySet();
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, HValue> action) {
+        materialize();
+        super.forEach(action);
+    }
+
+    @Override
+    public int hashCode() {
+        materialize();
+        return super.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        materialize();
+        return super.equals(obj);
+    }
+
+    @Override
+    public String toString() {
+        materialize();
+        return super.toString();
+    }
+}
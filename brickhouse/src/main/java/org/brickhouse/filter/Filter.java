@@ -178,6 +178,17 @@ public abstract class Filter {
     /* Used to lazily build toString */
     abstract String toStr();
 
+    /**
+     * Returns an SQL predicate over the id column that is equivalent to this filter, adding any parameter values to
+     * the given list, or null if the filter depends on tags that are only available in the stored record.
+     */
+    public String toSql(List<Object> params) {
+        return null;
+    }
+
+    static final String SQL_TRUE = "1=1";
+    static final String SQL_FALSE = "1=0";
+
     /** Hash code is based on string encoding */
     @Override
     public final int hashCode() {
@@ -335,6 +346,11 @@ public abstract class Filter {
         String toStr() {
             return "*";
         }
+
+        @Override
+        public String toSql(List<Object> params) {
+            return SQL_TRUE;
+        }
     }
 
     //////////////////////////////////////////////////////////////////////////
@@ -369,6 +385,10 @@ public abstract class Filter {
 
         abstract boolean doInclude(HValue val);
 
+        final boolean isId() {
+            return path.size() == 1 && "id".equals(path.get(0));
+        }
+
         final Path path;
     }
 
@@ -390,6 +410,12 @@ public abstract class Filter {
         final String toStr() {
             return path.toString();
         }
+
+        @Override
+        public String toSql(List<Object> params) {
+            // Every stored record has an id.
+            return isId() ? SQL_TRUE : null;
+        }
     }
 
     //////////////////////////////////////////////////////////////////////////
@@ -410,6 +436,11 @@ public abstract class Filter {
         final String toStr() {
             return "not " + path;
         }
+
+        @Override
+        public String toSql(List<Object> params) {
+            return isId() ? SQL_FALSE : null;
+        }
     }
 
     //////////////////////////////////////////////////////////////////////////
@@ -467,6 +498,16 @@ public abstract class Filter {
         final boolean doInclude(HValue v) {
             return v != null && v.equals(val);
         }
+
+        @Override
+        public String toSql(List<Object> params) {
+            if (!isId())
+                return null;
+            if (!(val instanceof HReference))
+                return SQL_FALSE;
+            params.add(((HReference) val).getId());
+            return "id=?";
+        }
     }
 
     //////////////////////////////////////////////////////////////////////////
@@ -487,6 +528,16 @@ public abstract class Filter {
         final boolean doInclude(HValue v) {
             return v != null && !v.equals(val);
         }
+
+        @Override
+        public String toSql(List<Object> params) {
+            if (!isId())
+                return null;
+            if (!(val instanceof HReference))
+                return SQL_TRUE;
+            params.add(((HReference) val).getId());
+            return "id<>?";
+        }
     }
 
     //////////////////////////////////////////////////////////////////////////
@@ -650,6 +701,18 @@ public abstract class Filter {
 
         abstract String keyword();
 
+        @Override
+        public final String toSql(List<Object> params) {
+            int mark = params.size();
+            String sa = a.toSql(params);
+            String sb = sa == null ? null : b.toSql(params);
+            if (sb == null) {
+                params.subList(mark, params.size()).clear();
+                return null;
+            }
+            return "(" + sa + ") " + keyword().toUpperCase() + " (" + sb + ")";
+        }
+
         @Override
         final String toStr() {
             StringBuilder s = new StringBuilder();
@@ -725,6 +788,14 @@ public abstract class Filter {
             return !f.include(map, pather);
         }
 
+        @Override
+        public String toSql(List<Object> params) {
+            String sql = f.toSql(params);
+            if (sql == null)
+                return null;
+            return "NOT (" + sql + ")";
+        }
+
         @Override
         String toStr() {
             StringBuilder s = new StringBuilder();
@@ -10,6 +10,12 @@ package org.brickhouse.impl;
 import org.apache.commons.dbcp2.BasicDataSource;
 
 public class DataSourceBuilder {
+    /**
+     * Default size of the per-connection prepared statement pool. Each SqlTable uses fewer than 10 distinct SQL
+     * strings, so this comfortably covers a few dozen tables per connection.
+     */
+    public static final int DEFAULT_MAX_OPEN_PREPARED_STATEMENTS = 256;
+
     private final BasicDataSource ds;
 
     public DataSourceBuilder() {
@@ -36,6 +42,34 @@ public class DataSourceBuilder {
         return this;
     }
 
+    public DataSourceBuilder connectionProperty(String name, String value) {
+        ds.addConnectionProperty(name, value);
+        return this;
+    }
+
+    /**
+     * Enables DBCP's per-connection prepared statement pool, keyed by SQL. Closing a pooled statement returns it to
+     * the pool rather than closing it on the server, so repeated SQL is only parsed and planned once per connection.
+     * 
+     * @param maxOpenPerConnection
+     *            the maximum number of statements pooled for each connection, or a negative value for no limit.
+     */
+    public DataSourceBuilder poolPreparedStatements(int maxOpenPerConnection) {
+        ds.setPoolPreparedStatements(true);
+        ds.setMaxOpenPreparedStatements(maxOpenPerConnection);
+        return this;
+    }
+
+    /**
+     * Estimates the hit rate of the prepared statement pool; see DatabaseImpl.getStatementCacheStats. Prepares are
+     * attributed to their physical connections, so this allows access to the connections underneath the pool's
+     * wrappers, which DBCP otherwise denies.
+     */
+    public DataSourceBuilder trackStatementCache() {
+        ds.setAccessToUnderlyingConnectionAllowed(true);
+        return this;
+    }
+
     public BasicDataSource build() {
         return ds;
     }
@@ -9,23 +9,70 @@ package org.brickhouse.impl;
 
 import java.io.IOException;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.commons.dbcp2.BasicDataSource;
+import org.apache.commons.dbcp2.DelegatingConnection;
+import org.apache.commons.lang3.mutable.MutableInt;
 import org.brickhouse.Database;
+import org.brickhouse.StorageFormat;
+import org.brickhouse.binary.RecordCompressor;
+import org.brickhouse.datatype.HMap;
 import org.springframework.dao.DataAccessException;
+import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.JdbcUtils;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.StatementCacheStats;
 
 public abstract class DatabaseImpl implements Database {
     static final String STATS_SUFFIX = "_stats";
+    static final String MIGRATE_SUFFIX = "_migrate";
+    static final String OLD_SUFFIX = "_old";
+    static final String DICT_SUFFIX = "_dict";
+
+    /**
+     * Rows copied per bulk insert while migrating a table.
+     */
+    static final int MIGRATE_CHUNK_SIZE = 5000;
+
+    /**
+     * Default number of rows fetched per round trip by table scans.
+     */
+    public static final int DEFAULT_FETCH_SIZE = 1000;
+
+    /**
+     * Default number of rows that a bulk insert writes per transaction.
+     */
+    public static final int DEFAULT_BULK_COMMIT_INTERVAL = 50000;
 
     private final BasicDataSource ds;
     protected final JdbcTemplate jt;
+    private volatile int bulkCommitInterval = DEFAULT_BULK_COMMIT_INTERVAL;
+    private WriteBehindScheduler writeBehindScheduler;
 
     public DatabaseImpl(BasicDataSource ds) {
         this.ds = ds;
         jt = new JdbcTemplate(ds);
+
+        // Prepares can only be attributed to their physical connections with access to them.
+        if (ds.isPoolPreparedStatements() && ds.isAccessToUnderlyingConnectionAllowed())
+            jt.setStatementCacheStats(
+                    new StatementCacheStats(ds.getMaxOpenPreparedStatements(), DatabaseImpl::physicalConnection));
+    }
+
+    private static Object physicalConnection(Connection con) {
+        if (con instanceof DelegatingConnection) {
+            Connection inner = ((DelegatingConnection<?>) con).getInnermostDelegate();
+            if (inner != null)
+                return inner;
+        }
+        return con;
     }
 
     @Override
@@ -35,17 +82,115 @@ public abstract class DatabaseImpl implements Database {
 
     @Override
     public SqlTable getTable(String name, boolean create, boolean setDis, boolean stats) {
+        return getTable(name, create, setDis, stats, null);
+    }
+
+    @Override
+    public SqlTable getTable(String name, boolean create, boolean setDis, boolean stats, StorageFormat format) {
+        StorageFormat actual;
         if (!tableExists(name)) {
-            if (create)
-                createTable(name);
-            else
+            if (!create)
                 return null;
+            actual = format == null ? StorageFormat.JSON : format;
+            createTable(name, actual);
+        }
+        else {
+            actual = storageFormat(name);
+            if (format != null && format != actual)
+                throw new RuntimeException("Table " + name + " is stored as " + actual + ", not " + format);
         }
 
         if (stats && !tableExists(name + STATS_SUFFIX))
             createStatsTable(name);
 
-        return new SqlTable(jt, name, setDis, stats);
+        return new SqlTable(this, name, setDis, stats, codec(name, actual));
+    }
+
+    /**
+     * Binary tables get a compressor whether or not they are compressed, so that compression can be enabled later.
+     * If the table has compression dictionaries, the latest is used for writing.
+     */
+    private RecordCodec codec(final String name, StorageFormat format) {
+        if (format != StorageFormat.BINARY)
+            return RecordCodec.forFormat(format);
+
+        RecordCompressor compressor = new RecordCompressor(id -> loadDictionary(name, id));
+        if (tableExists(name + DICT_SUFFIX)) {
+            Integer id = jt.queryForObject("SELECT MAX(id) FROM " + name + DICT_SUFFIX, Integer.class);
+            if (id != null)
+                compressor.setDictionary(id, loadDictionary(name, id));
+        }
+        return new RecordCodec(format, compressor);
+    }
+
+    /**
+     * Stores a new compression dictionary for the given table.
+     * 
+     * @return the id of the dictionary
+     */
+    int saveDictionary(String name, byte[] dictionary) {
+        if (!tableExists(name + DICT_SUFFIX))
+            createDictionaryTable(name);
+        Integer max = jt.queryForObject("SELECT MAX(id) FROM " + name + DICT_SUFFIX, Integer.class);
+        int id = max == null ? 1 : max + 1;
+        jt.update("INSERT INTO " + name + DICT_SUFFIX + " (id, dict, ts) VALUES (?,?,?)", id, dictionary,
+                System.currentTimeMillis());
+        return id;
+    }
+
+    byte[] loadDictionary(String name, int id) {
+        try {
+            return jt.queryForObject("SELECT dict FROM " + name + DICT_SUFFIX + " WHERE id=?", byte[].class, id);
+        }
+        catch (EmptyResultDataAccessException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public int migrateTable(final String name, final StorageFormat format) {
+        if (!tableExists(name))
+            throw new RuntimeException("Table " + name + " does not exist");
+
+        final StorageFormat from = storageFormat(name);
+        if (from == format)
+            return 0;
+        final RecordCodec source = codec(name, from);
+        final RecordCodec target = RecordCodec.forFormat(format);
+
+        // Clear out anything left behind by a failed migration.
+        String temp = name + MIGRATE_SUFFIX;
+        if (tableExists(temp))
+            jt.execute("DROP TABLE " + temp);
+        createTable(temp, format);
+
+        final List<HMap> chunk = new ArrayList<>(MIGRATE_CHUNK_SIZE);
+        final MutableInt count = new MutableInt();
+        jt.queryStreaming("SELECT " + from.getColumn() + " FROM " + name, new RowCallbackHandler() {
+            @Override
+            public void processRow(ResultSet rs) throws SQLException {
+                chunk.add(source.read(rs, 1));
+                if (chunk.size() == MIGRATE_CHUNK_SIZE) {
+                    bulkInsert(temp, target, chunk);
+                    count.add(chunk.size());
+                    chunk.clear();
+                }
+            }
+        });
+        if (!chunk.isEmpty()) {
+            bulkInsert(temp, target, chunk);
+            count.add(chunk.size());
+        }
+
+        jt.execute("ALTER TABLE " + name + " RENAME TO " + name + OLD_SUFFIX);
+        jt.execute("ALTER TABLE " + temp + " RENAME TO " + name);
+        jt.execute("DROP TABLE " + name + OLD_SUFFIX);
+
+        // The migrated rows are not compressed.
+        if (tableExists(name + DICT_SUFFIX))
+            jt.execute("DROP TABLE " + name + DICT_SUFFIX);
+
+        return count.intValue();
     }
 
     @Override
@@ -58,8 +203,68 @@ public abstract class DatabaseImpl implements Database {
         return jt;
     }
 
+    /**
+     * @return the maximum number of connections in the pool, or a negative number if there is no limit.
+     */
+    public int getMaxConnections() {
+        return ds.getMaxTotal();
+    }
+
+    /**
+     * @return the scheduler that the memory tables of this database write behind on, which is started when it is first
+     *         asked for. It has half as many threads as the connection pool has connections, leaving the rest for
+     *         reads.
+     */
+    public synchronized WriteBehindScheduler getWriteBehindScheduler() {
+        if (writeBehindScheduler == null)
+            writeBehindScheduler = new WriteBehindScheduler(getWriteBehindThreads());
+        return writeBehindScheduler;
+    }
+
+    int getWriteBehindThreads() {
+        int pool = getMaxConnections();
+        if (pool < 0)
+            return Runtime.getRuntime().availableProcessors();
+        return Math.max(1, pool / 2);
+    }
+
+    /**
+     * @return the estimated hit rate of the prepared statement pool, or null if statements are not pooled or the data
+     *         source was not built with DataSourceBuilder.trackStatementCache. The PostgreSQL and MySQL databases
+     *         always track it.
+     */
+    public StatementCacheStats getStatementCacheStats() {
+        return jt.getStatementCacheStats();
+    }
+
+    /**
+     * Sets the number of rows fetched per round trip by table scans. Scans stream their results rather than buffering
+     * them, so this trades memory against round trips.
+     */
+    public void setFetchSize(int fetchSize) {
+        jt.setFetchSize(fetchSize);
+    }
+
+    /**
+     * Sets the number of rows that a bulk insert writes per transaction. If a bulk insert fails, transactions that
+     * were already committed remain.
+     */
+    public void setBulkCommitInterval(int bulkCommitInterval) {
+        if (bulkCommitInterval < 1)
+            throw new IllegalArgumentException("bulkCommitInterval must be positive");
+        this.bulkCommitInterval = bulkCommitInterval;
+    }
+
+    public int getBulkCommitInterval() {
+        return bulkCommitInterval;
+    }
+
     @Override
     public void close() throws IOException {
+        synchronized (this) {
+            if (writeBehindScheduler != null)
+                writeBehindScheduler.close();
+        }
         try {
             ds.close();
         }
@@ -77,7 +282,113 @@ public abstract class DatabaseImpl implements Database {
         });
     }
 
-    abstract protected void createTable(String name);
+    /**
+     * Determines the storage format of an existing table from its columns.
+     */
+    protected StorageFormat storageFormat(final String name) {
+        return jt.execute(new ConnectionCallback<StorageFormat>() {
+            @Override
+            public StorageFormat doInConnection(Connection con) throws SQLException, DataAccessException {
+                ResultSet rs = con.getMetaData().getColumns(null, null, name.toLowerCase(),
+                        StorageFormat.BINARY.getColumn());
+                try {
+                    return rs.next() ? StorageFormat.BINARY : StorageFormat.JSON;
+                }
+                finally {
+                    JdbcUtils.closeResultSet(rs);
+                }
+            }
+        });
+    }
+
+    /**
+     * Inserts the given rows into the given table using the fastest mechanism that the database offers, committing
+     * every bulkCommitInterval rows. The rows must already have been validated and cleaned.
+     */
+    void bulkInsert(String name, RecordCodec codec, List<HMap> rows) {
+        inChunks(rows, (con, chunk) -> bulkInsert(con, name, codec, chunk));
+    }
+
+    /**
+     * Inserts or replaces the given rows in the given table, committing every bulkCommitInterval rows. The rows must
+     * already have been validated and cleaned.
+     */
+    void bulkUpsert(String name, RecordCodec codec, List<HMap> rows) {
+        inChunks(rows, (con, chunk) -> bulkUpsert(con, name, codec, chunk));
+    }
+
+    interface ChunkWriter {
+        void write(Connection con, List<HMap> chunk) throws SQLException;
+    }
+
+    private void inChunks(final List<HMap> rows, final ChunkWriter writer) {
+        final int interval = bulkCommitInterval;
+
+        jt.execute(new ConnectionCallback<Object>() {
+            @Override
+            public Object doInConnection(Connection con) throws SQLException {
+                boolean autoCommit = con.getAutoCommit();
+                if (autoCommit)
+                    con.setAutoCommit(false);
+                try {
+                    for (int from = 0; from < rows.size(); from += interval) {
+                        List<HMap> chunk = rows.subList(from, Math.min(rows.size(), from + interval));
+                        try {
+                            writer.write(con, chunk);
+                            con.commit();
+                        }
+                        catch (SQLException | RuntimeException e) {
+                            con.rollback();
+                            throw e;
+                        }
+                    }
+                }
+                finally {
+                    if (autoCommit)
+                        con.setAutoCommit(true);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Writes the given rows on the given connection. Transactions are handled by the caller.
+     */
+    abstract void bulkInsert(Connection con, String name, RecordCodec codec, List<HMap> rows) throws SQLException;
+
+    /**
+     * Upserts the given rows on the given connection as a JDBC batch of upsertSql statements. Transactions are
+     * handled by the caller.
+     */
+    void bulkUpsert(Connection con, String name, RecordCodec codec, List<HMap> rows) throws SQLException {
+        PreparedStatement ps = con.prepareStatement(upsertSql(name, codec.format));
+        try {
+            for (HMap row : rows) {
+                ps.setString(1, row.id().getId());
+                ps.setString(2, row.disOrNull());
+                codec.set(ps, 3, row);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+        finally {
+            JdbcUtils.closeStatement(ps);
+        }
+    }
+
+    /**
+     * Returns SQL that inserts a row with the parameters (id, dis, record), or replaces the dis and record of the row
+     * if the id already exists.
+     */
+    abstract protected String upsertSql(String name, StorageFormat format);
+
+    abstract protected void createTable(String name, StorageFormat format);
 
     abstract protected void createStatsTable(String name);
+
+    /**
+     * Creates the table of compression dictionaries, with the columns (id, dict, ts).
+     */
+    abstract protected void createDictionaryTable(String name);
 }
@@ -0,0 +1,187 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.impl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.brickhouse.Table;
+import org.brickhouse.TableTx;
+import org.brickhouse.datatype.HDateTime;
+import org.brickhouse.datatype.HList;
+import org.brickhouse.datatype.HMap;
+import org.brickhouse.datatype.HReference;
+import org.brickhouse.datatype.HValue;
+import org.brickhouse.json.JsonDecoder;
+import org.brickhouse.json.JsonEncoder;
+
+/**
+ * A local file of writes that could not be written behind, so that they can be replayed once the problem has been
+ * fixed. Each line is a JSON map with the operation ("insert", "update", "upsert", "delete", "diff" or "transaction"),
+ * its row, id, diff or ops, the error and the time that it failed.
+ */
+public class DeadLetterFile {
+    private static final Logger LOG = Logger.getLogger(DeadLetterFile.class.getName());
+
+    private final File file;
+    private int count;
+
+    public DeadLetterFile(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the number of writes that have been added since this was created.
+     */
+    public synchronized int getCount() {
+        return count;
+    }
+
+    static HMap rowEntry(String op, HMap row) {
+        return new HMap().put("op", op).put("row", row);
+    }
+
+    static HMap deleteEntry(String id) {
+        return new HMap().put("op", "delete").put("id", id);
+    }
+
+    static HMap diffEntry(HReference id, HMap diff) {
+        return new HMap().put("op", "diff").put("id", id.getId()).put("diff", diff);
+    }
+
+    static HMap transactionEntry(List<TableTx.Op> ops) {
+        HList list = new HList();
+        for (TableTx.Op op : ops) {
+            if (op.type == TableTx.OpType.DELETE)
+                list.add(deleteEntry(op.id));
+            else
+                list.add(rowEntry(op.type.name().toLowerCase(), op.row));
+        }
+        return new HMap().put("op", "transaction").put("ops", list);
+    }
+
+    /**
+     * Appends the entry, with the error that it failed with.
+     */
+    synchronized void add(HMap entry, Throwable error) {
+        entry.put("error", String.valueOf(error));
+        entry.put("ts", HDateTime.now());
+        LOG.warning("Write behind failed, writing to " + file + ": " + error);
+
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8)) {
+            out.write(JsonEncoder.toDbJson(entry));
+            out.write('\n');
+            count++;
+        }
+        catch (IOException e) {
+            // Nowhere else to put it.
+            LOG.log(Level.SEVERE, "Failed to write dead letter " + entry, e);
+        }
+    }
+
+    /**
+     * Applies the writes in the file to the given table, in the order in which they failed. Inserts are applied as
+     * upserts, in case they were partly written. The writes that fail again are kept in the file, and the rest are
+     * removed.
+     *
+     * Since the rows are written as they were when they failed, any later writes to them are overwritten.
+     *
+     * @return the number of writes that were applied.
+     */
+    public synchronized int replay(Table table) {
+        if (!file.exists())
+            return 0;
+
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.isEmpty())
+                    lines.add(line);
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        int applied = 0;
+        List<String> failed = new ArrayList<>();
+        for (String line : lines) {
+            HMap entry = JsonDecoder.readDbMap(line);
+            try {
+                apply(table, entry);
+                applied++;
+            }
+            catch (RuntimeException e) {
+                entry.put("error", String.valueOf(e));
+                failed.add(JsonEncoder.toDbJson(entry));
+            }
+        }
+
+        if (failed.isEmpty())
+            file.delete();
+        else {
+            try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+                for (String line : failed) {
+                    out.write(line);
+                    out.write('\n');
+                }
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return applied;
+    }
+
+    private static void apply(Table table, HMap entry) {
+        String op = entry.getString("op");
+        if ("transaction".equals(op)) {
+            final HList ops = entry.get("ops");
+            table.transaction(tx -> {
+                for (HValue value : ops.getList()) {
+                    HMap txEntry = (HMap) value;
+                    String txOp = txEntry.getString("op");
+                    if ("delete".equals(txOp))
+                        tx.delete(txEntry.getString("id"));
+                    else if ("update".equals(txOp))
+                        tx.update(txEntry.get("row"));
+                    else
+                        tx.upsert(txEntry.get("row"));
+                }
+            });
+        }
+        else if ("insert".equals(op) || "upsert".equals(op))
+            table.upsert(entry.get("row"));
+        else if ("update".equals(op))
+            table.updateById(entry.<HMap> get("row"));
+        else if ("delete".equals(op))
+            table.deleteById(entry.getString("id"));
+        else if ("diff".equals(op))
+            table.applyDiff(new HReference(entry.getString("id")), entry.get("diff"));
+        else
+            throw new RuntimeException("Unknown dead letter operation: " + op);
+    }
+}
@@ -7,45 +7,143 @@
  */
 package org.brickhouse.impl;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.apache.commons.lang3.mutable.MutableInt;
+import org.apache.commons.lang3.mutable.MutableObject;
 import org.brickhouse.CancelReadException;
 import org.brickhouse.Database;
 import org.brickhouse.Table;
 import org.brickhouse.TableListener;
+import org.brickhouse.TableTx;
 import org.brickhouse.datatype.HMap;
 import org.brickhouse.datatype.HReference;
 import org.brickhouse.datatype.HValue;
 import org.brickhouse.filter.Filter;
 import org.brickhouse.filter.Filter.Pather;
 
+/**
+ * A table that is held in memory, with writes passed on to the database table in the background.
+ *
+ * Rows are versioned. Each write commits a new version of the table, with a new version of each row that it changes
+ * (or a tombstone for each row that it deletes) linked to the row's previous versions. Scans pin the latest version
+ * when they start and see the table exactly as it was at that version, however long they take, while writers carry
+ * on. Writers commit one at a time, but never wait for readers. Row versions that no pinned scan can see any more are
+ * dropped as rows are written, and swept when the last scan finishes.
+ */
 public class MemoryTable implements Table {
+    private static final Logger LOG = Logger.getLogger(MemoryTable.class.getName());
+
     final SqlTable delegate;
-    final Map<String, HMap> data = new ConcurrentHashMap<>();
+    final Map<String, Version> data = new ConcurrentHashMap<>();
     private final boolean setDis;
     private final boolean stats;
 
-    private final WriteBehind writeBehind;
-    private final Thread writeBehindThread;
+    // Each lane holds the writes behind of a partition of the ids, so that the writes to any one row stay in order.
+    private final WriteBehind[] lanes;
+    private final WriteBehindScheduler scheduler;
+    private final boolean ownScheduler;
+    private volatile RetryPolicy retryPolicy = new RetryPolicy();
+    private volatile DeadLetterFile deadLetters;
+    private final AtomicLong retries = new AtomicLong();
+    private volatile boolean closing;
+
+    // Writers commit while holding this lock.
+    private final Object commitLock = new Object();
+    // The latest committed version. All row versions up to this one are in the data map.
+    private volatile long visible;
+    // The versions pinned by scans, with the number of scans on each.
+    private final TreeMap<Long, Integer> snapshots = new TreeMap<>();
+    // The ids of the rows whose older versions have been kept for pinned scans.
+    private final Set<String> retained = ConcurrentHashMap.newKeySet();
+    private final AtomicLong skippedWrites = new AtomicLong();
+
+    static class Version {
+        final HMap row; // null if the row was deleted
+        final long version;
+        volatile Version older;
+        private long hash; // 0 until needed
+        private boolean hashed;
+
+        Version(HMap row, long version, Version older) {
+            this.row = row;
+            this.version = version;
+            this.older = older;
+        }
+
+        /**
+         * Checks the hashes first, so that the rows are only compared in full when they are very likely to be the
+         * same. Must be called while holding the commit lock.
+         */
+        boolean sameAs(HMap other, long otherHash) {
+            if (row == null)
+                return false;
+            if (!hashed) {
+                hash = row.contentHash();
+                hashed = true;
+            }
+            return hash == otherHash && row.equals(other);
+        }
+    }
 
+    /**
+     * Writes behind on the database's shared scheduler, in as many partitions as it has threads.
+     */
     public MemoryTable(Database database, String name, boolean create, boolean setDis, boolean stats) {
-        delegate = database.getTable(name, create, false, false);
+        this(database, name, create, setDis, stats, 0);
+    }
+
+    /**
+     * @param partitions
+     *            the number of partitions of the rows that can be written behind at the same time. If 0, the number of
+     *            the scheduler's threads is used.
+     */
+    public MemoryTable(Database database, String name, boolean create, boolean setDis, boolean stats,
+            int partitions) {
+        this(database.getTable(name, create, false, false), null, setDis, stats, partitions);
+    }
+
+    /**
+     * @param scheduler
+     *            the scheduler to write behind on, which is left running when the table is closed. If null, the
+     *            database's shared scheduler is used, or one of the table's own if the delegate has no database.
+     */
+    MemoryTable(SqlTable delegate, WriteBehindScheduler scheduler, boolean setDis, boolean stats, int partitions) {
+        this.delegate = delegate;
         this.setDis = setDis;
         this.stats = stats;
 
         // Initialize the in-memory table.
-        delegate.readAll(Filter.ALL, map -> data.put(map.id().getId(), map), false);
+        delegate.readAll(Filter.ALL, map -> data.put(map.id().getId(), new Version(map, 0, null)), false);
 
-        writeBehind = new WriteBehind();
-        writeBehindThread = new Thread(writeBehind, "Brickhouse write-behind");
-        writeBehindThread.start();
+        if (partitions <= 0)
+            partitions = delegate.db == null ? 1 : delegate.db.getWriteBehindThreads();
+        ownScheduler = scheduler == null && delegate.db == null;
+        if (scheduler != null)
+            this.scheduler = scheduler;
+        else
+            this.scheduler = ownScheduler ? new WriteBehindScheduler(partitions)
+                    : delegate.db.getWriteBehindScheduler();
+        lanes = new WriteBehind[partitions];
+        for (int i = 0; i < partitions; i++)
+            lanes[i] = new WriteBehind();
     }
 
     @Override
@@ -55,18 +153,12 @@ public class MemoryTable implements Table {
 
     @Override
     public HMap read(Filter filter, boolean setDis) {
-        HMap result = null;
-
-        for (HMap row : data.values()) {
-            if (filter.include(row, pather)) {
-                result = new HMap(row);
-                break;
-            }
-        }
-
-        if (setDis)
-            return fillDii(result);
-        return result;
+        final MutableObject<HMap> result = new MutableObject<>();
+        readAll(filter, row -> {
+            result.setValue(row);
+            throw new CancelReadException();
+        }, setDis, false);
+        return result.getValue();
     }
 
     @Override
@@ -76,12 +168,12 @@ public class MemoryTable implements Table {
 
     @Override
     public HMap readById(String id, boolean setDis) {
-        HMap result = data.get(id);
+        HMap result = latest(id);
         if (result == null)
             return null;
         result = new HMap(result);
         if (setDis)
-            return fillDii(result);
+            return fillDii(result, pather);
         return result;
     }
 
@@ -102,17 +194,33 @@ public class MemoryTable implements Table {
 
     @Override
     public void readAll(Filter filter, Consumer<HMap> consumer, boolean fillDii) {
+        readAll(filter, consumer, fillDii, stats);
+    }
+
+    private void readAll(Filter filter, Consumer<HMap> consumer, boolean fillDii, boolean saveStats) {
         long start = System.nanoTime();
         int count = 0;
         int included = 0;
 
+        final long snapshot = pin();
         try {
-            for (HMap row : data.values()) {
+            Pather snapshotPather = new Pather() {
+                @Override
+                public HMap find(String ref) {
+                    return rowAt(data.get(ref), snapshot);
+                }
+            };
+
+            for (Version head : data.values()) {
+                HMap row = rowAt(head, snapshot);
+                if (row == null)
+                    continue;
                 count++;
-                if (filter.include(row, pather)) {
+                if (filter.include(row, snapshotPather)) {
+                    row = new HMap(row);
                     if (fillDii)
-                        fillDii(row);
-                    consumer.accept(new HMap(row));
+                        fillDii(row, snapshotPather);
+                    consumer.accept(row);
                     included++;
                 }
             }
@@ -120,8 +228,11 @@ public class MemoryTable implements Table {
         catch (CancelReadException e) {
             // no op
         }
+        finally {
+            release(snapshot);
+        }
 
-        if (stats)
+        if (saveStats)
             delegate.saveStats(filter.toString(), count, included, fillDii, System.nanoTime() - start,
                     System.currentTimeMillis());
     }
@@ -147,42 +258,143 @@ public class MemoryTable implements Table {
 
     @Override
     public void insert(HMap record) {
-        HReference id = record.id();
-        if (id == null)
-            throw new RuntimeException("id is required");
-        HMap copy = clean(new HMap(record));
-        clean(copy);
-        data.put(id.getId(), copy);
-        writeBehind.tasks.add(new InsertTask(copy));
+        HMap copy = copy(record);
+        synchronized (commitLock) {
+            long version = visible + 1;
+            put(copy, version);
+            commit(version);
+            writeBehind(copy.id().getId(), new InsertTask(copy));
+        }
+        prune(copy.id().getId());
     }
 
     @Override
     public void batchInsert(List<HMap> records) {
-        for (HMap row : records)
-            insert(row);
+        List<HMap> copies = copies(records);
+        synchronized (commitLock) {
+            long version = visible + 1;
+            for (HMap copy : copies)
+                put(copy, version);
+            commit(version);
+            for (HMap copy : copies)
+                writeBehind(copy.id().getId(), new InsertTask(copy));
+        }
+        prune(copies);
     }
 
     @Override
     public int updateById(HMap map) {
-        HReference id = map.id();
+        HMap copy = copy(map);
+        String id = copy.id().getId();
+        synchronized (commitLock) {
+            if (current(id) == null)
+                return 0;
+            if (unchanged(copy))
+                return 1;
+            long version = visible + 1;
+            put(copy, version);
+            commit(version);
+            writeBehind(id, new UpdateTask(copy));
+        }
+        prune(id);
+        return 1;
+    }
+
+    @Override
+    public int applyDiff(HReference id, HMap diff) {
         if (id == null)
             throw new RuntimeException("id is required");
-        if (data.containsKey(id.getId())) {
-            HMap copy = clean(new HMap(map));
-            data.put(id.getId(), copy);
-            writeBehind.tasks.add(new UpdateTask(copy));
-            return 1;
+        HMap changes = new HMap(diff);
+        changes.remove("id");
+        synchronized (commitLock) {
+            HMap row = current(id.getId());
+            if (row == null)
+                return 0;
+            HMap merged = new HMap(row).merge(changes);
+            if (unchanged(merged))
+                return 1;
+            long version = visible + 1;
+            put(merged, version);
+            commit(version);
+            writeBehind(id.getId(), new DiffTask(id, changes));
         }
-        return 0;
+        prune(id.getId());
+        return 1;
+    }
+
+    @Override
+    public int batchUpdate(List<HMap> records) {
+        List<HMap> copies = copies(records);
+        List<HMap> updated = new ArrayList<>(copies.size());
+        int count = 0;
+        synchronized (commitLock) {
+            long version = visible + 1;
+            for (HMap copy : copies) {
+                if (current(copy.id().getId()) != null) {
+                    count++;
+                    if (!unchanged(copy)) {
+                        put(copy, version);
+                        updated.add(copy);
+                    }
+                }
+            }
+            if (updated.isEmpty())
+                return count;
+            commit(version);
+            writeBehind(updated, BatchUpdateTask::new);
+        }
+        prune(updated);
+        return count;
+    }
+
+    @Override
+    public void upsert(HMap record) {
+        HMap copy = copy(record);
+        synchronized (commitLock) {
+            if (unchanged(copy))
+                return;
+            long version = visible + 1;
+            put(copy, version);
+            commit(version);
+            writeBehind(copy.id().getId(), new UpsertTask(copy));
+        }
+        prune(copy.id().getId());
+    }
+
+    @Override
+    public void batchUpsert(List<HMap> records) {
+        List<HMap> copies = copies(records);
+        if (copies.isEmpty())
+            return;
+        List<HMap> changed = new ArrayList<>(copies.size());
+        synchronized (commitLock) {
+            long version = visible + 1;
+            for (HMap copy : copies) {
+                if (!unchanged(copy)) {
+                    put(copy, version);
+                    changed.add(copy);
+                }
+            }
+            if (changed.isEmpty())
+                return;
+            commit(version);
+            writeBehind(changed, BatchUpsertTask::new);
+        }
+        prune(changed);
     }
 
     @Override
     public int deleteById(String id) {
-        if (data.remove(id) != null) {
-            writeBehind.tasks.add(new DeleteTask(id));
-            return 1;
+        synchronized (commitLock) {
+            if (current(id) == null)
+                return 0;
+            long version = visible + 1;
+            delete(id, version);
+            commit(version);
+            writeBehind(id, new DeleteTask(id));
         }
-        return 0;
+        prune(id);
+        return 1;
     }
 
     @Override
@@ -192,15 +404,80 @@ public class MemoryTable implements Table {
 
     @Override
     public int deleteAll(Filter filter) {
-        int count = 0;
-        for (Entry<String, HMap> e : data.entrySet()) {
-            if (filter.include(e.getValue(), pather)) {
-                data.remove(e.getKey());
-                count++;
-                writeBehind.tasks.add(new DeleteTask(e.getKey()));
+        // The filter is evaluated while holding the commit lock, so that no row can be written between being matched
+        // and being deleted.
+        List<String> ids = new ArrayList<>();
+        synchronized (commitLock) {
+            for (Entry<String, Version> e : data.entrySet()) {
+                HMap row = e.getValue().row;
+                if (row != null && filter.include(row, pather))
+                    ids.add(e.getKey());
+            }
+            if (ids.isEmpty())
+                return 0;
+
+            long version = visible + 1;
+            for (String id : ids) {
+                delete(id, version);
+                writeBehind(id, new DeleteTask(id));
             }
+            commit(version);
         }
-        return count;
+        for (String id : ids)
+            prune(id);
+        return ids.size();
+    }
+
+    @Override
+    public int transaction(Consumer<TableTx> work) {
+        TableTx tx = new TableTx();
+        work.accept(tx);
+
+        List<TableTx.Op> ops = tx.getOps();
+        HMap[] copies = new HMap[ops.size()];
+        for (int i = 0; i < copies.length; i++) {
+            if (ops.get(i).row != null)
+                copies[i] = copy(ops.get(i).row);
+        }
+
+        // The operations that changed something, to be written behind as one transaction.
+        TableTx applied = new TableTx();
+        synchronized (commitLock) {
+            long version = visible + 1;
+            for (int i = 0; i < copies.length; i++) {
+                TableTx.Op op = ops.get(i);
+                switch (op.type) {
+                case INSERT:
+                    put(copies[i], version);
+                    applied.insert(copies[i]);
+                    break;
+                case UPDATE:
+                    if (current(op.id) != null) {
+                        put(copies[i], version);
+                        applied.update(copies[i]);
+                    }
+                    break;
+                case UPSERT:
+                    put(copies[i], version);
+                    applied.upsert(copies[i]);
+                    break;
+                case DELETE:
+                    if (current(op.id) != null) {
+                        delete(op.id, version);
+                        applied.delete(op.id);
+                    }
+                    break;
+                }
+            }
+            if (applied.getOps().isEmpty())
+                return 0;
+            commit(version);
+            writeBehind(applied.getOps());
+        }
+
+        for (TableTx.Op op : applied.getOps())
+            prune(op.id);
+        return applied.getOps().size();
     }
 
     @Override
@@ -208,18 +485,69 @@ public class MemoryTable implements Table {
         return filter.include(map, pather);
     }
 
+    /**
+     * Waits for the writes behind to finish. If the thread is interrupted first, the remaining writes are logged as
+     * not written and the thread's interrupt status is left set.
+     */
     @Override
     public void close() {
-        writeBehind.running = false;
-        synchronized (writeBehind) {
-            writeBehind.notify();
-        }
-        try {
-            writeBehindThread.join();
-        }
-        catch (InterruptedException e) {
-            // no op
+        closing = true;
+        for (WriteBehind lane : lanes)
+            scheduler.flush(lane);
+        for (WriteBehind lane : lanes) {
+            if (!scheduler.awaitIdle(lane)) {
+                LOG.warning("Interrupted while closing " + delegate.name + ", with " + getWriteBehindBacklog()
+                        + " writes not yet written behind");
+                break;
+            }
         }
+        if (ownScheduler)
+            scheduler.close();
+    }
+
+    /**
+     * Sets how failed writes behind are retried. The default retries after 100ms, doubling up to 30s, and stops trying
+     * for 30s after 5 failures in a row.
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Sets where writes that cannot be written behind are kept. There is none by default, in which case they are
+     * logged and dropped.
+     */
+    public void setDeadLetterFile(DeadLetterFile deadLetters) {
+        this.deadLetters = deadLetters;
+    }
+
+    public DeadLetterFile getDeadLetterFile() {
+        return deadLetters;
+    }
+
+    /**
+     * @return the number of times that writes behind have been retried after failing.
+     */
+    public long getWriteBehindRetries() {
+        return retries.get();
+    }
+
+    /**
+     * @return the number of writes that are waiting to be written behind.
+     */
+    public int getWriteBehindBacklog() {
+        int backlog = 0;
+        for (WriteBehind lane : lanes)
+            backlog += lane.size() + lane.pending.size();
+        return backlog;
+    }
+
+    /**
+     * @return the number of rows whose writes were skipped because they were the same as the stored row, and so were
+     *         not written behind or passed to the listeners.
+     */
+    public long getSkippedWrites() {
+        return skippedWrites.get();
     }
 
     @Override
@@ -238,18 +566,18 @@ public class MemoryTable implements Table {
     Pather pather = new Pather() {
         @Override
         public HMap find(String ref) {
-            return data.get(ref);
+            return latest(ref);
         }
     };
 
-    HMap fillDii(HMap map) {
+    HMap fillDii(HMap map, Pather pather) {
         if (map != null) {
             HMap refs = null;
             for (Entry<String, HValue> e : map.entrySet()) {
                 /* Don't fill id fields. */
                 if (e.getValue() instanceof HReference && !"id".equals(e.getKey())) {
                     HReference r = (HReference) e.getValue();
-                    HMap referent = data.get(r.getId());
+                    HMap referent = pather.find(r.getId());
                     if (referent != null) {
                         String dis = referent.disOrNull();
                         if (dis != null) {
@@ -267,42 +595,397 @@ public class MemoryTable implements Table {
         return map;
     }
 
+    private HMap copy(HMap record) {
+        HReference id = record.id();
+        if (id == null)
+            throw new RuntimeException("id is required");
+        return clean(new HMap(record));
+    }
+
+    private List<HMap> copies(List<HMap> records) {
+        List<HMap> copies = new ArrayList<>(records.size());
+        for (HMap record : records)
+            copies.add(copy(record));
+        return copies;
+    }
+
+    //
+    // Versions
     //
-    // Write-behind thread
-    static class WriteBehind implements Runnable {
-        ConcurrentLinkedQueue<WriteBehindTask> tasks = new ConcurrentLinkedQueue<>();
-        volatile boolean running = true;
+    /**
+     * @return the row as of the given version, or null if it did not exist then.
+     */
+    static HMap rowAt(Version v, long version) {
+        while (v != null && v.version > version)
+            v = v.older;
+        return v == null ? null : v.row;
+    }
+
+    /**
+     * @return the row as of the latest committed version.
+     */
+    HMap latest(String id) {
+        while (true) {
+            long version = visible;
+            Version head = data.get(id);
+            HMap row = rowAt(head, version);
+            // If there is no version old enough, the row may have been written and its older versions dropped since
+            // the version was read.
+            if (row != null || visible == version)
+                return row;
+        }
+    }
+
+    /**
+     * @return the newest version of the row, including any uncommitted version. Must be called while holding the
+     *         commit lock.
+     */
+    private HMap current(String id) {
+        Version head = data.get(id);
+        return head == null ? null : head.row;
+    }
+
+    /**
+     * Checks whether the row is the same as the newest version that is stored, in which case writing it would change
+     * nothing, and counts it as skipped if so. Must be called while holding the commit lock.
+     */
+    private boolean unchanged(HMap row) {
+        Version head = data.get(row.id().getId());
+        if (head == null || !head.sameAs(row, row.contentHash()))
+            return false;
+        skippedWrites.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Adds a new version of a row. Must be called while holding the commit lock.
+     */
+    private void put(HMap row, long version) {
+        String id = row.id().getId();
+        data.put(id, new Version(row, version, data.get(id)));
+    }
+
+    private void delete(String id, long version) {
+        data.put(id, new Version(null, version, data.get(id)));
+    }
+
+    private void commit(long version) {
+        visible = version;
+    }
+
+    /**
+     * Pins the latest version for a scan, so that the row versions that it can see are kept until it is released.
+     */
+    private long pin() {
+        synchronized (snapshots) {
+            long version = visible;
+            Integer count = snapshots.get(version);
+            snapshots.put(version, count == null ? 1 : count + 1);
+            return version;
+        }
+    }
+
+    private void release(long version) {
+        boolean idle;
+        synchronized (snapshots) {
+            int count = snapshots.get(version);
+            if (count == 1)
+                snapshots.remove(version);
+            else
+                snapshots.put(version, count - 1);
+            idle = snapshots.isEmpty();
+        }
+
+        // Sweep out the versions that were kept for the scans.
+        if (idle) {
+            for (Iterator<String> it = retained.iterator(); it.hasNext();) {
+                String id = it.next();
+                it.remove();
+                prune(id);
+            }
+        }
+    }
+
+    /**
+     * @return the oldest version that a scan may be reading.
+     */
+    private long horizon() {
+        synchronized (snapshots) {
+            return snapshots.isEmpty() ? visible : snapshots.firstKey();
+        }
+    }
+
+    private void prune(List<HMap> rows) {
+        for (HMap row : rows)
+            prune(row.id().getId());
+    }
+
+    /**
+     * Drops the versions of a row that are older than any scan can see, and the row itself if all that is left is a
+     * tombstone.
+     */
+    private void prune(String id) {
+        long horizon = horizon();
+        Version head = data.get(id);
+        Version v = head;
+        while (v != null && v.version > horizon)
+            v = v.older;
+        if (v == null)
+            return;
+
+        v.older = null;
+        if (v != head)
+            retained.add(id);
+        else if (v.row == null)
+            data.remove(id, v);
+    }
+
+    //
+    // Write behind
+    class WriteBehind extends WriteBehindScheduler.Lane<WriteBehindTask> {
+        // Tasks taken from the queue, with runs of row writes of the same type combined into batches.
+        final Deque<WriteBehindTask> pending = new ArrayDeque<>();
+        // The number of times that the first pending task has been retried.
+        private int retry;
+
+        WriteBehind() {
+            super(scheduler);
+        }
 
         @Override
-        public void run() {
-            WriteBehindTask task;
+        protected boolean hasPending() {
+            return !pending.isEmpty();
+        }
 
-            while (running) {
-                while ((task = tasks.poll()) != null)
+        /**
+         * Executes the pending tasks in order. A task that fails transiently is retried, after a delay in which the
+         * scheduler's thread can process other lanes. A task that fails otherwise is split into its rows to find the
+         * ones that fail, and those are written to the dead letter file, if there is one. Writes to the table carry on
+         * meanwhile, and are written behind once the database is back.
+         */
+        @Override
+        protected long process(int maxTasks) {
+            if (pending.isEmpty()) {
+                List<WriteBehindTask> taken = new ArrayList<>();
+                WriteBehindTask task;
+                while (taken.size() < maxTasks && (task = poll()) != null) {
+                    taken.add(task);
+                    // Nothing after a spanning task can be written until it is done.
+                    if (task instanceof SpanningTask)
+                        break;
+                }
+                pending.addAll(coalesce(taken));
+            }
+
+            while (!pending.isEmpty()) {
+                WriteBehindTask task = pending.peekFirst();
+                if (task instanceof SpanningTask) {
+                    pending.removeFirst();
+                    SpanningTask spanning = (SpanningTask) task;
+                    if (!spanning.arrive(this))
+                        return WriteBehindScheduler.PARK;
+                    // This was the last lane to reach it.
+                    pending.addFirst(new ResumeTask(spanning.parked));
+                    pending.addFirst(spanning.task);
+                    continue;
+                }
+                if (task instanceof ResumeTask) {
+                    // Whatever became of the spanning task.
+                    done();
                     task.execute();
+                    continue;
+                }
 
-                if (running) {
-                    synchronized (this) {
-                        try {
-                            wait(200);
-                        }
-                        catch (InterruptedException e) {
-                            // no op
-                        }
+                long delay = attempt(task);
+                if (delay > 0)
+                    return delay;
+            }
+            return 0;
+        }
+
+        /**
+         * @return the milliseconds to wait before retrying the task, or 0 if it is done with.
+         */
+        private long attempt(WriteBehindTask task) {
+            if (closing && retryPolicy.isOpen()) {
+                done();
+                task.deadLetter(new RuntimeException("The table was closed while the database was unavailable"));
+                return 0;
+            }
+
+            try {
+                task.execute();
+                retryPolicy.success();
+                done();
+                return 0;
+            }
+            catch (RuntimeException e) {
+                if (!retryPolicy.isTransient(e)) {
+                    done();
+                    List<WriteBehindTask> parts = task.split();
+                    if (parts == null)
+                        task.deadLetter(e);
+                    else {
+                        for (int i = parts.size() - 1; i >= 0; i--)
+                            pending.addFirst(parts.get(i));
                     }
+                    return 0;
                 }
+
+                retryPolicy.failure();
+                retries.incrementAndGet();
+                if (closing) {
+                    done();
+                    task.deadLetter(e);
+                    return 0;
+                }
+                // The task may have been partly written.
+                task.retried = true;
+                return Math.max(1, retryPolicy.delay(retry++));
             }
+        }
 
-            // One last check
-            while ((task = tasks.poll()) != null)
-                task.execute();
+        private void done() {
+            pending.removeFirst();
+            retry = 0;
+        }
+    }
 
-            System.out.println("Write-behind done");
+    private List<WriteBehindTask> coalesce(List<WriteBehindTask> tasks) {
+        List<WriteBehindTask> result = new ArrayList<>();
+        TableTx.OpType batchType = null;
+        List<WriteBehindTask> run = new ArrayList<>();
+        // A batch holds each row once, since a statement may not be able to write a row twice.
+        Set<String> batchIds = new HashSet<>();
+
+        for (WriteBehindTask task : tasks) {
+            TableTx.OpType type = task.batchType();
+            if (type != batchType || type != null && !disjoint(batchIds, task.rows())) {
+                addRun(result, batchType, run);
+                run.clear();
+                batchIds.clear();
+            }
+            batchType = type;
+
+            if (type == null)
+                result.add(task);
+            else {
+                run.add(task);
+                for (HMap row : task.rows())
+                    batchIds.add(row.id().getId());
+            }
         }
+        addRun(result, batchType, run);
+        return result;
+    }
+
+    private void addRun(List<WriteBehindTask> result, TableTx.OpType type, List<WriteBehindTask> run) {
+        if (run.size() == 1)
+            result.add(run.get(0));
+        else if (!run.isEmpty()) {
+            List<HMap> rows = new ArrayList<>();
+            for (WriteBehindTask task : run)
+                rows.addAll(task.rows());
+            result.add(new BatchTask(type, rows));
+        }
+    }
+
+    private static boolean disjoint(Set<String> ids, List<HMap> rows) {
+        for (HMap row : rows) {
+            if (ids.contains(row.id().getId()))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Queues a write of a single row. Must be called while holding the commit lock, so that the writes are queued in
+     * the order that they were committed.
+     */
+    private void writeBehind(String id, WriteBehindTask task) {
+        lanes[partition(id)].add(task);
+    }
+
+    /**
+     * Queues a write of the rows, split by partition. Must be called while holding the commit lock.
+     */
+    private void writeBehind(List<HMap> rows, Function<List<HMap>, WriteBehindTask> factory) {
+        if (lanes.length == 1) {
+            lanes[0].add(factory.apply(rows));
+            return;
+        }
+
+        List<List<HMap>> parts = new ArrayList<>(lanes.length);
+        for (int i = 0; i < lanes.length; i++)
+            parts.add(null);
+        for (HMap row : rows) {
+            int partition = partition(row.id().getId());
+            if (parts.get(partition) == null)
+                parts.set(partition, new ArrayList<>());
+            parts.get(partition).add(row);
+        }
+        for (int i = 0; i < lanes.length; i++) {
+            if (parts.get(i) != null)
+                lanes[i].add(factory.apply(parts.get(i)));
+        }
+    }
+
+    /**
+     * Queues a transaction, which must be written as a whole. If its rows are in more than one partition, it is given
+     * to the writer of each, and run once they have all reached it. Must be called while holding the commit lock.
+     */
+    private void writeBehind(List<TableTx.Op> ops) {
+        Set<Integer> partitions = new TreeSet<>();
+        for (TableTx.Op op : ops)
+            partitions.add(partition(op.id));
+
+        WriteBehindTask task = new TransactionTask(ops);
+        if (partitions.size() > 1)
+            task = new SpanningTask(task, partitions.size());
+        for (int partition : partitions)
+            lanes[partition].add(task);
+    }
+
+    private void addDeadLetter(HMap entry, Throwable e) {
+        DeadLetterFile file = deadLetters;
+        if (file != null)
+            file.add(entry, e);
+        else
+            LOG.log(Level.SEVERE, "Write behind to " + delegate.name + " failed, and was dropped: " + entry, e);
+    }
+
+    private int partition(String id) {
+        return lanes.length == 1 ? 0 : Math.floorMod(id.hashCode(), lanes.length);
     }
 
     abstract class WriteBehindTask {
+        // Whether the task has failed before, and may have been partly written.
+        boolean retried;
+
         abstract void execute();
+
+        /**
+         * Writes the task to the dead letter file, or logs it if there is none.
+         */
+        abstract void deadLetter(Throwable e);
+
+        /**
+         * @return the task split into one task per row, or null if it cannot be split.
+         */
+        List<WriteBehindTask> split() {
+            return null;
+        }
+
+        /**
+         * @return the type of row write that this task can be batched as, or null if it must be executed alone.
+         */
+        TableTx.OpType batchType() {
+            return null;
+        }
+
+        List<HMap> rows() {
+            return null;
+        }
     }
 
     class InsertTask extends WriteBehindTask {
@@ -314,7 +997,25 @@ public class MemoryTable implements Table {
 
         @Override
         void execute() {
-            delegate.insert(row);
+            if (retried)
+                delegate.upsert(row);
+            else
+                delegate.insert(row);
+        }
+
+        @Override
+        void deadLetter(Throwable e) {
+            addDeadLetter(DeadLetterFile.rowEntry("insert", row), e);
+        }
+
+        @Override
+        TableTx.OpType batchType() {
+            return TableTx.OpType.INSERT;
+        }
+
+        @Override
+        List<HMap> rows() {
+            return Collections.singletonList(row);
         }
     }
 
@@ -329,6 +1030,282 @@ public class MemoryTable implements Table {
         void execute() {
             delegate.updateById(row);
         }
+
+        @Override
+        void deadLetter(Throwable e) {
+            addDeadLetter(DeadLetterFile.rowEntry("update", row), e);
+        }
+
+        @Override
+        TableTx.OpType batchType() {
+            return TableTx.OpType.UPDATE;
+        }
+
+        @Override
+        List<HMap> rows() {
+            return Collections.singletonList(row);
+        }
+    }
+
+    class DiffTask extends WriteBehindTask {
+        private final HReference id;
+        private final HMap diff;
+
+        public DiffTask(HReference id, HMap diff) {
+            this.id = id;
+            this.diff = diff;
+        }
+
+        @Override
+        void execute() {
+            delegate.applyDiff(id, diff);
+        }
+
+        @Override
+        void deadLetter(Throwable e) {
+            addDeadLetter(DeadLetterFile.diffEntry(id, diff), e);
+        }
+    }
+
+    class BatchUpdateTask extends WriteBehindTask {
+        private final List<HMap> rows;
+
+        public BatchUpdateTask(List<HMap> rows) {
+            this.rows = rows;
+        }
+
+        @Override
+        void execute() {
+            delegate.batchUpdate(rows);
+        }
+
+        @Override
+        void deadLetter(Throwable e) {
+            for (HMap row : rows)
+                addDeadLetter(DeadLetterFile.rowEntry("update", row), e);
+        }
+
+        @Override
+        List<WriteBehindTask> split() {
+            List<WriteBehindTask> parts = new ArrayList<>(rows.size());
+            for (HMap row : rows)
+                parts.add(new UpdateTask(row));
+            return parts;
+        }
+
+        @Override
+        TableTx.OpType batchType() {
+            return TableTx.OpType.UPDATE;
+        }
+
+        @Override
+        List<HMap> rows() {
+            return rows;
+        }
+    }
+
+    class UpsertTask extends WriteBehindTask {
+        private final HMap row;
+
+        public UpsertTask(HMap row) {
+            this.row = row;
+        }
+
+        @Override
+        void execute() {
+            delegate.upsert(row);
+        }
+
+        @Override
+        void deadLetter(Throwable e) {
+            addDeadLetter(DeadLetterFile.rowEntry("upsert", row), e);
+        }
+
+        @Override
+        TableTx.OpType batchType() {
+            return TableTx.OpType.UPSERT;
+        }
+
+        @Override
+        List<HMap> rows() {
+            return Collections.singletonList(row);
+        }
+    }
+
+    class BatchUpsertTask extends WriteBehindTask {
+        private final List<HMap> rows;
+
+        public BatchUpsertTask(List<HMap> rows) {
+            this.rows = rows;
+        }
+
+        @Override
+        void execute() {
+            delegate.batchUpsert(rows);
+        }
+
+        @Override
+        void deadLetter(Throwable e) {
+            for (HMap row : rows)
+                addDeadLetter(DeadLetterFile.rowEntry("upsert", row), e);
+        }
+
+        @Override
+        List<WriteBehindTask> split() {
+            List<WriteBehindTask> parts = new ArrayList<>(rows.size());
+            for (HMap row : rows)
+                parts.add(new UpsertTask(row));
+            return parts;
+        }
+
+        @Override
+        TableTx.OpType batchType() {
+            return TableTx.OpType.UPSERT;
+        }
+
+        @Override
+        List<HMap> rows() {
+            return rows;
+        }
+    }
+
+    class TransactionTask extends WriteBehindTask {
+        private final List<TableTx.Op> ops;
+
+        public TransactionTask(List<TableTx.Op> ops) {
+            this.ops = ops;
+        }
+
+        @Override
+        void execute() {
+            delegate.commit(ops);
+        }
+
+        @Override
+        void deadLetter(Throwable e) {
+            addDeadLetter(DeadLetterFile.transactionEntry(ops), e);
+        }
+    }
+
+    /**
+     * A task that is queued in more than one lane. Each lane stops when it reaches it, and the last of them to do so
+     * executes it and then resumes the others, so that it is ordered after the earlier writes of every lane and before
+     * their later ones. Lanes cannot wait on each other in a cycle, because every lane has these tasks queued in the
+     * same order.
+     */
+    class SpanningTask extends WriteBehindTask {
+        final WriteBehindTask task;
+        private final int lanes;
+        final List<WriteBehind> parked = new ArrayList<>();
+
+        public SpanningTask(WriteBehindTask task, int lanes) {
+            this.task = task;
+            this.lanes = lanes;
+        }
+
+        /**
+         * @return true if the lane was the last to arrive, or false if it has been parked.
+         */
+        synchronized boolean arrive(WriteBehind lane) {
+            if (parked.size() + 1 == lanes)
+                return true;
+            scheduler.park(lane);
+            parked.add(lane);
+            return false;
+        }
+
+        @Override
+        void execute() {
+            throw new RuntimeException("Spanning tasks are executed by their lanes");
+        }
+
+        @Override
+        void deadLetter(Throwable e) {
+            task.deadLetter(e);
+        }
+    }
+
+    /**
+     * Resumes the lanes that were parked on a spanning task, once it is done.
+     */
+    class ResumeTask extends WriteBehindTask {
+        private final List<WriteBehind> parked;
+
+        public ResumeTask(List<WriteBehind> parked) {
+            this.parked = parked;
+        }
+
+        @Override
+        void execute() {
+            for (WriteBehind lane : parked)
+                scheduler.resume(lane);
+        }
+
+        @Override
+        void deadLetter(Throwable e) {
+            // no op
+        }
+    }
+
+    /**
+     * A run of row writes of the same type, combined into one batch.
+     */
+    class BatchTask extends WriteBehindTask {
+        private final TableTx.OpType type;
+        private final List<HMap> rows;
+
+        public BatchTask(TableTx.OpType type, List<HMap> rows) {
+            this.type = type;
+            this.rows = rows;
+        }
+
+        @Override
+        void execute() {
+            switch (type) {
+            case INSERT:
+                if (retried)
+                    delegate.batchUpsert(rows);
+                else
+                    delegate.batchInsert(rows);
+                break;
+            case UPDATE:
+                delegate.batchUpdate(rows);
+                break;
+            case UPSERT:
+                delegate.batchUpsert(rows);
+                break;
+            default:
+                throw new RuntimeException("Unknown batch type " + type);
+            }
+        }
+
+        @Override
+        void deadLetter(Throwable e) {
+            for (HMap row : rows)
+                addDeadLetter(DeadLetterFile.rowEntry(type.name().toLowerCase(), row), e);
+        }
+
+        @Override
+        List<WriteBehindTask> split() {
+            // Only a batch that may have been partly written is retried row by row as upserts. Otherwise the rows are
+            // inserted again, so that a row that really conflicts with the database fails and is dead lettered rather
+            // than overwriting what is there.
+            boolean partlyWritten = retried
+                    || type == TableTx.OpType.INSERT && !delegate.isBatchInsertAtomic(rows.size());
+            List<WriteBehindTask> parts = new ArrayList<>(rows.size());
+            for (HMap row : rows) {
+                WriteBehindTask part;
+                if (type == TableTx.OpType.INSERT)
+                    part = new InsertTask(row);
+                else if (type == TableTx.OpType.UPDATE)
+                    part = new UpdateTask(row);
+                else
+                    part = new UpsertTask(row);
+                part.retried = partlyWritten;
+                parts.add(part);
+            }
+            return parts;
+        }
     }
 
     class DeleteTask extends WriteBehindTask {
@@ -342,5 +1319,10 @@ public class MemoryTable implements Table {
         void execute() {
             delegate.deleteById(id);
         }
+
+        @Override
+        void deadLetter(Throwable e) {
+            addDeadLetter(DeadLetterFile.deleteEntry(id), e);
+        }
     }
 }
@@ -18,6 +18,7 @@ import org.apache.commons.lang3.mutable.MutableInt;
 import org.brickhouse.CancelReadException;
 import org.brickhouse.Table;
 import org.brickhouse.TableListener;
+import org.brickhouse.TableTx;
 import org.brickhouse.datatype.HMap;
 import org.brickhouse.datatype.HReference;
 import org.brickhouse.datatype.HValue;
@@ -140,12 +141,45 @@ public class MemoryTable2 implements Table {
         HReference id = map.id();
         if (id == null)
             throw new RuntimeException("id is required");
-        if (data.containsKey(id.getId())) {
+        HMap copy = clean(new HMap(map));
+        return data.computeIfPresent(id.getId(), (k, v) -> copy) == null ? 0 : 1;
+    }
+
+    @Override
+    public int applyDiff(HReference id, HMap diff) {
+        if (id == null)
+            throw new RuntimeException("id is required");
+        HMap changes = new HMap(diff);
+        changes.remove("id");
+        return data.computeIfPresent(id.getId(), (k, v) -> new HMap(v).merge(changes)) == null ? 0 : 1;
+    }
+
+    @Override
+    public int batchUpdate(List<HMap> records) {
+        int count = 0;
+        for (HMap map : records) {
+            HReference id = map.id();
+            if (id == null)
+                throw new RuntimeException("id is required");
             HMap copy = clean(new HMap(map));
-            data.put(id.getId(), copy);
-            return 1;
+            if (data.computeIfPresent(id.getId(), (k, v) -> copy) != null)
+                count++;
         }
-        return 0;
+        return count;
+    }
+
+    @Override
+    public void upsert(HMap record) {
+        HReference id = record.id();
+        if (id == null)
+            throw new RuntimeException("id is required");
+        data.put(id.getId(), clean(new HMap(record)));
+    }
+
+    @Override
+    public void batchUpsert(List<HMap> records) {
+        for (HMap row : records)
+            upsert(row);
     }
 
     @Override
@@ -161,6 +195,36 @@ public class MemoryTable2 implements Table {
         return deleteById(id.getId());
     }
 
+    /**
+     * Applies the operations in order. This table has no isolation, so other threads may see them part applied.
+     */
+    @Override
+    public int transaction(Consumer<TableTx> work) {
+        TableTx tx = new TableTx();
+        work.accept(tx);
+
+        int count = 0;
+        for (TableTx.Op op : tx.getOps()) {
+            switch (op.type) {
+            case INSERT:
+                insert(op.row);
+                count++;
+                break;
+            case UPDATE:
+                count += updateById(op.row);
+                break;
+            case UPSERT:
+                upsert(op.row);
+                count++;
+                break;
+            case DELETE:
+                count += deleteById(op.id);
+                break;
+            }
+        }
+        return count;
+    }
+
     @Override
     public int deleteAll(Filter filter) {
         int count = 0;
@@ -7,19 +7,48 @@
  */
 package org.brickhouse.impl;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.brickhouse.StorageFormat;
+import org.brickhouse.datatype.HMap;
+import org.springframework.jdbc.core.JdbcUtils;
+
 public class MysqlImpl extends DatabaseImpl {
+    /**
+     * Rows per multi-row INSERT. Keeps the statement well under both the 65535 placeholder limit and typical
+     * max_allowed_packet settings.
+     */
+    static final int MULTI_ROW_INSERT_ROWS = 500;
+
     public MysqlImpl(String host, String schema, String username, String password) {
-        super(new DataSourceBuilder() //
+        this(new DataSourceBuilder() //
                 .driverClassName("com.mysql.jdbc.Driver") //
                 .url("jdbc:mysql://" + host + "/" + schema) //
                 .username(username) //
                 .password(password) //
+                .poolPreparedStatements(DataSourceBuilder.DEFAULT_MAX_OPEN_PREPARED_STATEMENTS) //
+                .trackStatementCache() //
+                .connectionProperty("useServerPrepStmts", "true") //
+                .connectionProperty("useCursorFetch", "true") //
                 .build());
     }
 
+    MysqlImpl(BasicDataSource ds) {
+        super(ds);
+
+        // Stream row by row by default. A positive fetch size set later uses a server-side cursor instead.
+        jt.setFetchSize(Integer.MIN_VALUE);
+    }
+
     @Override
-    protected void createTable(String name) {
-        jt.execute("CREATE TABLE " + name + " (id VARCHAR(50) NOT NULL, dis TEXT, json TEXT, PRIMARY KEY (id))");
+    protected void createTable(String name, StorageFormat format) {
+        String type = format == StorageFormat.BINARY ? " LONGBLOB" : " TEXT";
+        jt.execute("CREATE TABLE " + name + " (id VARCHAR(50) NOT NULL, dis TEXT, " + format.getColumn() + type
+                + ", PRIMARY KEY (id))");
     }
 
     @Override
@@ -27,4 +56,73 @@ public class MysqlImpl extends DatabaseImpl {
         jt.execute("CREATE TABLE " + name + STATS_SUFFIX
                 + " (query TEXT, rows INT, included INT, dis CHAR(1), nanos BIGINT, ts BIGINT)");
     }
+
+    @Override
+    protected void createDictionaryTable(String name) {
+        jt.execute("CREATE TABLE " + name + DICT_SUFFIX
+                + " (id INT NOT NULL, dict LONGBLOB, ts BIGINT, PRIMARY KEY (id))");
+    }
+
+    @Override
+    void bulkInsert(Connection con, String name, RecordCodec codec, List<HMap> rows) throws SQLException {
+        multiRowInsert(con, name, codec, rows, "");
+    }
+
+    @Override
+    void bulkUpsert(Connection con, String name, RecordCodec codec, List<HMap> rows) throws SQLException {
+        multiRowInsert(con, name, codec, rows, upsertSuffix(codec.format));
+    }
+
+    @Override
+    protected String upsertSql(String name, StorageFormat format) {
+        return multiRowInsert(name, format, 1, upsertSuffix(format));
+    }
+
+    private static String upsertSuffix(StorageFormat format) {
+        String column = format.getColumn();
+        return " ON DUPLICATE KEY UPDATE dis=VALUES(dis), " + column + "=VALUES(" + column + ")";
+    }
+
+    private static void multiRowInsert(Connection con, String name, RecordCodec codec, List<HMap> rows,
+            String suffix) throws SQLException {
+        String fullSql = null;
+        for (int from = 0; from < rows.size(); from += MULTI_ROW_INSERT_ROWS) {
+            List<HMap> chunk = rows.subList(from, Math.min(rows.size(), from + MULTI_ROW_INSERT_ROWS));
+
+            String sql;
+            if (chunk.size() == MULTI_ROW_INSERT_ROWS) {
+                if (fullSql == null)
+                    fullSql = multiRowInsert(name, codec.format, MULTI_ROW_INSERT_ROWS, suffix);
+                sql = fullSql;
+            }
+            else
+                sql = multiRowInsert(name, codec.format, chunk.size(), suffix);
+
+            PreparedStatement ps = con.prepareStatement(sql);
+            try {
+                int param = 1;
+                for (HMap row : chunk) {
+                    ps.setString(param++, row.id().getId());
+                    ps.setString(param++, row.disOrNull());
+                    codec.set(ps, param++, row);
+                }
+                ps.executeUpdate();
+            }
+            finally {
+                JdbcUtils.closeStatement(ps);
+            }
+        }
+    }
+
+    static String multiRowInsert(String name, StorageFormat format, int rows, String suffix) {
+        StringBuilder sb = new StringBuilder(40 + name.length() + rows * 8 + suffix.length());
+        sb.append("INSERT INTO ").append(name).append(" (id, dis, ").append(format.getColumn()).append(") VALUES ");
+        for (int i = 0; i < rows; i++) {
+            if (i > 0)
+                sb.append(',');
+            sb.append("(?,?,?)");
+        }
+        sb.append(suffix);
+        return sb.toString();
+    }
 }
@@ -7,6 +7,17 @@
  */
 package org.brickhouse.impl;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+import org.brickhouse.StorageFormat;
+import org.brickhouse.datatype.HMap;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
 public class PostgresqlImpl extends DatabaseImpl {
     public PostgresqlImpl(String host, String schema, String username, String password) {
         super(new DataSourceBuilder() //
@@ -14,12 +25,20 @@ public class PostgresqlImpl extends DatabaseImpl {
                 .url("jdbc:postgresql://" + host + "/" + schema) //
                 .username(username) //
                 .password(password) //
+                .poolPreparedStatements(DataSourceBuilder.DEFAULT_MAX_OPEN_PREPARED_STATEMENTS) //
+                .trackStatementCache() //
                 .build());
+
+        // The driver only uses a cursor for the fetch size when autocommit is off.
+        jt.setFetchSize(DEFAULT_FETCH_SIZE);
+        jt.setFetchInTransaction(true);
     }
 
     @Override
-    protected void createTable(String name) {
-        jt.execute("CREATE TABLE " + name + " (id VARCHAR(50) NOT NULL, dis TEXT, json TEXT, PRIMARY KEY (id))");
+    protected void createTable(String name, StorageFormat format) {
+        String type = format == StorageFormat.BINARY ? " BYTEA" : " TEXT";
+        jt.execute("CREATE TABLE " + name + " (id VARCHAR(50) NOT NULL, dis TEXT, " + format.getColumn() + type
+                + ", PRIMARY KEY (id))");
     }
 
     @Override
@@ -27,4 +46,127 @@ public class PostgresqlImpl extends DatabaseImpl {
         jt.execute("CREATE TABLE " + name + STATS_SUFFIX
                 + " (query TEXT, rows INTEGER, included INTEGER, dis CHAR(1), nanos BIGINT, ts BIGINT)");
     }
+
+    @Override
+    protected void createDictionaryTable(String name) {
+        jt.execute("CREATE TABLE " + name + DICT_SUFFIX
+                + " (id INTEGER NOT NULL, dict BYTEA, ts BIGINT, PRIMARY KEY (id))");
+    }
+
+    @Override
+    void bulkInsert(Connection con, String name, RecordCodec codec, List<HMap> rows) throws SQLException {
+        CopyManager copyManager = con.unwrap(PGConnection.class).getCopyAPI();
+        try {
+            copyManager.copyIn("COPY " + name + " (id, dis, " + codec.format.getColumn() + ") FROM STDIN",
+                    new CopyReader(rows, codec));
+        }
+        catch (IOException e) {
+            throw new SQLException(e);
+        }
+    }
+
+    /**
+     * Requires PostgreSQL 9.5 or later.
+     */
+    @Override
+    protected String upsertSql(String name, StorageFormat format) {
+        String column = format.getColumn();
+        return "INSERT INTO " + name + " (id, dis, " + column + ") VALUES (?,?,?)"
+                + " ON CONFLICT (id) DO UPDATE SET dis=EXCLUDED.dis, " + column + "=EXCLUDED." + column;
+    }
+
+    /**
+     * Produces the rows in COPY text format as the driver reads them, so that only one row is encoded at a time.
+     */
+    static class CopyReader extends Reader {
+        private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+        private final List<HMap> rows;
+        private final RecordCodec codec;
+        private final StringBuilder line = new StringBuilder();
+        private int nextRow;
+        private int linePos;
+
+        CopyReader(List<HMap> rows, RecordCodec codec) {
+            this.rows = rows;
+            this.codec = codec;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            if (len == 0)
+                return 0;
+
+            int count = 0;
+            while (count < len) {
+                if (linePos == line.length()) {
+                    if (nextRow == rows.size())
+                        break;
+                    encode(rows.get(nextRow++));
+                }
+
+                int n = Math.min(len - count, line.length() - linePos);
+                line.getChars(linePos, linePos + n, cbuf, off + count);
+                linePos += n;
+                count += n;
+            }
+
+            return count == 0 ? -1 : count;
+        }
+
+        private void encode(HMap row) {
+            line.setLength(0);
+            linePos = 0;
+            escape(row.id().getId());
+            line.append('\t');
+            escape(row.disOrNull());
+            line.append('\t');
+            if (codec.format == StorageFormat.BINARY)
+                hex(codec.encodeBinary(row));
+            else
+                escape(SqlTable.toString(row));
+            line.append('\n');
+        }
+
+        /**
+         * bytea in hex format, i.e. \x followed by the hex digits, with the backslash escaped for COPY.
+         */
+        private void hex(byte[] bytes) {
+            line.append("\\\\x");
+            for (byte b : bytes)
+                line.append(HEX[b >> 4 & 0xf]).append(HEX[b & 0xf]);
+        }
+
+        private void escape(String s) {
+            if (s == null) {
+                line.append("\\N");
+                return;
+            }
+
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                switch (c) {
+                case '\\':
+                    line.append("\\\\");
+                    break;
+                case '\t':
+                    line.append("\\t");
+                    break;
+                case '\n':
+                    line.append("\\n");
+                    break;
+                case '\r':
+                    line.append("\\r");
+                    break;
+                default:
+                    line.append(c);
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            // no op
+        }
+    }
 }
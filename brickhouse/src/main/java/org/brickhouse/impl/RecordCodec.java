@@ -0,0 +1,89 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.impl;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.brickhouse.StorageFormat;
+import org.brickhouse.binary.BinaryDecoder;
+import org.brickhouse.binary.BinaryEncoder;
+import org.brickhouse.binary.RecordCompressor;
+import org.brickhouse.datatype.HMap;
+import org.brickhouse.datatype.LazyHMap;
+import org.brickhouse.json.JsonDecoder;
+
+/**
+ * Converts between maps and the record column of a table, according to the table's storage format and, for binary
+ * tables, its compression.
+ */
+class RecordCodec {
+    static final RecordCodec JSON = new RecordCodec(StorageFormat.JSON, null);
+    static final RecordCodec BINARY = new RecordCodec(StorageFormat.BINARY, null);
+
+    static RecordCodec forFormat(StorageFormat format) {
+        return format == StorageFormat.BINARY ? BINARY : JSON;
+    }
+
+    final StorageFormat format;
+    final RecordCompressor compressor;
+
+    RecordCodec(StorageFormat format, RecordCompressor compressor) {
+        this.format = format;
+        this.compressor = compressor;
+    }
+
+    HMap read(ResultSet rs, int index) throws SQLException {
+        if (format == StorageFormat.BINARY)
+            return decode(rs.getBytes(index));
+        return SqlTable.toMap(rs.getString(index));
+    }
+
+    /**
+     * Reads the record as a LazyHMap, for rows that are likely to be filtered out.
+     */
+    LazyHMap readLazy(ResultSet rs, int index) throws SQLException {
+        if (format == StorageFormat.BINARY) {
+            byte[] stored = rs.getBytes(index);
+            if (compressor != null)
+                stored = compressor.decompress(stored);
+            return BinaryDecoder.decodeLazy(stored);
+        }
+        return JsonDecoder.readLazyDbMap(rs.getString(index));
+    }
+
+    HMap decode(byte[] stored) {
+        if (compressor != null)
+            stored = compressor.decompress(stored);
+        return BinaryDecoder.decode(stored);
+    }
+
+    /**
+     * @return the record as a String or byte[], according to the format.
+     */
+    Object encode(HMap map) {
+        if (format == StorageFormat.BINARY)
+            return encodeBinary(map);
+        return SqlTable.toString(map);
+    }
+
+    byte[] encodeBinary(HMap map) {
+        byte[] record = BinaryEncoder.encode(map);
+        if (compressor != null)
+            record = compressor.compress(record);
+        return record;
+    }
+
+    void set(PreparedStatement ps, int index, HMap map) throws SQLException {
+        if (format == StorageFormat.BINARY)
+            ps.setBytes(index, encodeBinary(map));
+        else
+            ps.setString(index, SqlTable.toString(map));
+    }
+}
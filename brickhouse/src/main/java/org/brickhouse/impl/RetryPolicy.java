@@ -0,0 +1,108 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.impl;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.logging.Logger;
+
+/**
+ * Decides how failed writes behind are handled. Transient failures, such as lost connections, deadlocks and timeouts,
+ * are retried with exponential backoff. Other failures are not retried.
+ *
+ * It is also a circuit breaker. After a number of transient failures in a row, the database is taken to be down, and
+ * no writes are tried until a while has passed. The first write that succeeds closes the circuit again.
+ */
+public class RetryPolicy {
+    private static final Logger LOG = Logger.getLogger(RetryPolicy.class.getName());
+
+    private final long minDelay;
+    private final long maxDelay;
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private int failures;
+    private long openUntil;
+
+    public RetryPolicy() {
+        this(100, 30000, 5, 30000);
+    }
+
+    /**
+     * @param minDelay
+     *            the milliseconds to wait before the first retry, which doubles with each retry after that.
+     * @param maxDelay
+     *            the most milliseconds to wait between retries.
+     * @param failureThreshold
+     *            the number of transient failures in a row that open the circuit.
+     * @param openMillis
+     *            the milliseconds for which the circuit stays open.
+     */
+    public RetryPolicy(long minDelay, long maxDelay, int failureThreshold, long openMillis) {
+        this.minDelay = minDelay;
+        this.maxDelay = maxDelay;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * @return whether the failure may succeed if it is tried again.
+     */
+    public boolean isTransient(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof SQLTransientException || t instanceof SQLRecoverableException || t instanceof IOException)
+                return true;
+
+            if (t instanceof SQLException) {
+                SQLException se = (SQLException) t;
+                String state = se.getSQLState();
+                // Connection exceptions, transaction rollbacks such as deadlocks, insufficient resources, and
+                // PostgreSQL's operator intervention, e.g. a shutdown.
+                if (state != null && (state.startsWith("08") || state.startsWith("40") || state.startsWith("53")
+                        || state.startsWith("57P")))
+                    return true;
+                // MySQL's lock wait timeout and deadlock.
+                if (se.getErrorCode() == 1205 || se.getErrorCode() == 1213)
+                    return true;
+            }
+
+            if (t.getCause() == t)
+                break;
+        }
+        return false;
+    }
+
+    synchronized void success() {
+        failures = 0;
+        openUntil = 0;
+    }
+
+    synchronized void failure() {
+        failures++;
+        if (failures >= failureThreshold) {
+            if (!isOpen())
+                LOG.warning("Write behind circuit opened after " + failures + " failures");
+            openUntil = System.currentTimeMillis() + openMillis;
+        }
+    }
+
+    synchronized boolean isOpen() {
+        return openUntil > System.currentTimeMillis();
+    }
+
+    /**
+     * @return the milliseconds to wait before the given retry, counting from 0, or for the circuit to close if that
+     *         is longer.
+     */
+    synchronized long delay(int retry) {
+        long delay = Math.min(maxDelay, minDelay << Math.min(retry, 30));
+        return Math.max(delay, openUntil - System.currentTimeMillis());
+    }
+}
@@ -7,11 +7,11 @@
  */
 package org.brickhouse.impl;
 
-import java.io.IOException;
-import java.io.StringWriter;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -23,51 +23,76 @@ import java.util.function.Consumer;
 import org.apache.commons.lang3.mutable.MutableInt;
 import org.apache.commons.lang3.mutable.MutableObject;
 import org.brickhouse.CancelReadException;
+import org.brickhouse.StorageFormat;
 import org.brickhouse.Table;
 import org.brickhouse.TableListener;
+import org.brickhouse.TableTx;
+import org.brickhouse.binary.CompressionStats;
+import org.brickhouse.binary.DictionaryTrainer;
+import org.brickhouse.binary.RecordCompressor;
 import org.brickhouse.datatype.HMap;
 import org.brickhouse.datatype.HReference;
 import org.brickhouse.datatype.HValue;
+import org.brickhouse.datatype.LazyHMap;
 import org.brickhouse.filter.Filter;
 import org.brickhouse.filter.Filter.Pather;
-import org.brickhouse.json.JsonUtils;
+import org.brickhouse.json.JsonDecoder;
+import org.brickhouse.json.JsonEncoder;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.JdbcUtils;
 import org.springframework.jdbc.core.RowCallbackHandler;
 
-import com.serotonin.json.JsonException;
-import com.serotonin.json.JsonReader;
-import com.serotonin.json.JsonWriter;
-
 public class SqlTable implements Table {
     private final List<TableListener> listeners = new CopyOnWriteArrayList<>();
 
+    final DatabaseImpl db;
     final JdbcTemplate jt;
     final String name;
     final boolean setDis;
     final boolean stats;
+    final StorageFormat format;
+    final RecordCodec codec;
 
     // SQL
     final String select;
     final String selectId;
     final String insert;
     final String update;
+    final String upsert;
     final String delete;
+    final String deleteAll;
     final String disRead;
     final String statInsert;
 
     public SqlTable(JdbcTemplate jt, String name, boolean setDis, boolean stats) {
+        this(null, jt, name, setDis, stats, RecordCodec.JSON);
+    }
+
+    SqlTable(DatabaseImpl db, String name, boolean setDis, boolean stats, RecordCodec codec) {
+        this(db, db.getJdbcTemplate(), name, setDis, stats, codec);
+    }
+
+    private SqlTable(DatabaseImpl db, JdbcTemplate jt, String name, boolean setDis, boolean stats,
+            RecordCodec codec) {
+        this.db = db;
         this.jt = jt;
         this.name = name;
         this.setDis = setDis;
         this.stats = stats;
-
-        select = "SELECT json FROM " + name;
-        selectId = "SELECT json FROM " + name + " WHERE id=?";
-        insert = "INSERT INTO " + name + " (id, dis, json) VALUES (?,?,?)";
-        update = "UPDATE " + name + " SET dis=?, json=? WHERE id=?";
+        this.format = codec.format;
+        this.codec = codec;
+
+        String column = format.getColumn();
+        select = "SELECT " + column + " FROM " + name;
+        selectId = "SELECT " + column + " FROM " + name + " WHERE id=?";
+        insert = "INSERT INTO " + name + " (id, dis, " + column + ") VALUES (?,?,?)";
+        update = "UPDATE " + name + " SET dis=?, " + column + "=? WHERE id=?";
+        upsert = db == null ? null : db.upsertSql(name, format);
         delete = "DELETE FROM " + name + " WHERE id=?";
+        deleteAll = "DELETE FROM " + name;
         disRead = "SELECT dis FROM " + name + " WHERE id=?";
         statInsert = "INSERT INTO " + name + DatabaseImpl.STATS_SUFFIX
                 + " (query, rows, included, dis, nanos, ts) VALUES (?,?,?,?,?,?)";
@@ -83,12 +108,12 @@ public class SqlTable implements Table {
         final MutableObject<HMap> o = new MutableObject<>();
 
         try {
-            jt.query(select, new RowCallbackHandler() {
+            jt.queryStreaming(select, new RowCallbackHandler() {
                 @Override
                 public void processRow(ResultSet rs) throws SQLException {
-                    HMap map = toMap(rs.getString(1));
+                    LazyHMap map = codec.readLazy(rs, 1);
                     if (filter.include(map, pather)) {
-                        o.setValue(map);
+                        o.setValue(map.decode());
                         throw new CancelReadException();
                     }
                 }
@@ -111,7 +136,7 @@ public class SqlTable implements Table {
     @Override
     public HMap readById(String id, boolean setDis) {
         try {
-            HMap map = toMap(jt.queryForObject(selectId, String.class, id));
+            HMap map = selectById(id);
             if (setDis)
                 return fillDii(map);
             return map;
@@ -164,12 +189,13 @@ public class SqlTable implements Table {
         final MutableInt included = new MutableInt();
 
         try {
-            jt.query(select, new RowCallbackHandler() {
+            jt.queryStreaming(select, new RowCallbackHandler() {
                 @Override
                 public void processRow(ResultSet rs) throws SQLException {
-                    HMap map = toMap(rs.getString(1));
+                    LazyHMap row = codec.readLazy(rs, 1);
                     count.increment();
-                    if (filter.include(map, pather)) {
+                    if (filter.include(row, pather)) {
+                        HMap map = row.decode();
                         fillDii(map, disCache);
                         consumer.accept(map);
                         included.increment();
@@ -194,7 +220,7 @@ public class SqlTable implements Table {
 
         clean(map);
 
-        jt.update(insert, id.getId(), map.disOrNull(), toString(map));
+        jt.update(insert, id.getId(), map.disOrNull(), codec.encode(map));
 
         for (TableListener l : listeners)
             l.insert(map);
@@ -202,19 +228,138 @@ public class SqlTable implements Table {
 
     @Override
     public void batchInsert(List<HMap> rows) {
-        jt.batchUpdate(insert, new BatchPreparedStatementSetter() {
+        for (HMap row : rows) {
+            if (row.id() == null)
+                throw new RuntimeException("id is required");
+            clean(row);
+        }
+
+        if (db != null)
+            db.bulkInsert(name, codec, rows);
+        else {
+            jt.batchUpdate(insert, new BatchPreparedStatementSetter() {
+                @Override
+                public void setValues(PreparedStatement ps, int i) throws SQLException {
+                    HMap row = rows.get(i);
+                    ps.setString(1, row.id().getId());
+                    ps.setString(2, row.disOrNull());
+                    codec.set(ps, 3, row);
+                }
+
+                @Override
+                public int getBatchSize() {
+                    return rows.size();
+                }
+            });
+        }
+
+        for (TableListener l : listeners)
+            l.batchInsert(rows);
+    }
+
+    /**
+     * @return true if a batchInsert of the given number of rows that fails cannot have written any of them. Bulk
+     *         inserts commit every bulkCommitInterval rows, and without a database the rows are a JDBC batch in
+     *         autocommit, which a driver may have partly executed.
+     */
+    boolean isBatchInsertAtomic(int rows) {
+        return db != null && rows <= db.getBulkCommitInterval();
+    }
+
+    @Override
+    public int updateById(HMap map) {
+        HReference id = map.id();
+        if (id == null)
+            throw new RuntimeException("id is required");
+        String dis = map.disOrNull();
+
+        clean(map);
+
+        int count = jt.update(update, dis, codec.encode(map), id.getId());
+
+        for (TableListener l : listeners)
+            l.update(map, count);
+
+        return count;
+    }
+
+    @Override
+    public int applyDiff(HReference id, HMap diff) {
+        if (id == null)
+            throw new RuntimeException("id is required");
+        HMap changes = new HMap(diff);
+        changes.remove("id");
+
+        // Merged here rather than with the database's JSON functions, which would reformat the stored record.
+        int count = mergeById(id.getId(), changes);
+        for (TableListener l : listeners)
+            l.applyDiff(id, changes, count);
+
+        return count;
+    }
+
+    /**
+     * Merges the diff into the record by reading and rewriting it in a transaction, with the row locked in between.
+     */
+    private int mergeById(final String id, final HMap diff) {
+        return jt.execute(new ConnectionCallback<Integer>() {
             @Override
-            public void setValues(PreparedStatement ps, int i) throws SQLException {
-                HMap row = rows.get(i);
-                HReference id = row.id();
-                if (id == null)
-                    throw new RuntimeException("id is required");
+            public Integer doInConnection(Connection con) throws SQLException {
+                boolean autoCommit = con.getAutoCommit();
+                if (autoCommit)
+                    con.setAutoCommit(false);
+                PreparedStatement ps = null;
+                ResultSet rs = null;
+                try {
+                    ps = con.prepareStatement(selectId + " FOR UPDATE");
+                    ps.setString(1, id);
+                    rs = ps.executeQuery();
+                    HMap map = rs.next() ? codec.read(rs, 1) : null;
+                    JdbcUtils.closeResultSet(rs);
+                    JdbcUtils.closeStatement(ps);
+                    ps = null;
+
+                    int count = 0;
+                    if (map != null) {
+                        clean(map.merge(diff));
+                        ps = con.prepareStatement(update);
+                        ps.setString(1, map.disOrNull());
+                        codec.set(ps, 2, map);
+                        ps.setString(3, id);
+                        count = ps.executeUpdate();
+                    }
+                    con.commit();
+                    return count;
+                }
+                catch (SQLException | RuntimeException e) {
+                    con.rollback();
+                    throw e;
+                }
+                finally {
+                    JdbcUtils.closeResultSet(rs);
+                    JdbcUtils.closeStatement(ps);
+                    if (autoCommit)
+                        con.setAutoCommit(true);
+                }
+            }
+        });
+    }
 
-                clean(row);
+    @Override
+    public int batchUpdate(List<HMap> rows) {
+        for (HMap row : rows) {
+            if (row.id() == null)
+                throw new RuntimeException("id is required");
+            clean(row);
+        }
 
-                ps.setString(1, id.getId());
-                ps.setString(2, row.disOrNull());
-                ps.setString(3, SqlTable.toString(row));
+        int[] counts = jt.batchUpdate(update, new BatchPreparedStatementSetter() {
+            @Override
+            public void setValues(PreparedStatement ps, int i) throws SQLException {
+                HMap row = rows.get(i);
+                ps.setString(1, row.disOrNull());
+                codec.set(ps, 2, row);
+                ps.setString(3, row.id().getId());
             }
 
             @Override
@@ -223,25 +368,61 @@ public class SqlTable implements Table {
             }
         });
 
+        int count = 0;
+        for (int c : counts) {
+            // Drivers may report Statement.SUCCESS_NO_INFO rather than a count.
+            if (c > 0)
+                count += c;
+            else if (c == Statement.SUCCESS_NO_INFO)
+                count++;
+        }
+
         for (TableListener l : listeners)
-            l.batchInsert(rows);
+            l.batchUpdate(rows, count);
+
+        return count;
     }
 
     @Override
-    public int updateById(HMap map) {
+    public void upsert(HMap map) {
         HReference id = map.id();
         if (id == null)
             throw new RuntimeException("id is required");
-        String dis = map.disOrNull();
 
         clean(map);
-
-        int count = jt.update(update, dis, toString(map), id.getId());
+        doUpsert(map);
 
         for (TableListener l : listeners)
-            l.update(map, count);
+            l.upsert(map);
+    }
 
-        return count;
+    private void doUpsert(HMap map) {
+        String id = map.id().getId();
+        Object record = codec.encode(map);
+        if (upsert != null)
+            jt.update(upsert, id, map.disOrNull(), record);
+        else if (jt.update(update, map.disOrNull(), record, id) == 0)
+            // No dialect, so fall back to update-else-insert.
+            jt.update(insert, id, map.disOrNull(), record);
+    }
+
+    @Override
+    public void batchUpsert(List<HMap> rows) {
+        for (HMap row : rows) {
+            if (row.id() == null)
+                throw new RuntimeException("id is required");
+            clean(row);
+        }
+
+        if (db != null)
+            db.bulkUpsert(name, codec, rows);
+        else {
+            for (HMap row : rows)
+                doUpsert(row);
+        }
+
+        for (TableListener l : listeners)
+            l.batchUpsert(rows);
     }
 
     @Override
@@ -261,21 +442,220 @@ public class SqlTable implements Table {
 
     @Override
     public int deleteAll(final Filter filter) {
-        final MutableInt count = new MutableInt();
+        int count;
+
+        List<Object> params = new ArrayList<>();
+        String where = filter.toSql(params);
+        if (where != null)
+            // The filter only depends upon the id column, so let the database do the work.
+            count = jt.update(deleteAll + " WHERE " + where, params.toArray());
+        else {
+            final List<String> ids = new ArrayList<>();
+            jt.queryStreaming(select, new RowCallbackHandler() {
+                @Override
+                public void processRow(ResultSet rs) throws SQLException {
+                    LazyHMap map = codec.readLazy(rs, 1);
+                    if (filter.include(map, pather))
+                        ids.add(map.id().getId());
+                }
+            });
+            count = deleteIds(ids);
+        }
+
+        for (TableListener l : listeners)
+            l.deleteAll(filter, count);
 
-        jt.query(select, new RowCallbackHandler() {
+        return count;
+    }
+
+    @Override
+    public int transaction(Consumer<TableTx> work) {
+        TableTx tx = new TableTx();
+        work.accept(tx);
+        return commit(tx.getOps());
+    }
+
+    /**
+     * Writes the given operations in a single database transaction, and then tells the listeners about them.
+     */
+    int commit(final List<TableTx.Op> ops) {
+        if (ops.isEmpty())
+            return 0;
+        for (TableTx.Op op : ops) {
+            if (op.row != null)
+                clean(op.row);
+        }
+
+        int[] counts = jt.execute(new ConnectionCallback<int[]>() {
             @Override
-            public void processRow(ResultSet rs) throws SQLException {
-                HMap map = toMap(rs.getString(1));
-                if (filter.include(map, pather))
-                    count.add(jt.update(delete, map.id().getId()));
+            public int[] doInConnection(Connection con) throws SQLException {
+                boolean autoCommit = con.getAutoCommit();
+                if (autoCommit)
+                    con.setAutoCommit(false);
+                // One statement per type of operation, prepared as needed.
+                PreparedStatement[] statements = new PreparedStatement[TableTx.OpType.values().length];
+                try {
+                    int[] counts = new int[ops.size()];
+                    for (int i = 0; i < counts.length; i++)
+                        counts[i] = execute(con, statements, ops.get(i));
+                    con.commit();
+                    return counts;
+                }
+                catch (SQLException | RuntimeException e) {
+                    con.rollback();
+                    throw e;
+                }
+                finally {
+                    for (PreparedStatement ps : statements)
+                        JdbcUtils.closeStatement(ps);
+                    if (autoCommit)
+                        con.setAutoCommit(true);
+                }
             }
         });
 
-        for (TableListener l : listeners)
-            l.deleteAll(filter, count.intValue());
+        int total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            TableTx.Op op = ops.get(i);
+            total += counts[i];
+            for (TableListener l : listeners) {
+                switch (op.type) {
+                case INSERT:
+                    l.insert(op.row);
+                    break;
+                case UPDATE:
+                    l.update(op.row, counts[i]);
+                    break;
+                case UPSERT:
+                    l.upsert(op.row);
+                    break;
+                case DELETE:
+                    l.deleteById(op.id, counts[i]);
+                    break;
+                }
+            }
+        }
+        return total;
+    }
 
-        return count.intValue();
+    private int execute(Connection con, PreparedStatement[] statements, TableTx.Op op) throws SQLException {
+        PreparedStatement ps;
+        switch (op.type) {
+        case INSERT:
+            return executeInsert(con, statements, op.row);
+        case UPDATE:
+            return executeUpdate(con, statements, op.row);
+        case UPSERT:
+            if (upsert == null) {
+                // No dialect, so fall back to update-else-insert.
+                if (executeUpdate(con, statements, op.row) == 0)
+                    executeInsert(con, statements, op.row);
+                return 1;
+            }
+            ps = prepare(con, statements, TableTx.OpType.UPSERT, upsert);
+            ps.setString(1, op.id);
+            ps.setString(2, op.row.disOrNull());
+            codec.set(ps, 3, op.row);
+            ps.executeUpdate();
+            return 1;
+        case DELETE:
+            ps = prepare(con, statements, TableTx.OpType.DELETE, delete);
+            ps.setString(1, op.id);
+            return ps.executeUpdate();
+        }
+        throw new RuntimeException("Unknown operation " + op.type);
+    }
+
+    private int executeInsert(Connection con, PreparedStatement[] statements, HMap row) throws SQLException {
+        PreparedStatement ps = prepare(con, statements, TableTx.OpType.INSERT, insert);
+        ps.setString(1, row.id().getId());
+        ps.setString(2, row.disOrNull());
+        codec.set(ps, 3, row);
+        return ps.executeUpdate();
+    }
+
+    private int executeUpdate(Connection con, PreparedStatement[] statements, HMap row) throws SQLException {
+        PreparedStatement ps = prepare(con, statements, TableTx.OpType.UPDATE, update);
+        ps.setString(1, row.disOrNull());
+        codec.set(ps, 2, row);
+        ps.setString(3, row.id().getId());
+        return ps.executeUpdate();
+    }
+
+    private static PreparedStatement prepare(Connection con, PreparedStatement[] statements, TableTx.OpType type,
+            String sql) throws SQLException {
+        PreparedStatement ps = statements[type.ordinal()];
+        if (ps == null) {
+            ps = con.prepareStatement(sql);
+            statements[type.ordinal()] = ps;
+        }
+        return ps;
+    }
+
+    static final int DELETE_CHUNK_SIZE = 500;
+
+    /**
+     * Deletes the given ids in chunks using a single transaction.
+     */
+    private int deleteIds(final List<String> ids) {
+        if (ids.isEmpty())
+            return 0;
+
+        return jt.execute(new ConnectionCallback<Integer>() {
+            @Override
+            public Integer doInConnection(Connection con) throws SQLException {
+                boolean autoCommit = con.getAutoCommit();
+                if (autoCommit)
+                    con.setAutoCommit(false);
+                try {
+                    int count = 0;
+                    String fullSql = null;
+                    for (int from = 0; from < ids.size(); from += DELETE_CHUNK_SIZE) {
+                        List<String> chunk = ids.subList(from, Math.min(ids.size(), from + DELETE_CHUNK_SIZE));
+
+                        String sql;
+                        if (chunk.size() == DELETE_CHUNK_SIZE) {
+                            if (fullSql == null)
+                                fullSql = deleteIn(DELETE_CHUNK_SIZE);
+                            sql = fullSql;
+                        }
+                        else
+                            sql = deleteIn(chunk.size());
+
+                        PreparedStatement ps = con.prepareStatement(sql);
+                        try {
+                            for (int i = 0; i < chunk.size(); i++)
+                                ps.setString(i + 1, chunk.get(i));
+                            count += ps.executeUpdate();
+                        }
+                        finally {
+                            JdbcUtils.closeStatement(ps);
+                        }
+                    }
+                    con.commit();
+                    return count;
+                }
+                catch (SQLException | RuntimeException e) {
+                    con.rollback();
+                    throw e;
+                }
+                finally {
+                    if (autoCommit)
+                        con.setAutoCommit(true);
+                }
+            }
+        });
+    }
+
+    private String deleteIn(int size) {
+        StringBuilder sb = new StringBuilder(deleteAll.length() + 16 + size * 2);
+        sb.append(deleteAll).append(" WHERE id IN (");
+        for (int i = 0; i < size; i++) {
+            if (i > 0)
+                sb.append(',');
+            sb.append('?');
+        }
+        return sb.append(')').toString();
     }
 
     @Override
@@ -298,6 +678,49 @@ public class SqlTable implements Table {
         listeners.remove(listener);
     }
 
+    /**
+     * Compresses rows as they are written from now on, using a deflate dictionary trained from up to the given number
+     * of existing rows. Rows that are already stored are left as they are, and remain readable. Calling this again
+     * retrains the dictionary. Other instances of the table pick up the new dictionary when they are next got from
+     * the database.
+     * 
+     * Only tables that are stored as BINARY can be compressed; see Database.migrateTable.
+     */
+    public void enableCompression(final int sampleSize) {
+        final RecordCompressor compressor = codec.compressor;
+        if (compressor == null)
+            throw new RuntimeException("Table " + name + " must be stored as " + StorageFormat.BINARY
+                    + " to be compressed");
+
+        final List<byte[]> samples = new ArrayList<>();
+        if (sampleSize > 0) {
+            try {
+                jt.queryStreaming(select, new RowCallbackHandler() {
+                    @Override
+                    public void processRow(ResultSet rs) throws SQLException {
+                        samples.add(compressor.decompress(rs.getBytes(1)));
+                        if (samples.size() == sampleSize)
+                            throw new CancelReadException();
+                    }
+                });
+            }
+            catch (CancelReadException e) {
+                // no op
+            }
+        }
+
+        byte[] dictionary = DictionaryTrainer.train(samples, RecordCompressor.MAX_DICTIONARY_SIZE);
+        compressor.setDictionary(db.saveDictionary(name, dictionary), dictionary);
+    }
+
+    /**
+     * @return the compression ratio and cost of the reads and writes made through this instance of the table, or null
+     *         if the table cannot be compressed.
+     */
+    public CompressionStats getCompressionStats() {
+        return codec.compressor == null ? null : codec.compressor.getStats();
+    }
+
     //
     // Private(ish)
     //
@@ -305,7 +728,7 @@ public class SqlTable implements Table {
         @Override
         public HMap find(String ref) {
             try {
-                return toMap(jt.queryForObject(selectId, String.class, ref));
+                return selectById(ref);
             }
             catch (EmptyResultDataAccessException e) {
                 return null;
@@ -313,25 +736,18 @@ public class SqlTable implements Table {
         }
     };
 
+    private HMap selectById(String id) {
+        if (format == StorageFormat.BINARY)
+            return codec.decode(jt.queryForObject(selectId, byte[].class, id));
+        return toMap(jt.queryForObject(selectId, String.class, id));
+    }
+
     static HMap toMap(String s) {
-        JsonReader reader = new JsonReader(JsonUtils.dbCtx(), s);
-        try {
-            return reader.read(HMap.class);
-        }
-        catch (JsonException | IOException e) {
-            throw new RuntimeException(e);
-        }
+        return JsonDecoder.readDbMap(s);
     }
 
     static String toString(HMap map) {
-        StringWriter out = new StringWriter();
-        try {
-            new JsonWriter(JsonUtils.dbCtx(), out).writeObject(map);
-        }
-        catch (JsonException | IOException e) {
-            throw new RuntimeException(e);
-        }
-        return out.toString();
+        return JsonEncoder.toDbJson(map);
     }
 
     HMap fillDii(HMap map) {
@@ -0,0 +1,254 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.impl;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the writes behind of many tables on a small pool of threads. Each table queues its writes in one or more lanes,
+ * and each lane is processed by one thread at a time, in the order its writes were queued.
+ *
+ * A lane that has writes waits for up to the latency target for more to arrive, so that they can be batched, unless it
+ * has a full batch. Lanes that are ready are taken in the order they became ready, and a lane that still has writes
+ * after a batch goes to the back of the line, so that busy tables can't hold up the others. Threads wait to be
+ * signalled, rather than polling.
+ */
+public class WriteBehindScheduler {
+    private static final Logger LOG = Logger.getLogger(WriteBehindScheduler.class.getName());
+
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    public static final long DEFAULT_LATENCY_MILLIS = 20;
+
+    // Lane states
+    static final int IDLE = 0; // No writes, and not queued
+    static final int WAITING = 1; // Queued, waiting for more writes or the latency target
+    static final int READY = 2; // Queued, ready to be processed
+    static final int RUNNING = 3; // Being processed
+    static final int RETRYING = 4; // Queued, waiting to retry a failed write
+    static final int PARKED = 5; // Not queued, waiting to be resumed
+
+    /**
+     * Returned by Lane.process when the lane must wait until it is resumed.
+     */
+    public static final long PARK = -1;
+
+    private final DelayQueue<Lane<?>> queue = new DelayQueue<>();
+    private final Thread[] threads;
+    private final int batchSize;
+    private final long latencyNanos;
+    private volatile boolean running = true;
+
+    public WriteBehindScheduler(int threads) {
+        this(threads, DEFAULT_BATCH_SIZE, DEFAULT_LATENCY_MILLIS);
+    }
+
+    /**
+     * @param batchSize
+     *            the number of writes that a lane processes at a time, and which it does not wait for more than.
+     * @param latencyMillis
+     *            the most time that a lane waits for more writes before it is processed.
+     */
+    public WriteBehindScheduler(int threads, int batchSize, long latencyMillis) {
+        this.batchSize = batchSize;
+        latencyNanos = TimeUnit.MILLISECONDS.toNanos(latencyMillis);
+
+        this.threads = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            this.threads[i] = new Thread(this::run, "Brickhouse write-behind " + (i + 1));
+            this.threads[i].start();
+        }
+    }
+
+    /**
+     * A queue of writes that are processed in order.
+     */
+    public abstract static class Lane<T> implements Delayed {
+        private final WriteBehindScheduler scheduler;
+        private final ConcurrentLinkedQueue<T> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+        final AtomicInteger state = new AtomicInteger(IDLE);
+        volatile long readyAt;
+
+        protected Lane(WriteBehindScheduler scheduler) {
+            this.scheduler = scheduler;
+        }
+
+        public void add(T task) {
+            tasks.add(task);
+            scheduler.submitted(this, size.incrementAndGet());
+        }
+
+        protected T poll() {
+            T task = tasks.poll();
+            if (task != null)
+                size.decrementAndGet();
+            return task;
+        }
+
+        public int size() {
+            return size.get();
+        }
+
+        /**
+         * Processes up to the given number of writes.
+         *
+         * @return 0 if the lane can go on, the milliseconds to wait before it is processed again, or PARK if it must
+         *         wait until it is resumed.
+         */
+        protected abstract long process(int maxTasks);
+
+        /**
+         * @return whether the lane has writes that it took from the queue but has not finished.
+         */
+        protected abstract boolean hasPending();
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(readyAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(readyAt, ((Lane<?>) o).readyAt);
+        }
+    }
+
+    void submitted(Lane<?> lane, int size) {
+        if (lane.state.compareAndSet(IDLE, WAITING))
+            enqueue(lane, latencyNanos);
+        else if (size >= batchSize)
+            expedite(lane, WAITING);
+    }
+
+    /**
+     * Processes the lane as soon as possible if it is in the given state.
+     */
+    private void expedite(Lane<?> lane, int from) {
+        if (lane.state.compareAndSet(from, READY) && queue.remove(lane))
+            enqueue(lane, 0);
+    }
+
+    private void enqueue(Lane<?> lane, long delayNanos) {
+        lane.readyAt = System.nanoTime() + delayNanos;
+        queue.add(lane);
+    }
+
+    /**
+     * Processes the lane as soon as possible, even if it is waiting for more writes or to retry.
+     */
+    public void flush(Lane<?> lane) {
+        expedite(lane, WAITING);
+        expedite(lane, RETRYING);
+    }
+
+    /**
+     * Makes the lane wait until it is resumed. Must be called from the lane's process method, which must then return
+     * PARK.
+     */
+    public void park(Lane<?> lane) {
+        lane.state.set(PARKED);
+    }
+
+    public void resume(Lane<?> lane) {
+        if (lane.state.compareAndSet(PARKED, READY))
+            enqueue(lane, 0);
+    }
+
+    /**
+     * Waits until the lane has no writes left. Writes must have stopped being added to it.
+     *
+     * @return false if the thread was interrupted before the lane was idle, in which case the thread's interrupt
+     *         status is set again.
+     */
+    public boolean awaitIdle(Lane<?> lane) {
+        synchronized (lane) {
+            while (lane.state.get() != IDLE || lane.size() > 0) {
+                try {
+                    lane.wait(100);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void run() {
+        while (running) {
+            Lane<?> lane;
+            try {
+                lane = queue.take();
+            }
+            catch (InterruptedException e) {
+                continue;
+            }
+
+            lane.state.set(RUNNING);
+            long result;
+            try {
+                result = lane.process(batchSize);
+            }
+            catch (RuntimeException e) {
+                // Lanes handle their own failures, so this is a bug. Try again later rather than losing the writes.
+                LOG.log(Level.SEVERE, "Write behind failed unexpectedly, retrying in 1s", e);
+                result = 1000;
+            }
+
+            if (result == PARK)
+                // The lane may already have been resumed, so it must not be touched.
+                continue;
+            if (result > 0) {
+                lane.state.set(RETRYING);
+                enqueue(lane, TimeUnit.MILLISECONDS.toNanos(result));
+            }
+            else if (lane.size() > 0 || lane.hasPending()) {
+                // Go to the back of the line.
+                lane.state.set(READY);
+                enqueue(lane, 0);
+            }
+            else {
+                lane.state.set(IDLE);
+                // Writes may have been added before the state was set.
+                if (lane.size() > 0 && lane.state.compareAndSet(IDLE, WAITING))
+                    enqueue(lane, latencyNanos);
+                else {
+                    synchronized (lane) {
+                        lane.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the threads. Tables that use this should be closed first, or their remaining writes are not written.
+     */
+    public void close() {
+        running = false;
+        for (Thread thread : threads)
+            thread.interrupt();
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {
+                // Stop waiting, but leave the interrupt for the caller.
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
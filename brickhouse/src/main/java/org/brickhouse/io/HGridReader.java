@@ -7,7 +7,10 @@
  */
 package org.brickhouse.io;
 
+import java.util.function.Consumer;
+
 import org.brickhouse.datatype.HGrid;
+import org.brickhouse.datatype.HMap;
 
 /**
  * HGridReader is base class for reading grids from an input stream.
@@ -17,4 +20,24 @@ import org.brickhouse.datatype.HGrid;
 public interface HGridReader {
     /** Read a grid */
     HGrid readGrid();
+
+    /**
+     * Read a grid, passing the meta and then each row to the given consumers. Readers that can parse rows one at a
+     * time override this so that the grid is never held in memory. Use a RowBatcher to insert the rows into a table
+     * in batches.
+     * 
+     * @param metaConsumer
+     *            given the grid meta before any rows. May be null.
+     * @param rowConsumer
+     *            given each row in order.
+     * @return the number of rows read
+     */
+    default int readGrid(Consumer<HMap> metaConsumer, Consumer<HMap> rowConsumer) {
+        HGrid grid = readGrid();
+        if (metaConsumer != null)
+            metaConsumer.accept(grid.getMeta());
+        for (HMap row : grid.getRows())
+            rowConsumer.accept(row);
+        return grid.getRows().size();
+    }
 }
\ No newline at end of file
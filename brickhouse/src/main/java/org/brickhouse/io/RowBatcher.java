@@ -0,0 +1,65 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.io;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.brickhouse.datatype.HMap;
+
+/**
+ * Collects rows into batches of a fixed size, for importing a streamed grid with constant memory:
+ * 
+ * <pre>
+ * RowBatcher batcher = new RowBatcher(1000, table::batchInsert);
+ * reader.readGrid(null, batcher);
+ * batcher.flush();
+ * </pre>
+ */
+public class RowBatcher implements Consumer<HMap> {
+    private final int batchSize;
+    private final Consumer<List<HMap>> target;
+    private List<HMap> batch;
+    private int count;
+
+    public RowBatcher(int batchSize, Consumer<List<HMap>> target) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("batchSize must be at least 1");
+        this.batchSize = batchSize;
+        this.target = target;
+        batch = new ArrayList<>(batchSize);
+    }
+
+    @Override
+    public void accept(HMap row) {
+        batch.add(row);
+        if (batch.size() == batchSize)
+            flush();
+    }
+
+    /**
+     * Passes on any rows in a partial batch.
+     */
+    public void flush() {
+        if (!batch.isEmpty()) {
+            // A new list each time, since the target may hold on to it.
+            List<HMap> full = batch;
+            batch = new ArrayList<>(batchSize);
+            target.accept(full);
+            count += full.size();
+        }
+    }
+
+    /**
+     * @return the number of rows that have been passed on.
+     */
+    public int getCount() {
+        return count;
+    }
+}
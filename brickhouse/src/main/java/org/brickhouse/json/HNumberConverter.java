@@ -9,9 +9,6 @@ package org.brickhouse.json;
 
 import java.io.IOException;
 import java.lang.reflect.Type;
-import java.text.DecimalFormat;
-import java.text.DecimalFormatSymbols;
-import java.util.Locale;
 
 import org.apache.commons.lang3.StringUtils;
 import org.brickhouse.datatype.HNumber;
@@ -38,8 +35,7 @@ public class HNumberConverter implements ClassConverter {
 
         // Check if we can just write a number.
         if (StringUtils.isEmpty(h.getUnit()) && h != HNumber.NaN && h != HNumber.NEG_INF && h != HNumber.POS_INF)
-            writer.append(
-                    (new DecimalFormat("#0.####", new DecimalFormatSymbols(Locale.ENGLISH))).format(h.getValue()));
+            writer.append(JsonEncoder.formatDecimal(h.getValue()));
         else {
             StringBuilder sb = new StringBuilder().append(CODE).append(HValueConverter.ESCAPE);
             if (Double.isNaN(h.getValue()))
@@ -49,8 +45,7 @@ public class HNumberConverter implements ClassConverter {
             else if (h.getValue() == Double.POSITIVE_INFINITY)
                 sb.append("INF");
             else
-                sb.append(
-                        (new DecimalFormat("#0.####", new DecimalFormatSymbols(Locale.ENGLISH))).format(h.getValue()));
+                sb.append(JsonEncoder.formatDecimal(h.getValue()));
 
             if (!StringUtils.isEmpty(h.getUnit()))
                 sb.append(h.getUnit());
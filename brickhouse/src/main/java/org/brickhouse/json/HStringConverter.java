@@ -31,7 +31,7 @@ public class HStringConverter implements ClassConverter {
     public void jsonWrite(JsonWriter writer, Object value) throws IOException, JsonException {
         String s = value.toString();
         if (s.length() > 1 && s.charAt(1) == HValueConverter.ESCAPE)
-            writer.quote(CODE + HValueConverter.ESCAPE + value.toString());
+            writer.quote("" + CODE + HValueConverter.ESCAPE + value.toString());
         else
             writer.quote(value.toString());
     }
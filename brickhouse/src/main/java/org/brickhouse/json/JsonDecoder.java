@@ -0,0 +1,551 @@
+/*
+ * Copyright (c) 2015, Matthew Lohbihler
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.json;
+
+import org.brickhouse.ParseException;
+import org.brickhouse.datatype.HBinary;
+import org.brickhouse.datatype.HBoolean;
+import org.brickhouse.datatype.HDate;
+import org.brickhouse.datatype.HDateTime;
+import org.brickhouse.datatype.HList;
+import org.brickhouse.datatype.HMap;
+import org.brickhouse.datatype.HMarker;
+import org.brickhouse.datatype.HNumber;
+import org.brickhouse.datatype.HReference;
+import org.brickhouse.datatype.HRemove;
+import org.brickhouse.datatype.HString;
+import org.brickhouse.datatype.HTime;
+import org.brickhouse.datatype.HUri;
+import org.brickhouse.datatype.HValue;
+import org.brickhouse.datatype.LazyHMap;
+
+import com.serotonin.json.JsonException;
+
+/**
+ * Single pass decoder for the JSON encoding written by the converters in this package. Reads straight from the source
+ * string into HValues rather than building a serotonin type graph first and then resolving it, and dispatches on the
+ * "x:" type codes in place so that, for the common case of strings without escapes, each value costs one substring.
+ *
+ * Decoders are not thread safe. Use the static methods, which keep one decoder (and its buffers) per thread.
+ */
+public class JsonDecoder {
+    private static final ThreadLocal<JsonDecoder> DECODERS = new ThreadLocal<JsonDecoder>() {
+        @Override
+        protected JsonDecoder initialValue() {
+            return new JsonDecoder();
+        }
+    };
+
+    private static final HCoordinatesConverter COORDINATES = new HCoordinatesConverter();
+
+    private static final int KEY_CACHE_SIZE = 512;
+    private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+    /**
+     * Decodes a map written with JsonUtils.ctx(), where references carry their dis.
+     */
+    public static HMap readMap(String json) {
+        return DECODERS.get().decodeMap(json, false);
+    }
+
+    /**
+     * Decodes a map written with JsonUtils.dbCtx(), where references are only the id.
+     */
+    public static HMap readDbMap(String json) {
+        return DECODERS.get().decodeMap(json, true);
+    }
+
+    /**
+     * Indexes the top level tags of a map written with JsonUtils.dbCtx() without decoding their values. See LazyHMap.
+     */
+    public static LazyHMap readLazyDbMap(String json) {
+        return DECODERS.get().indexMap(json, true);
+    }
+
+    private static class LazyJsonHMap extends LazyHMap {
+        private final String json;
+        private final boolean db;
+
+        LazyJsonHMap(String json, boolean db) {
+            this.json = json;
+            this.db = db;
+        }
+
+        void index(String name, int offset) {
+            addTag(name, offset);
+        }
+
+        @Override
+        protected HValue decodeValue(int offset) {
+            return DECODERS.get().decodeValue(json, offset, db);
+        }
+    }
+
+    private final StringBuilder sb = new StringBuilder();
+    private final String[] keyCache = new String[KEY_CACHE_SIZE];
+
+    private String json;
+    private int pos;
+    private boolean db;
+
+    // Set by scanString
+    private int strEnd;
+    private boolean strEscaped;
+
+    public HMap decodeMap(String json, boolean db) {
+        this.json = json;
+        this.pos = 0;
+        this.db = db;
+        try {
+            skipWhitespace();
+            HMap map = readMap();
+            skipWhitespace();
+            if (pos < json.length())
+                throw error("Unexpected content after map");
+            return map;
+        }
+        finally {
+            this.json = null;
+        }
+    }
+
+    private LazyHMap indexMap(String json, boolean db) {
+        this.json = json;
+        this.pos = 0;
+        try {
+            LazyJsonHMap map = new LazyJsonHMap(json, db);
+            skipWhitespace();
+            expect('{');
+            skipWhitespace();
+            if (peek() == '}')
+                pos++;
+            else {
+                while (true) {
+                    skipWhitespace();
+                    String key = readKey();
+                    skipWhitespace();
+                    expect(':');
+                    skipWhitespace();
+                    map.index(key, pos);
+                    skipValue();
+
+                    skipWhitespace();
+                    char c = next();
+                    if (c == '}')
+                        break;
+                    if (c != ',')
+                        throw error("Expected ',' or '}' but found '" + c + "'");
+                }
+            }
+            skipWhitespace();
+            if (pos < json.length())
+                throw error("Unexpected content after map");
+            return map;
+        }
+        finally {
+            this.json = null;
+        }
+    }
+
+    private HValue decodeValue(String json, int offset, boolean db) {
+        this.json = json;
+        this.pos = offset;
+        this.db = db;
+        try {
+            return readValue();
+        }
+        finally {
+            this.json = null;
+        }
+    }
+
+    /**
+     * Moves past a value, only checking that strings are terminated and that brackets balance.
+     */
+    private void skipValue() {
+        char c = peek();
+        if (c == '"') {
+            scanString();
+            return;
+        }
+
+        if (c == '{' || c == '[') {
+            int depth = 0;
+            while (true) {
+                c = peek();
+                if (c == '"')
+                    scanString();
+                else {
+                    pos++;
+                    if (c == '{' || c == '[')
+                        depth++;
+                    else if ((c == '}' || c == ']') && --depth == 0)
+                        return;
+                }
+            }
+        }
+
+        int start = pos;
+        while (pos < json.length() && !isDelimiter(json.charAt(pos)))
+            pos++;
+        if (start == pos)
+            throw error("Unexpected character '" + c + "'");
+    }
+
+    private HValue readValue() {
+        skipWhitespace();
+        char c = peek();
+        switch (c) {
+        case '{':
+            return readMap();
+        case '[':
+            return readList();
+        case '"':
+            return readString();
+        case 't':
+            expectWord("true");
+            return HBoolean.TRUE;
+        case 'f':
+            expectWord("false");
+            return HBoolean.FALSE;
+        case 'n':
+            expectWord("null");
+            return null;
+        default:
+            int start = pos;
+            while (pos < json.length() && !isDelimiter(json.charAt(pos)))
+                pos++;
+            if (start == pos)
+                throw error("Unexpected character '" + c + "'");
+            double d = parseDouble(json, start, pos);
+            // BigDecimal, which the serotonin reader uses for bare numbers, has no negative zero.
+            return new HNumber(d == 0 ? 0 : d);
+        }
+    }
+
+    private HMap readMap() {
+        expect('{');
+        HMap map = new HMap();
+
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+            return map;
+        }
+
+        while (true) {
+            skipWhitespace();
+            String key = readKey();
+            skipWhitespace();
+            expect(':');
+            map.put(key, readValue());
+
+            skipWhitespace();
+            char c = next();
+            if (c == '}')
+                return map;
+            if (c != ',')
+                throw error("Expected ',' or '}' but found '" + c + "'");
+        }
+    }
+
+    private HList readList() {
+        expect('[');
+        HList list = new HList();
+
+        skipWhitespace();
+        if (peek() == ']') {
+            pos++;
+            return list;
+        }
+
+        while (true) {
+            list.add(readValue());
+
+            skipWhitespace();
+            char c = next();
+            if (c == ']')
+                return list;
+            if (c != ',')
+                throw error("Expected ',' or ']' but found '" + c + "'");
+        }
+    }
+
+    private String readKey() {
+        int start = scanString();
+        if (strEscaped)
+            return unescape(start, strEnd);
+
+        // Tag names repeat across rows, so reuse the String instances rather than allocating a new one per row.
+        int len = strEnd - start;
+        int hash = 0;
+        for (int i = start; i < strEnd; i++)
+            hash = 31 * hash + json.charAt(i);
+        int slot = (hash ^ (hash >>> 16)) & (KEY_CACHE_SIZE - 1);
+
+        String key = keyCache[slot];
+        if (key == null || key.length() != len || !json.regionMatches(start, key, 0, len)) {
+            key = json.substring(start, strEnd);
+            keyCache[slot] = key;
+        }
+        return key;
+    }
+
+    private HValue readString() {
+        int start = scanString();
+        if (strEscaped) {
+            String s = unescape(start, strEnd);
+            return decodeString(s, 0, s.length());
+        }
+        return decodeString(json, start, strEnd);
+    }
+
+    /**
+     * Mirrors HValueResolver and the individual converters' jsonRead methods.
+     */
+    private HValue decodeString(String s, int from, int to) {
+        if (to - from < 2 || s.charAt(from + 1) != HValueConverter.ESCAPE)
+            return new HString(s.substring(from, to));
+
+        int rest = from + 2;
+        switch (s.charAt(from)) {
+        case HBinaryConverter.CODE:
+            return new HBinary(s.substring(rest, to));
+        case HCoordinatesConverter.CODE:
+            try {
+                return COORDINATES.fromString(s.substring(rest, to));
+            }
+            catch (JsonException e) {
+                throw new ParseException(e.getMessage(), e);
+            }
+        case HDateConverter.CODE:
+            return new HDate(s.substring(rest, to));
+        case HDateTimeConverter.CODE:
+            return HDateTime.parse(s.substring(rest, to));
+        case HMarkerConverter.CODE:
+            return HMarker.VALUE;
+        case HNumberConverter.CODE:
+            return decodeNumber(s, rest, to);
+        case HReferenceConverter.CODE:
+            if (!db) {
+                int space = s.indexOf(' ', rest);
+                if (space != -1 && space < to)
+                    return new HReference(s.substring(rest, space), s.substring(space + 1, to));
+            }
+            return new HReference(s.substring(rest, to));
+        case HRemoveConverter.CODE:
+            return HRemove.VALUE;
+        case HStringConverter.CODE:
+            return new HString(s.substring(rest, to));
+        case HTimeConverter.CODE:
+            return new HTime(s.substring(rest, to));
+        case HUriConverter.CODE:
+            return new HUri(s.substring(rest, to));
+        }
+
+        throw new RuntimeException("Badly formed HVal: " + s.substring(from, to));
+    }
+
+    /**
+     * Same rules as HNumberConverter.jsonRead.
+     */
+    private static HNumber decodeNumber(String s, int from, int to) {
+        double d;
+        if (s.startsWith("NaN", from)) {
+            d = Double.NaN;
+            from += 3;
+        }
+        else if (s.startsWith("-INF", from)) {
+            d = Double.NEGATIVE_INFINITY;
+            from += 4;
+        }
+        else if (s.startsWith("INF", from)) {
+            d = Double.POSITIVE_INFINITY;
+            from += 3;
+        }
+        else {
+            int end = from;
+            while (end < to) {
+                char c = s.charAt(end);
+                if (c != '-' && c != '.' && (c < '0' || c > '9'))
+                    break;
+                end++;
+            }
+            d = parseDouble(s, from, end);
+            from = end;
+        }
+
+        if (from == to)
+            return new HNumber(d);
+        return new HNumber(d, s.substring(from, to));
+    }
+
+    /**
+     * Parses plain decimals such as those written by DecimalFormat("#0.####") without allocating. A mantissa of at
+     * most 15 digits and a power of ten up to 22 are both exact doubles, so the one division is correctly rounded and
+     * gives the same result as Double.parseDouble. Anything else (exponents, long mantissas) goes the slow way.
+     */
+    static double parseDouble(String s, int from, int to) {
+        int i = from;
+        boolean negative = false;
+        if (i < to && s.charAt(i) == '-') {
+            negative = true;
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean point = false;
+        boolean sawDigit = false;
+        boolean fast = true;
+        for (; i < to && fast; i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                sawDigit = true;
+                mantissa = mantissa * 10 + (c - '0');
+                if (mantissa != 0)
+                    digits++;
+                if (point)
+                    scale++;
+            }
+            else if (c == '.' && !point)
+                point = true;
+            else
+                fast = false;
+        }
+
+        if (fast && sawDigit && digits <= 15 && scale < POWERS_OF_TEN.length) {
+            double d = scale == 0 ? mantissa : mantissa / POWERS_OF_TEN[scale];
+            return negative ? -d : d;
+        }
+
+        try {
+            return Double.parseDouble(s.substring(from, to));
+        }
+        catch (NumberFormatException e) {
+            throw new ParseException("Invalid number: " + s.substring(from, to), e);
+        }
+    }
+
+    //
+    // Lexing
+    //
+    /**
+     * Expects the current character to be a quote. Leaves pos after the closing quote, and returns the index of the
+     * first character of the string content. The content ends at strEnd.
+     */
+    private int scanString() {
+        expect('"');
+        int start = pos;
+        strEscaped = false;
+        while (true) {
+            if (pos >= json.length())
+                throw error("Unterminated string");
+            char c = json.charAt(pos++);
+            if (c == '"') {
+                strEnd = pos - 1;
+                return start;
+            }
+            if (c == '\\') {
+                strEscaped = true;
+                pos++;
+            }
+        }
+    }
+
+    private String unescape(int from, int to) {
+        sb.setLength(0);
+        for (int i = from; i < to; i++) {
+            char c = json.charAt(i);
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+
+            c = json.charAt(++i);
+            switch (c) {
+            case 'b':
+                sb.append('\b');
+                break;
+            case 't':
+                sb.append('\t');
+                break;
+            case 'n':
+                sb.append('\n');
+                break;
+            case 'f':
+                sb.append('\f');
+                break;
+            case 'r':
+                sb.append('\r');
+                break;
+            case 'u':
+                if (i + 4 >= to)
+                    throw error("Bad unicode escape");
+                int cp = 0;
+                for (int j = 1; j <= 4; j++) {
+                    int h = Character.digit(json.charAt(i + j), 16);
+                    if (h == -1)
+                        throw error("Bad unicode escape");
+                    cp = (cp << 4) | h;
+                }
+                sb.append((char) cp);
+                i += 4;
+                break;
+            case '\\':
+            case '"':
+            case '/':
+                sb.append(c);
+                break;
+            default:
+                throw error("Unrecognized escape character: " + c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private void skipWhitespace() {
+        while (pos < json.length() && Character.isWhitespace(json.charAt(pos)))
+            pos++;
+    }
+
+    private char peek() {
+        if (pos >= json.length())
+            throw error("Unexpected end of input");
+        return json.charAt(pos);
+    }
+
+    private char next() {
+        char c = peek();
+        pos++;
+        return c;
+    }
+
+    private void expect(char c) {
+        char n = next();
+        if (n != c)
+            throw error("Expected '" + c + "' but found '" + n + "'");
+    }
+
+    private void expectWord(String word) {
+        if (!json.startsWith(word, pos) || pos + word.length() < json.length()
+                && !isDelimiter(json.charAt(pos + word.length())))
+            throw error("Value is not null, true, false, or a number");
+        pos += word.length();
+    }
+
+    private static boolean isDelimiter(char c) {
+        return c == ',' || c == ']' || c == '}' || c == ':' || c == '"' || Character.isWhitespace(c);
+    }
+
+    private ParseException error(String message) {
+        return new ParseException(message + " at position " + pos);
+    }
+}
@@ -0,0 +1,471 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.json;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.FieldPosition;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.commons.lang3.StringUtils;
+import org.brickhouse.datatype.HBinary;
+import org.brickhouse.datatype.HBoolean;
+import org.brickhouse.datatype.HCoordinates;
+import org.brickhouse.datatype.HDate;
+import org.brickhouse.datatype.HDateTime;
+import org.brickhouse.datatype.HGrid;
+import org.brickhouse.datatype.HList;
+import org.brickhouse.datatype.HMap;
+import org.brickhouse.datatype.HMarker;
+import org.brickhouse.datatype.HNumber;
+import org.brickhouse.datatype.HReference;
+import org.brickhouse.datatype.HRemove;
+import org.brickhouse.datatype.HString;
+import org.brickhouse.datatype.HTime;
+import org.brickhouse.datatype.HUri;
+import org.brickhouse.datatype.HValue;
+
+/**
+ * Streaming encoder that writes the same compact JSON as a serotonin JsonWriter configured with JsonUtils.ctx() or
+ * dbCtx(), without going through the converter lookup and without per-value StringBuilders or DecimalFormats. Output
+ * is accumulated in a per-thread buffer and, when writing to a Writer, flushed to it whenever the buffer fills, so
+ * large grids are streamed rather than built in memory.
+ *
+ * Encoders are not thread safe. Use the static methods, which keep one encoder per thread.
+ */
+public class JsonEncoder {
+    private static final ThreadLocal<JsonEncoder> ENCODERS = new ThreadLocal<JsonEncoder>() {
+        @Override
+        protected JsonEncoder initialValue() {
+            return new JsonEncoder();
+        }
+    };
+
+    private static final int FLUSH_SIZE = 8192;
+    private static final int MAX_RETAINED_SIZE = 64 * 1024;
+    private static final double MAX_EXACT_LONG = 1L << 53;
+
+    private static final String BINARY = prefix(HBinaryConverter.CODE);
+    private static final String COORDINATES = prefix(HCoordinatesConverter.CODE);
+    private static final String DATE = prefix(HDateConverter.CODE);
+    private static final String DATE_TIME = prefix(HDateTimeConverter.CODE);
+    private static final String MARKER = "\"" + HMarkerConverter.CODE + HValueConverter.ESCAPE + "\"";
+    private static final String NUMBER = prefix(HNumberConverter.CODE);
+    private static final String REFERENCE = prefix(HReferenceConverter.CODE);
+    private static final String REMOVE = "\"" + HRemoveConverter.CODE + HValueConverter.ESCAPE + "\"";
+    private static final String STRING = prefix(HStringConverter.CODE);
+    private static final String TIME = prefix(HTimeConverter.CODE);
+    private static final String URI = prefix(HUriConverter.CODE);
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static String prefix(char code) {
+        return "\"" + code + HValueConverter.ESCAPE;
+    }
+
+    /**
+     * Encodes the value as JsonUtils.ctx() would.
+     */
+    public static String toJson(HValue value) {
+        return ENCODERS.get().encode(value, false);
+    }
+
+    /**
+     * Encodes the value as JsonUtils.dbCtx() would.
+     */
+    public static String toDbJson(HValue value) {
+        return ENCODERS.get().encode(value, true);
+    }
+
+    public static void write(HValue value, boolean db, StringBuilder out) {
+        JsonEncoder encoder = ENCODERS.get();
+        encoder.start(out, null, db);
+        try {
+            encoder.writeValue(value);
+        }
+        finally {
+            encoder.end();
+        }
+    }
+
+    public static void write(HValue value, boolean db, Writer out) throws IOException {
+        JsonEncoder encoder = ENCODERS.get();
+        encoder.start(encoder.buffer, out, db);
+        try {
+            encoder.writeValue(value);
+            encoder.flush(0);
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        finally {
+            encoder.end();
+        }
+    }
+
+    public static void write(HGrid grid, boolean db, Writer out) throws IOException {
+        JsonEncoder encoder = ENCODERS.get();
+        encoder.start(encoder.buffer, out, db);
+        try {
+            encoder.writeGrid(grid);
+            encoder.flush(0);
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        finally {
+            encoder.end();
+        }
+    }
+
+    /**
+     * Writes the value as UTF-8. The stream is flushed but not closed.
+     */
+    public static void write(HValue value, boolean db, OutputStream out) throws IOException {
+        Writer w = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        write(value, db, w);
+        w.flush();
+    }
+
+    /**
+     * Writes the grid as UTF-8. The stream is flushed but not closed.
+     */
+    public static void write(HGrid grid, boolean db, OutputStream out) throws IOException {
+        Writer w = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        write(grid, db, w);
+        w.flush();
+    }
+
+    /**
+     * Formats a number the way HNumberConverter always has, i.e. DecimalFormat("#0.####") in English, but using a
+     * per-thread format instance.
+     */
+    static String formatDecimal(double d) {
+        JsonEncoder encoder = ENCODERS.get();
+        StringBuilder sb = new StringBuilder();
+        encoder.appendDecimal(sb, d);
+        return sb.toString();
+    }
+
+    private final StringBuilder buffer = new StringBuilder(1024);
+    private final DecimalFormat decimalFormat = new DecimalFormat("#0.####",
+            new DecimalFormatSymbols(Locale.ENGLISH));
+    private final StringBuffer decimalBuffer = new StringBuffer(32);
+    private final FieldPosition fieldPosition = new FieldPosition(0);
+
+    private StringBuilder sb;
+    private Writer out;
+    private boolean db;
+    private int streamedRows;
+
+    private String encode(HValue value, boolean db) {
+        start(buffer, null, db);
+        try {
+            writeValue(value);
+            return sb.toString();
+        }
+        finally {
+            end();
+        }
+    }
+
+    private void start(StringBuilder sb, Writer out, boolean db) {
+        if (this.sb != null)
+            throw new IllegalStateException("Encoder is already in use");
+        this.sb = sb;
+        this.out = out;
+        this.db = db;
+    }
+
+    private void end() {
+        if (sb == buffer) {
+            buffer.setLength(0);
+            // Don't hold on to the occasional huge document.
+            if (buffer.capacity() > MAX_RETAINED_SIZE)
+                buffer.trimToSize();
+        }
+        sb = null;
+        out = null;
+    }
+
+    private void flush(int threshold) {
+        if (out != null && sb.length() > threshold) {
+            try {
+                out.append(sb);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            sb.setLength(0);
+        }
+    }
+
+    //
+    // Structures
+    //
+    private void writeGrid(HGrid grid) {
+        sb.append('{');
+        if (!grid.getMeta().isEmpty()) {
+            sb.append("\"meta\":");
+            writeMap(grid.getMeta());
+            sb.append(',');
+        }
+        sb.append("\"rows\":");
+        writeRows(grid.getRows());
+        sb.append('}');
+    }
+
+    //
+    // Grids that are written a row at a time, see JsonGridWriter
+    //
+    void beginGrid(Writer out, boolean db, HMap meta) {
+        start(buffer, out, db);
+        sb.append('{');
+        if (meta != null && !meta.isEmpty()) {
+            sb.append("\"meta\":");
+            writeMap(meta);
+            sb.append(',');
+        }
+        sb.append("\"rows\":[");
+        streamedRows = 0;
+    }
+
+    void writeGridRow(HMap row) {
+        if (sb == null)
+            throw new IllegalStateException("The grid has not been started");
+        if (streamedRows++ > 0)
+            sb.append(',');
+        writeValue(row);
+        flush(FLUSH_SIZE);
+    }
+
+    void endGrid() {
+        if (sb == null)
+            throw new IllegalStateException("The grid has not been started");
+        try {
+            sb.append("]}");
+            flush(0);
+        }
+        finally {
+            end();
+        }
+    }
+
+    private void writeRows(List<HMap> rows) {
+        if (rows == null) {
+            sb.append("null");
+            return;
+        }
+
+        sb.append('[');
+        boolean first = true;
+        for (HMap row : rows) {
+            if (first)
+                first = false;
+            else
+                sb.append(',');
+            writeValue(row);
+            flush(FLUSH_SIZE);
+        }
+        sb.append(']');
+    }
+
+    private void writeMap(HMap map) {
+        sb.append('{');
+        int start = sb.length();
+        map.forEach((key, value) -> {
+            if (sb.length() > start)
+                sb.append(',');
+            quote(key);
+            sb.append(':');
+            writeValue(value);
+        });
+        sb.append('}');
+    }
+
+    private void writeList(HList list) {
+        sb.append('[');
+        boolean first = true;
+        for (HValue hv : list.getList()) {
+            if (first)
+                first = false;
+            else
+                sb.append(',');
+            writeValue(hv);
+        }
+        sb.append(']');
+    }
+
+    //
+    // Values
+    //
+    private void writeValue(HValue value) {
+        if (value == null)
+            sb.append("null");
+        else if (value instanceof HString)
+            writeString(((HString) value).getValue());
+        else if (value instanceof HMarker)
+            sb.append(MARKER);
+        else if (value instanceof HNumber)
+            writeNumber((HNumber) value);
+        else if (value instanceof HReference)
+            writeReference((HReference) value);
+        else if (value instanceof HMap)
+            writeMap((HMap) value);
+        else if (value instanceof HBoolean)
+            sb.append(value.toString());
+        // Dates and times have nothing to escape, so they are written straight into the buffer.
+        else if (value instanceof HDateTime) {
+            sb.append(DATE_TIME);
+            ((HDateTime) value).appendTo(sb);
+            sb.append('"');
+        }
+        else if (value instanceof HDate) {
+            sb.append(DATE);
+            ((HDate) value).appendTo(sb);
+            sb.append('"');
+        }
+        else if (value instanceof HTime) {
+            sb.append(TIME);
+            ((HTime) value).appendTo(sb);
+            sb.append('"');
+        }
+        else if (value instanceof HList)
+            writeList((HList) value);
+        else if (value instanceof HUri)
+            coded(URI, value.toString());
+        else if (value instanceof HBinary)
+            coded(BINARY, ((HBinary) value).getMime());
+        else if (value instanceof HCoordinates) {
+            HCoordinates c = (HCoordinates) value;
+            sb.append(COORDINATES).append('(').append(c.getLat()).append(',').append(c.getLng()).append(')')
+                    .append('"');
+        }
+        else if (value instanceof HRemove)
+            sb.append(REMOVE);
+        else
+            throw new RuntimeException("No converter for class " + value.getClass());
+    }
+
+    private void writeString(String s) {
+        if (s.length() > 1 && s.charAt(1) == HValueConverter.ESCAPE)
+            coded(STRING, s);
+        else
+            quote(s);
+    }
+
+    private void writeReference(HReference r) {
+        sb.append(REFERENCE);
+        escape(r.getId());
+        if (!db && !StringUtils.isEmpty(r.getDis())) {
+            sb.append(' ');
+            escape(r.getDis());
+        }
+        sb.append('"');
+    }
+
+    private void writeNumber(HNumber h) {
+        double d = h.getValue();
+
+        // Check if we can just write a number.
+        if (StringUtils.isEmpty(h.getUnit()) && h != HNumber.NaN && h != HNumber.NEG_INF && h != HNumber.POS_INF)
+            appendDecimal(sb, d);
+        else {
+            sb.append(NUMBER);
+            if (Double.isNaN(d))
+                sb.append("NaN");
+            else if (d == Double.NEGATIVE_INFINITY)
+                sb.append("-INF");
+            else if (d == Double.POSITIVE_INFINITY)
+                sb.append("INF");
+            else
+                appendDecimal(sb, d);
+
+            if (!StringUtils.isEmpty(h.getUnit()))
+                escape(h.getUnit());
+            sb.append('"');
+        }
+    }
+
+    private void appendDecimal(StringBuilder sb, double d) {
+        // Whole numbers come out of the format unchanged, so skip it. Negative zero is formatted as "-0".
+        if (d != 0 && d == Math.rint(d) && Math.abs(d) < MAX_EXACT_LONG) {
+            sb.append((long) d);
+            return;
+        }
+
+        decimalBuffer.setLength(0);
+        decimalFormat.format(d, decimalBuffer, fieldPosition);
+        sb.append(decimalBuffer);
+    }
+
+    private void coded(String prefix, String value) {
+        sb.append(prefix);
+        escape(value);
+        sb.append('"');
+    }
+
+    private void quote(String s) {
+        sb.append('"');
+        escape(s);
+        sb.append('"');
+    }
+
+    /**
+     * Same escaping as JsonWriter.quote, with forward slashes left alone as per JsonUtils.
+     */
+    private void escape(String s) {
+        int len = s.length();
+        int start = 0;
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (!needsEscape(c))
+                continue;
+
+            sb.append(s, start, i);
+            start = i + 1;
+            switch (c) {
+            case '\\':
+            case '"':
+                sb.append('\\').append(c);
+                break;
+            case '\b':
+                sb.append("\\b");
+                break;
+            case '\t':
+                sb.append("\\t");
+                break;
+            case '\n':
+                sb.append("\\n");
+                break;
+            case '\f':
+                sb.append("\\f");
+                break;
+            case '\r':
+                sb.append("\\r");
+                break;
+            default:
+                sb.append("\\u").append(HEX[(c >> 12) & 0xf]).append(HEX[(c >> 8) & 0xf]).append(HEX[(c >> 4) & 0xf])
+                        .append(HEX[c & 0xf]);
+            }
+        }
+        sb.append(s, start, len);
+    }
+
+    private static boolean needsEscape(char c) {
+        return c < ' ' || c == '"' || c == '\\' || (c >= '\u0080' && c < '\u00a0')
+                || (c >= '\u2000' && c < '\u2100');
+    }
+}
@@ -0,0 +1,295 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.json;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.brickhouse.ParseException;
+import org.brickhouse.datatype.HGrid;
+import org.brickhouse.datatype.HMap;
+import org.brickhouse.io.HGridReader;
+
+/**
+ * Reads grids in the JSON form written by HGridConverter and JsonGridWriter, one row at a time. The structure of the
+ * grid is scanned here, and the text of each row is decoded with JsonDecoder, so only one row is held in memory at a
+ * time when the grid is streamed with readGrid(metaConsumer, rowConsumer).
+ *
+ * Other entries in the grid object are skipped. When streaming, the meta must come before the rows, as it is written.
+ */
+public class JsonGridReader implements HGridReader {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Reader in;
+    private final boolean db;
+    private final char[] buf = new char[BUFFER_SIZE];
+    private int bufPos;
+    private int bufLen;
+    private long position;
+    private final StringBuilder sb = new StringBuilder();
+
+    /**
+     * @param db
+     *            whether the JSON was written as JsonUtils.dbCtx() would rather than JsonUtils.ctx().
+     */
+    public JsonGridReader(Reader in, boolean db) {
+        this.in = in;
+        this.db = db;
+    }
+
+    /**
+     * Reads UTF-8 from the stream.
+     */
+    public JsonGridReader(InputStream in, boolean db) {
+        this(new InputStreamReader(in, StandardCharsets.UTF_8), db);
+    }
+
+    /** Read grid from the stream. */
+    @Override
+    public HGrid readGrid() {
+        final List<HMap> rows = new ArrayList<>();
+        HMap meta = read(null, rows::add, false);
+        return new HGrid(meta, rows);
+    }
+
+    @Override
+    public int readGrid(Consumer<HMap> metaConsumer, Consumer<HMap> rowConsumer) {
+        final int[] count = new int[1];
+        read(metaConsumer, row -> {
+            count[0]++;
+            rowConsumer.accept(row);
+        }, true);
+        return count[0];
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * @return the grid meta
+     */
+    private HMap read(Consumer<HMap> metaConsumer, Consumer<HMap> rowConsumer, boolean streaming) {
+        HMap meta = null;
+        boolean rowsRead = false;
+
+        expect('{');
+        int c = nextNonWhitespace();
+        if (c != '}') {
+            while (true) {
+                if (c != '"')
+                    throw error("Expected a key");
+                String key = readKey();
+                expect(':');
+
+                if ("meta".equals(key)) {
+                    if (rowsRead && streaming)
+                        throw error("The grid meta must come before the rows");
+                    meta = readMap();
+                }
+                else if ("rows".equals(key)) {
+                    if (meta == null)
+                        meta = new HMap();
+                    if (metaConsumer != null)
+                        metaConsumer.accept(meta);
+                    rowsRead = true;
+                    readRows(rowConsumer);
+                }
+                else {
+                    sb.setLength(0);
+                    captureValue(nextNonWhitespace());
+                }
+
+                c = nextNonWhitespace();
+                if (c == '}')
+                    break;
+                if (c != ',')
+                    throw error("Expected ',' or '}'");
+                c = nextNonWhitespace();
+            }
+        }
+
+        if (meta == null)
+            meta = new HMap();
+        if (!rowsRead && metaConsumer != null)
+            metaConsumer.accept(meta);
+        return meta;
+    }
+
+    private void readRows(Consumer<HMap> rowConsumer) {
+        int c = nextNonWhitespace();
+        if (c == 'n') {
+            expectWord("ull");
+            return;
+        }
+        if (c != '[')
+            throw error("Expected the rows array");
+
+        c = nextNonWhitespace();
+        if (c == ']')
+            return;
+        while (true) {
+            sb.setLength(0);
+            captureValue(c);
+            rowConsumer.accept(toMap());
+
+            c = nextNonWhitespace();
+            if (c == ']')
+                return;
+            if (c != ',')
+                throw error("Expected ',' or ']'");
+            c = nextNonWhitespace();
+        }
+    }
+
+    private HMap readMap() {
+        sb.setLength(0);
+        captureValue(nextNonWhitespace());
+        return toMap();
+    }
+
+    /**
+     * Decodes the captured value, which is a map or null.
+     */
+    private HMap toMap() {
+        if (sb.length() == 4 && sb.charAt(0) == 'n')
+            return new HMap();
+        if (sb.charAt(0) != '{')
+            throw error("Expected a map");
+        String json = sb.toString();
+        return db ? JsonDecoder.readDbMap(json) : JsonDecoder.readMap(json);
+    }
+
+    private String readKey() {
+        sb.setLength(0);
+        captureString();
+        // Keys that we care about have no escapes.
+        return sb.substring(1, sb.length() - 1);
+    }
+
+    /**
+     * Appends the text of a complete value, whose first character has been read, to sb.
+     */
+    private void captureValue(int c) {
+        if (c == '"') {
+            captureString();
+            return;
+        }
+
+        if (c == '{' || c == '[') {
+            int depth = 0;
+            while (true) {
+                if (c == '"')
+                    captureString();
+                else {
+                    sb.append((char) c);
+                    if (c == '{' || c == '[')
+                        depth++;
+                    else if (c == '}' || c == ']') {
+                        if (--depth == 0)
+                            return;
+                    }
+                }
+                c = next();
+            }
+        }
+
+        // A number, true, false or null.
+        while (c != -1 && c != ',' && c != '}' && c != ']' && !Character.isWhitespace(c)) {
+            sb.append((char) c);
+            c = read();
+        }
+        if (sb.length() == 0)
+            throw error("Expected a value");
+        if (c != -1)
+            unread();
+    }
+
+    /**
+     * Appends a string, whose opening quote has been read, to sb.
+     */
+    private void captureString() {
+        sb.append('"');
+        while (true) {
+            int c = next();
+            sb.append((char) c);
+            if (c == '\\')
+                sb.append((char) next());
+            else if (c == '"')
+                return;
+        }
+    }
+
+    private void expect(char expected) {
+        int c = nextNonWhitespace();
+        if (c != expected)
+            throw error("Expected '" + expected + "'");
+    }
+
+    private void expectWord(String word) {
+        for (int i = 0; i < word.length(); i++) {
+            if (next() != word.charAt(i))
+                throw error("Unexpected value");
+        }
+    }
+
+    private int nextNonWhitespace() {
+        int c;
+        do {
+            c = next();
+        }
+        while (Character.isWhitespace(c));
+        return c;
+    }
+
+    private int next() {
+        int c = read();
+        if (c == -1)
+            throw error("Unexpected end of input");
+        return c;
+    }
+
+    private int read() {
+        if (bufPos == bufLen) {
+            try {
+                int n;
+                do {
+                    n = in.read(buf, 0, buf.length);
+                }
+                while (n == 0);
+                if (n < 0)
+                    return -1;
+                bufLen = n;
+                bufPos = 0;
+            }
+            catch (IOException e) {
+                throw new ParseException(e.toString(), e);
+            }
+        }
+        position++;
+        return buf[bufPos++];
+    }
+
+    /**
+     * Steps back over the last character read, which is always still in the buffer.
+     */
+    private void unread() {
+        bufPos--;
+        position--;
+    }
+
+    private ParseException error(String message) {
+        return new ParseException(message + " at position " + position);
+    }
+}
@@ -0,0 +1,86 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.json;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import org.brickhouse.datatype.HGrid;
+import org.brickhouse.datatype.HMap;
+import org.brickhouse.io.HGridWriter;
+
+/**
+ * Writes grids as JSON, in the same form as HGridConverter. Besides whole grids, a grid can be written a row at a time
+ * with startGrid, writeRow and endGrid, e.g. from a Table.readAll consumer, so that it never has to be in memory.
+ * Output is flushed to the underlying writer in chunks as it goes.
+ */
+public class JsonGridWriter implements HGridWriter {
+    private final Writer out;
+    private final boolean db;
+    private final JsonEncoder encoder = new JsonEncoder();
+
+    /**
+     * @param db
+     *            whether to write as JsonUtils.dbCtx() would rather than JsonUtils.ctx().
+     */
+    public JsonGridWriter(Writer out, boolean db) {
+        this.out = out;
+        this.db = db;
+    }
+
+    /**
+     * Writes UTF-8 to the stream.
+     */
+    public JsonGridWriter(OutputStream out, boolean db) {
+        this(new OutputStreamWriter(out, StandardCharsets.UTF_8), db);
+    }
+
+    @Override
+    public void writeGrid(HGrid grid) {
+        startGrid(grid.getMeta());
+        for (HMap row : grid.getRows())
+            writeRow(row);
+        endGrid();
+    }
+
+    public void startGrid(HMap meta) {
+        encoder.beginGrid(out, db, meta);
+    }
+
+    public void writeRow(HMap row) {
+        encoder.writeGridRow(row);
+    }
+
+    public void endGrid() {
+        encoder.endGrid();
+    }
+
+    @Override
+    public void flush() {
+        try {
+            out.flush();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            out.close();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
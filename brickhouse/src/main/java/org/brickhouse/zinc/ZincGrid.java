@@ -71,18 +71,6 @@ public class ZincGrid {
         }
     }
 
-    ZincGrid(HMap meta, List<ZincColumn> columns) {
-        this.meta = meta == null ? HMap.EMPTY : meta;
-        this.columns = columns;
-        this.rows = new ArrayList<>();
-
-        for (ZincColumn column : columns) {
-            if (colsByName.get(column.getName()) != null)
-                throw new IllegalStateException("Duplicate col name: " + column.getName());
-            colsByName.put(column.getName(), column);
-        }
-    }
-
     public HMap getMeta() {
         return meta;
     }
@@ -7,14 +7,16 @@
  */
 package org.brickhouse.zinc;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
-import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
 
 import org.brickhouse.ParseException;
 import org.brickhouse.datatype.HBinary;
@@ -50,26 +52,22 @@ public class ZincReader implements HGridReader {
 
     /** Read from UTF-8 input stream. */
     public ZincReader(InputStream in) {
-        try {
-            this.in = new BufferedReader(new InputStreamReader(in, "UTF-8"));
-            init();
-        }
-        catch (IOException e) {
-            throw err(e);
-        }
+        this(new InputStreamReader(in, StandardCharsets.UTF_8));
     }
 
+    /** Read from a reader. The reader is read in blocks, so there is no need to buffer it. */
     public ZincReader(Reader in) {
-        if (in instanceof BufferedReader)
-            this.in = in;
-        else
-            this.in = new BufferedReader(in);
+        this.in = in;
+        this.buf = new char[BUFFER_SIZE];
         init();
     }
 
     /** Read from in-memory string. */
     public ZincReader(String in) {
-        this(new StringReader(in));
+        // The string is the whole window, so there is never anything to refill.
+        this.buf = in.toCharArray();
+        this.bufLen = buf.length;
+        init();
     }
 
     private void init() {
@@ -84,37 +82,45 @@ public class ZincReader implements HGridReader {
     /** Read grid from the stream. */
     @Override
     public HGrid readGrid() {
-        ZincGrid zg = readZincGrid();
-
-        List<HMap> maps = new ArrayList<>();
-        for (ZincRow row : zg.getRows()) {
-            if (row.isEmpty())
-                maps.add(new HMap());
-            else
-                maps.add(new HMap(row));
-        }
-
-        return new HGrid(zg.getMeta(), maps);
+        HMap meta = new HMap();
+        String[] columns = readHeader(meta);
+        List<HMap> rows = new ArrayList<>();
+        readRows(columns, rows::add);
+        return new HGrid(meta, rows);
     }
 
-    private ZincGrid readZincGrid() {
+    /**
+     * Reads a grid, handing each row to the row consumer as soon as it has been parsed, so that the grid is never
+     * held in memory.
+     */
+    @Override
+    public int readGrid(Consumer<HMap> metaConsumer, Consumer<HMap> rowConsumer) {
         HMap meta = new HMap();
+        String[] columns = readHeader(meta);
+        if (metaConsumer != null)
+            metaConsumer.accept(meta);
+        return readRows(columns, rowConsumer);
+    }
 
+    /**
+     * Reads the version and meta line, and the column line.
+     * 
+     * @return the column names
+     */
+    private String[] readHeader(HMap meta) {
         // meta line
         readVer();
         readMeta(meta);
         consumeNewline();
 
         // read cols
-        List<ZincColumn> columns = new ArrayList<>();
-        int numCols = 0;
+        List<String> columns = new ArrayList<>();
         while (true) {
             String name = readId();
             skipSpace();
-            numCols++;
             HMap colMeta = new HMap();
             readMeta(colMeta);
-            columns.add(new ZincColumn(numCols, name, colMeta));
+            columns.add(name);
             if (cur != ',')
                 break;
             consume();
@@ -122,29 +128,47 @@ public class ZincReader implements HGridReader {
         }
         consumeNewline();
 
-        ZincGrid zg = new ZincGrid(meta, columns);
+        Set<String> names = new HashSet<>();
+        for (String name : columns) {
+            if (!names.add(name))
+                throw new IllegalStateException("Duplicate col name: " + name);
+        }
+
+        return columns.toArray(new String[columns.size()]);
+    }
+
+    /**
+     * @return the number of rows read
+     */
+    private int readRows(String[] columns, Consumer<HMap> rowConsumer) {
+        // A grid with no rows is written with a single "empty" column, and its rows are empty.
+        boolean empty = columns.length == 1 && "empty".equals(columns[0]);
 
-        // rows
+        int count = 0;
         while (cur != '\n' && cur > 0) {
-            HValue[] cells = new HValue[numCols];
-            for (int i = 0; i < numCols; ++i) {
+            HMap row = new HMap();
+            for (int i = 0; i < columns.length; ++i) {
                 skipSpace();
-                if (cur != ',' && cur != '\n')
-                    cells[i] = readVal();
+                if (cur != ',' && cur != '\n') {
+                    HValue val = readVal();
+                    if (val != null && !empty)
+                        row.put(columns[i], val);
+                }
                 skipSpace();
-                if (i + 1 < numCols) {
+                if (i + 1 < columns.length) {
                     if (cur != ',')
                         throw errChar("Expecting comma in row");
                     consume();
                 }
             }
             consumeNewline();
-            zg.getRows().add(new ZincRow(zg, cells));
+            rowConsumer.accept(row);
+            count++;
         }
         if (cur == '\n')
             consumeNewline();
 
-        return zg;
+        return count;
     }
 
     /** Read list of grids from the stream. */
@@ -157,7 +181,8 @@ public class ZincReader implements HGridReader {
 
     /** Close underlying input stream */
     public void close() throws IOException {
-        in.close();
+        if (in != null)
+            in.close();
     }
 
     /** Read set of name/value tags as dictionary */
@@ -233,12 +258,12 @@ public class ZincReader implements HGridReader {
     private String readId() {
         if (!isIdStart(cur))
             throw errChar("Invalid name start char");
-        StringBuffer s = new StringBuffer();
+        sb.setLength(0);
         while (isId(cur)) {
-            s.append((char) cur);
+            sb.append((char) cur);
             consume();
         }
-        return s.toString();
+        return cachedString();
     }
 
     //////////////////////////////////////////////////////////////////////////
@@ -277,13 +302,13 @@ public class ZincReader implements HGridReader {
 
     private HValue readWordVal() {
         // read into string
-        StringBuffer s = new StringBuffer();
+        sb.setLength(0);
         do {
-            s.append((char) cur);
+            sb.append((char) cur);
             consume();
         }
         while (isAlpha(cur));
-        String word = s.toString();
+        String word = cachedString();
 
         // match identifier
         if (isFilter) {
@@ -323,56 +348,89 @@ public class ZincReader implements HGridReader {
         if (cur < 0)
             throw err("Expected '(' after Bin");
         consume();
-        StringBuffer s = new StringBuffer();
+        sb.setLength(0);
         while (cur != ')') {
             if (cur < 0)
                 throw err("Unexpected end of bin literal");
             if (cur == '\n' || cur == '\r')
                 throw err("Unexpected newline in bin literal");
-            s.append((char) cur);
+            sb.append((char) cur);
             consume();
         }
         consume();
-        return new HBinary(s.toString());
+        return new HBinary(sb.toString());
     }
 
     private HValue readCoordVal() {
         if (cur < 0)
             throw err("Expected '(' after Coord");
         consume();
-        StringBuffer s = new StringBuffer("C(");
+        sb.setLength(0);
+        sb.append("C(");
         while (cur != ')') {
             if (cur < 0)
                 throw err("Unexpected end of coord literal");
             if (cur == '\n' || cur == '\r')
                 throw err("Unexpected newline in coord literal");
-            s.append((char) cur);
+            sb.append((char) cur);
             consume();
         }
         consume();
-        s.append(")");
-        return HCoordinates.parse(s.toString());
+        sb.append(")");
+        return HCoordinates.parse(sb.toString());
     }
 
     private HValue readNumVal() {
-        // parse numeric part
-        StringBuffer s = new StringBuffer();
-        s.append((char) cur);
+        // parse numeric part, accumulating the digits as we go so that plain decimals need no further parsing
+        sb.setLength(0);
+        sb.append((char) cur);
+        boolean negative = cur == '-';
+        boolean sawDigit = !negative;
+        long mantissa = negative ? 0 : cur - '0';
+        int digits = mantissa == 0 ? 0 : 1;
+        int scale = 0;
+        boolean point = false;
+        boolean plain = true;
         consume();
         while (isDigit(cur) || cur == '.' || cur == '_') {
-            if (cur != '_')
-                s.append((char) cur);
+            if (cur == '.') {
+                plain &= !point;
+                point = true;
+                sb.append((char) cur);
+            }
+            else if (cur != '_') {
+                sawDigit = true;
+                mantissa = mantissa * 10 + (cur - '0');
+                if (mantissa != 0)
+                    digits++;
+                if (point)
+                    scale++;
+                sb.append((char) cur);
+            }
             consume();
             if (cur == 'e' || cur == 'E') {
                 if (peek == '-' || peek == '+' || isDigit(peek)) {
-                    s.append((char) cur);
+                    plain = false;
+                    sb.append((char) cur);
                     consume();
-                    s.append((char) cur);
+                    sb.append((char) cur);
                     consume();
                 }
             }
         }
-        double val = Double.parseDouble(s.toString());
+
+        // A mantissa of at most 15 digits and a power of ten up to 22 are both exact doubles, so the one division is
+        // correctly rounded and gives the same result as Double.parseDouble.
+        plain &= sawDigit;
+        double val;
+        if (plain && digits <= 15 && scale < POWERS_OF_TEN.length) {
+            val = scale == 0 ? mantissa : mantissa / POWERS_OF_TEN[scale];
+            if (negative)
+                val = -val;
+        }
+        else
+            val = Double.parseDouble(sb.toString());
+        boolean plainInt = plain && !point && digits <= 9;
 
         // HDate - check for dash
         HDate date = null;
@@ -381,10 +439,10 @@ public class ZincReader implements HGridReader {
         if (cur == '-') {
             int year;
             try {
-                year = Integer.parseInt(s.toString());
+                year = plainInt ? (int) val : Integer.parseInt(sb.toString());
             }
             catch (Exception e) {
-                throw err("Invalid year for date value: " + s);
+                throw err("Invalid year for date value: " + sb);
             }
             consume(); // dash
             int month = readTwoDigits("Invalid digit for month in date value");
@@ -407,14 +465,14 @@ public class ZincReader implements HGridReader {
         if (cur == ':') {
             // hour (may have been parsed already in date time)
             if (hour < 0) {
-                if (s.length() != 2) {
-                    throw err("Hour must be two digits for time value: " + s);
+                if (sb.length() != 2) {
+                    throw err("Hour must be two digits for time value: " + sb);
                 }
                 try {
-                    hour = Integer.parseInt(s.toString());
+                    hour = plainInt ? (int) val : Integer.parseInt(sb.toString());
                 }
                 catch (Exception e) {
-                    throw err("Invalid hour for time value: " + s);
+                    throw err("Invalid hour for time value: " + sb);
                 }
             }
             consume(); // colon
@@ -480,14 +538,14 @@ public class ZincReader implements HGridReader {
             }
             else {
                 consume();
-                StringBuffer tzBuf = new StringBuffer();
+                sb.setLength(0);
                 if (!isTz(cur))
                     throw errChar("Expected timezone name");
                 while (isTz(cur)) {
-                    tzBuf.append((char) cur);
+                    sb.append((char) cur);
                     consume();
                 }
-                tz = HTimeZone.forName(tzBuf.toString());
+                tz = HTimeZone.forName(cachedString());
             }
             return new HDateTime(date, time, tz, tzOffset);
         }
@@ -495,12 +553,12 @@ public class ZincReader implements HGridReader {
         // if we have unit, parse that
         String unit = null;
         if (isUnit(cur)) {
-            s = new StringBuffer();
+            sb.setLength(0);
             while (isUnit(cur)) {
-                s.append((char) cur);
+                sb.append((char) cur);
                 consume();
             }
-            unit = s.toString();
+            unit = cachedString();
         }
 
         return new HNumber(val, unit);
@@ -525,22 +583,23 @@ public class ZincReader implements HGridReader {
 
     private HValue readRefVal() {
         consume(); // opening @
-        StringBuffer s = new StringBuffer();
+        sb.setLength(0);
         while (HReference.isIdChar(cur)) {
             if (cur < 0)
                 throw err("Unexpected end of ref literal");
             if (cur == '\n' || cur == '\r')
                 throw err("Unexpected newline in ref literal");
-            s.append((char) cur);
+            sb.append((char) cur);
             consume();
         }
+        String id = sb.toString();
         skipSpace();
 
         String dis = null;
         if (cur == '"')
             dis = readStrLiteral();
 
-        return new HReference(s.toString(), dis);
+        return new HReference(id, dis);
     }
 
     private HValue readStrVal() {
@@ -549,22 +608,22 @@ public class ZincReader implements HGridReader {
 
     private String readStrLiteral() {
         consume(); // opening quote
-        StringBuffer s = new StringBuffer();
+        sb.setLength(0);
         while (cur != '"') {
             if (cur < 0)
                 throw err("Unexpected end of str literal");
             if (cur == '\n' || cur == '\r')
                 throw err("Unexpected newline in str literal");
             if (cur == '\\') {
-                s.append((char) readEscChar());
+                sb.append((char) readEscChar());
             }
             else {
-                s.append((char) cur);
+                sb.append((char) cur);
                 consume();
             }
         }
         consume(); // closing quote
-        return s.toString();
+        return sb.toString();
     }
 
     private int readEscChar() {
@@ -627,7 +686,7 @@ public class ZincReader implements HGridReader {
 
     private HValue readUriVal() {
         consume(); // opening backtick
-        StringBuffer s = new StringBuffer();
+        sb.setLength(0);
 
         while (true) {
             if (cur < 0)
@@ -649,31 +708,31 @@ public class ZincReader implements HGridReader {
                 case '&':
                 case '=':
                 case ';':
-                    s.append((char) cur);
-                    s.append((char) peek);
+                    sb.append((char) cur);
+                    sb.append((char) peek);
                     consume();
                     consume();
                     break;
                 case '`':
-                    s.append('`');
+                    sb.append('`');
                     consume();
                     consume();
                     break;
                 default:
                     if (peek == 'u' || peek == '\\')
-                        s.append((char) readEscChar());
+                        sb.append((char) readEscChar());
                     else
                         throw err("Invalid URI escape sequence \\" + (char) peek);
                     break;
                 }
             }
             else {
-                s.append((char) cur);
+                sb.append((char) cur);
                 consume();
             }
         }
         consume(); // closing backtick
-        return new HUri(s.toString());
+        return new HUri(sb.toString());
     }
 
     //////////////////////////////////////////////////////////////////////////
@@ -794,7 +853,7 @@ public class ZincReader implements HGridReader {
             return id;
 
         // parse path
-        StringBuffer s = new StringBuffer().append(id);
+        StringBuilder s = new StringBuilder().append(id);
         List<String> list = new ArrayList<>();
         list.add(id);
         while (cur == '-' || peek == '>') {
@@ -851,17 +910,56 @@ public class ZincReader implements HGridReader {
     }
 
     void consume() {
+        cur = peek;
+        peek = bufPos < bufLen ? buf[bufPos++] : fill();
+        if (cur == '\n')
+            lineNum++;
+    }
+
+    /**
+     * Refills the window from the reader.
+     * 
+     * @return the first char of the new window, or -1 at the end of the stream.
+     */
+    private int fill() {
+        if (in == null)
+            return -1;
         try {
-            cur = peek;
-            peek = in.read();
-            if (cur == '\n')
-                lineNum++;
+            int n;
+            do {
+                n = in.read(buf, 0, buf.length);
+            }
+            while (n == 0);
+            if (n < 0)
+                return -1;
+            bufLen = n;
+            bufPos = 1;
+            return buf[0];
         }
         catch (IOException e) {
             throw err(e);
         }
     }
 
+    /**
+     * Returns the contents of sb, reusing the String from the last time the same text was read. Tag names, units,
+     * timezones and keywords repeat from row to row.
+     */
+    private String cachedString() {
+        int len = sb.length();
+        int hash = 0;
+        for (int i = 0; i < len; i++)
+            hash = 31 * hash + sb.charAt(i);
+        int slot = (hash ^ (hash >>> 16)) & (STRING_CACHE_SIZE - 1);
+
+        String s = stringCache[slot];
+        if (s == null || s.length() != len || !s.contentEquals(sb)) {
+            s = sb.toString();
+            stringCache[slot] = s;
+        }
+        return s;
+    }
+
     //////////////////////////////////////////////////////////////////////////
     // Char Types
     //////////////////////////////////////////////////////////////////////////
@@ -919,7 +1017,17 @@ public class ZincReader implements HGridReader {
     // Fields
     //////////////////////////////////////////////////////////////////////////
 
+    private static final int BUFFER_SIZE = 8192;
+    private static final int STRING_CACHE_SIZE = 256;
+    private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
     private Reader in;
+    private char[] buf;
+    private int bufPos;
+    private int bufLen;
+    private final StringBuilder sb = new StringBuilder();
+    private final String[] stringCache = new String[STRING_CACHE_SIZE];
     private int cur;
     private int peek;
     private int lineNum = 1;
@@ -0,0 +1,157 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.zinc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import org.brickhouse.binary.BinaryDecoder;
+import org.brickhouse.binary.BinaryEncoder;
+import org.brickhouse.datatype.HMap;
+
+/**
+ * Writes a grid one row at a time, so that a result can be exported without holding it in memory, e.g.
+ *
+ * <pre>
+ * ZincRowWriter rows = new ZincRowWriter(new ZincWriter(out), meta, columns);
+ * table.readAll(filter, rows);
+ * rows.finish();
+ * </pre>
+ *
+ * If the columns are declared, the header is written straight away and each row as it is given. Tags that are not in
+ * the declared columns are not written.
+ *
+ * Otherwise the columns are collected from the rows themselves. Zinc needs all of the columns before the first row, so
+ * the rows are held until the sample size has been reached. If there are more rows than that, the rest are spilled to
+ * a temporary file until finish is called, after which the whole grid is written.
+ */
+public class ZincRowWriter implements Consumer<HMap> {
+    private final ZincWriter writer;
+    private final HMap meta;
+    private final int sampleSize;
+    private final Set<String> columns = new LinkedHashSet<>();
+    private List<HMap> sample;
+    private File spillFile;
+    private DataOutputStream spill;
+    private int count;
+
+    /**
+     * Writes rows with the given columns.
+     */
+    public ZincRowWriter(ZincWriter writer, HMap meta, List<String> columns) {
+        this.writer = writer;
+        this.meta = meta;
+        this.sampleSize = 0;
+        writer.writeHeader(meta, columns);
+    }
+
+    /**
+     * Writes rows with the columns that they have.
+     *
+     * @param sampleSize
+     *            the number of rows to hold in memory before spilling to disk.
+     */
+    public ZincRowWriter(ZincWriter writer, HMap meta, int sampleSize) {
+        this.writer = writer;
+        this.meta = meta;
+        this.sampleSize = sampleSize;
+        sample = new ArrayList<>();
+    }
+
+    @Override
+    public void accept(HMap row) {
+        count++;
+        if (sample == null) {
+            writer.writeRow(row);
+            return;
+        }
+
+        columns.addAll(row.keySet());
+        if (sample.size() < sampleSize)
+            sample.add(row);
+        else {
+            try {
+                if (spill == null) {
+                    spillFile = File.createTempFile("zinc", ".rows");
+                    spill = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)));
+                }
+                byte[] record = BinaryEncoder.encode(row);
+                spill.writeInt(record.length);
+                spill.write(record);
+            }
+            catch (IOException e) {
+                deleteSpill();
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Writes any rows that are being held, and flushes the writer.
+     *
+     * @return the number of rows written.
+     */
+    public int finish() {
+        if (sample != null) {
+            writer.writeHeader(meta, new ArrayList<>(columns));
+            for (HMap row : sample)
+                writer.writeRow(row);
+            sample = null;
+
+            if (spill != null) {
+                try {
+                    spill.close();
+                    try (DataInputStream in = new DataInputStream(
+                            new BufferedInputStream(new FileInputStream(spillFile)))) {
+                        int remaining = count - sampleSize;
+                        while (remaining-- > 0) {
+                            byte[] record = new byte[in.readInt()];
+                            in.readFully(record);
+                            writer.writeRow(BinaryDecoder.decode(record));
+                        }
+                    }
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                finally {
+                    deleteSpill();
+                }
+            }
+        }
+        writer.flush();
+        return count;
+    }
+
+    private void deleteSpill() {
+        try {
+            if (spill != null)
+                spill.close();
+        }
+        catch (IOException e) {
+            // Ignore
+        }
+        spill = null;
+        if (spillFile != null) {
+            spillFile.delete();
+            spillFile = null;
+        }
+    }
+}
@@ -11,7 +11,13 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.text.DecimalFormat;
+import java.text.FieldPosition;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.brickhouse.datatype.HBinary;
 import org.brickhouse.datatype.HBoolean;
@@ -42,6 +48,16 @@ import com.serotonin.util.CollectionUtils;
 public class ZincWriter implements HGridWriter {
     private PrintWriter out;
 
+    // Each row is put together here and then written out in one go.
+    private final StringBuilder sb = new StringBuilder(256);
+    private char[] chars = new char[256];
+    private DecimalFormat numberFormat;
+    private final StringBuffer numberBuffer = new StringBuffer();
+    private final FieldPosition fieldPosition = new FieldPosition(0);
+
+    // The columns of the grid being streamed.
+    private String[] columns;
+
     //////////////////////////////////////////////////////////////////////////
     // Construction
     //////////////////////////////////////////////////////////////////////////
@@ -55,9 +71,8 @@ public class ZincWriter implements HGridWriter {
 
     /** Write a grid to an in-memory string */
     public static String gridToString(HGrid grid) {
-        ZincGrid zg = new ZincGrid(grid);
-        StringWriter out = new StringWriter(zg.getColumns().size() * zg.getRows().size() * 16);
-        new ZincWriter(out).writeGrid(zg);
+        StringWriter out = new StringWriter(grid.getRows().size() * 64 + 64);
+        new ZincWriter(out).writeGrid(grid);
         return out.toString();
     }
 
@@ -71,31 +86,68 @@ public class ZincWriter implements HGridWriter {
 
     @Override
     public void writeGrid(HGrid grid) {
-        writeGrid(new ZincGrid(grid));
+        List<String> columnNames;
+        if (grid.getRows().isEmpty())
+            columnNames = Collections.emptyList();
+        else {
+            Set<String> columnNameSet = new HashSet<>();
+            for (HMap map : grid.getRows()) {
+                if (map != null)
+                    columnNameSet.addAll(map.keySet());
+            }
+            columnNames = new ArrayList<>(columnNameSet);
+        }
+
+        writeHeader(grid.getMeta(), columnNames);
+        for (HMap row : grid.getRows())
+            writeRow(row);
+        columns = null;
     }
 
-    private void writeGrid(ZincGrid grid) {
+    /**
+     * Writes the meta and column lines of a grid, after which its rows can be written one at a time with writeRow.
+     * A grid with no columns is written with the single column "empty".
+     */
+    public void writeHeader(HMap meta, List<String> columnNames) {
+        columns = columnNames.isEmpty() ? new String[] { "empty" }
+                : columnNames.toArray(new String[columnNames.size()]);
+
         // meta
-        out.write("ver:\"2.0\"");
-        writeMeta(grid.getMeta());
-        out.write('\n');
+        sb.append("ver:\"2.0\"");
+        writeMeta(meta);
+        sb.append('\n');
 
         // cols
-        boolean first = true;
-        for (ZincColumn column : grid.getColumns()) {
-            if (first)
-                first = false;
-            else
-                out.write(',');
-            writeCol(column);
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0)
+                sb.append(',');
+            sb.append(columns[i]);
         }
-        out.write('\n');
+        sb.append('\n');
+        writeBuffer();
+    }
 
-        // rows
-        for (ZincRow row : grid.getRows()) {
-            writeRow(grid, row);
-            out.write('\n');
+    /**
+     * Writes a row of the grid whose header was last written. Tags that are not in the grid's columns are not
+     * written.
+     */
+    public void writeRow(HMap row) {
+        if (columns == null)
+            throw new IllegalStateException("The grid header has not been written");
+
+        for (int i = 0; i < columns.length; i++) {
+            HValue val = row == null ? null : row.get(columns[i]);
+            if (i > 0)
+                sb.append(',');
+            if (val == null) {
+                if (i == 0)
+                    sb.append('N');
+            }
+            else
+                toZinc(sb, val);
         }
+        sb.append('\n');
+        writeBuffer();
     }
 
     /** Flush underlying output stream */
@@ -114,46 +166,33 @@ public class ZincWriter implements HGridWriter {
     // Implementation
     //////////////////////////////////////////////////////////////////////////
 
+    private void writeBuffer() {
+        int len = sb.length();
+        if (chars.length < len)
+            chars = new char[Math.max(len, chars.length * 2)];
+        sb.getChars(0, len, chars, 0);
+        out.write(chars, 0, len);
+        sb.setLength(0);
+    }
+
     private void writeMeta(HMap meta) {
         if (meta != null) {
             for (Map.Entry<String, HValue> e : meta.entrySet()) {
                 HValue val = e.getValue();
-                out.write(' ');
-                out.write(e.getKey());
+                sb.append(' ');
+                sb.append(e.getKey());
                 if (val != HMarker.VALUE) {
-                    out.write(':');
-                    out.write(toZinc(val));
+                    sb.append(':');
+                    toZinc(sb, val);
                 }
             }
         }
     }
 
-    private void writeCol(ZincColumn col) {
-        out.write(col.getName());
-        writeMeta(col.getMeta());
-    }
-
-    private void writeRow(ZincGrid grid, ZincRow row) {
-        boolean first = true;
-        for (ZincColumn column : grid.getColumns()) {
-            HValue val = row.get(column);
-            if (!first)
-                out.write(',');
-            if (val == null) {
-                if (first)
-                    out.write('N');
-            }
-            else
-                out.write(toZinc(val));
-            first = false;
-        }
-    }
-
     //
     // Data types
     //
-    private String toZinc(HValue h) {
-        StringBuilder sb = new StringBuilder();
+    private void toZinc(StringBuilder sb, HValue h) {
         if (h instanceof HBinary) {
             sb.append("Bin(");
             sb.append(((HBinary) h).getMime());
@@ -164,9 +203,9 @@ public class ZincWriter implements HGridWriter {
         else if (h instanceof HCoordinates)
             sb.append(h.toString());
         else if (h instanceof HDate)
-            sb.append(h.toString());
+            ((HDate) h).appendTo(sb);
         else if (h instanceof HDateTime)
-            sb.append(h.toString());
+            ((HDateTime) h).appendTo(sb);
         else if (h instanceof HList) {
             // Convert the list to a string. Note that this is irreversible, and is not actually supported by Zinc.
             // It is only done here to avoid the exception below.
@@ -185,8 +224,10 @@ public class ZincWriter implements HGridWriter {
                     sb.append(' ');
                 sb.append(e.getKey());
                 HValue val = e.getValue();
-                if (val != HMarker.VALUE)
-                    sb.append(':').append(toZinc(val));
+                if (val != HMarker.VALUE) {
+                    sb.append(':');
+                    toZinc(sb, val);
+                }
             }
         }
         else if (h instanceof HMarker)
@@ -203,8 +244,13 @@ public class ZincWriter implements HGridWriter {
                 double abs = n.getValue();
                 if (abs < 0)
                     abs = -abs;
-                if (abs > 1.0)
-                    sb.append(new DecimalFormat("#0.####").format(n.getValue()));
+                if (abs > 1.0) {
+                    if (numberFormat == null)
+                        numberFormat = new DecimalFormat("#0.####");
+                    numberBuffer.setLength(0);
+                    numberFormat.format(n.getValue(), numberBuffer, fieldPosition);
+                    sb.append(numberBuffer);
+                }
                 else
                     sb.append(n.getValue());
 
@@ -230,7 +276,7 @@ public class ZincWriter implements HGridWriter {
         else if (h instanceof HString)
             toZinc(sb, ((HString) h).getValue());
         else if (h instanceof HTime)
-            sb.append(h.toString());
+            ((HTime) h).appendTo(sb);
         else if (h instanceof HUri) {
             sb.append('`');
             sb.append(((HUri) h).getValue());
@@ -238,8 +284,6 @@ public class ZincWriter implements HGridWriter {
         }
         else
             throw new RuntimeException("toZinc doesn't handle type " + h.getClass());
-
-        return sb.toString();
     }
 
     private void toZinc(StringBuilder sb, String s) {
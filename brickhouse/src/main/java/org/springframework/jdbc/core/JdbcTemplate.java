@@ -17,11 +17,53 @@ import org.springframework.dao.IncorrectResultSizeDataAccessException;
 
 public class JdbcTemplate {
 	private DataSource dataSource;
+	private volatile StatementCacheStats statementCacheStats;
+	private int fetchSize;
+	private boolean fetchInTransaction;
 
 	public JdbcTemplate(DataSource ds) {
 		this.dataSource = ds;
 	}	
 
+	/**
+	 * Sets the tracker for the data source's prepared statement pool. Every statement prepared by this template is
+	 * reported to it, so that the pool's hit rate can be estimated.
+	 */
+	public void setStatementCacheStats(StatementCacheStats statementCacheStats) {
+		this.statementCacheStats = statementCacheStats;
+	}
+
+	/**
+	 * @return the prepared statement pool tracker, or null if statements are not pooled.
+	 */
+	public StatementCacheStats getStatementCacheStats() {
+		return statementCacheStats;
+	}
+
+	/**
+	 * Sets the fetch size used by queryStreaming. 0 uses the driver default, which for most drivers means that the
+	 * entire result set is buffered in memory. MySQL Connector/J streams row by row when this is Integer.MIN_VALUE.
+	 */
+	public void setFetchSize(int fetchSize) {
+		this.fetchSize = fetchSize;
+	}
+
+	public int getFetchSize() {
+		return fetchSize;
+	}
+
+	/**
+	 * Sets whether streaming queries must run with autocommit off. The PostgreSQL driver only fetches through a
+	 * cursor when in a transaction, and otherwise ignores the fetch size.
+	 */
+	public void setFetchInTransaction(boolean fetchInTransaction) {
+		this.fetchInTransaction = fetchInTransaction;
+	}
+
+	public boolean isFetchInTransaction() {
+		return fetchInTransaction;
+	}
+
 	public <T> T execute(ConnectionCallback<T> action) {
 		try {
 			Connection con = dataSource.getConnection();
@@ -59,6 +101,9 @@ public class JdbcTemplate {
 			PreparedStatement ps = null;
 			try {
 				ps = psc.createPreparedStatement(con);
+				StatementCacheStats stats = statementCacheStats;
+				if (stats != null)
+					stats.prepared(con, psc.sql);
 				return action.doInPreparedStatement(ps);
 			}
 			finally {
@@ -106,13 +151,17 @@ public class JdbcTemplate {
 	}
 	
 	public void query(String sql, RowCallbackHandler rch) {
-		final String sql1 = sql;
-		execute(new StatementCallback<Object>() {
+		query(sql, rch, (Object[]) null);
+	}
+
+	public void query(String sql, RowCallbackHandler rch, Object... args) {
+		execute(new SimplePreparedStatementCreator(sql), new PreparedStatementCallback<Object>() {
 			@Override
-			public Object doInStatement(Statement stmt) throws SQLException {
+			public Object doInPreparedStatement(PreparedStatement ps) throws SQLException {
 				ResultSet rs = null;
 				try {
-					rs = stmt.executeQuery(sql1);
+					new ArgumentPreparedStatementSetter(args).setValues(ps);
+					rs = ps.executeQuery();
 					while (rs.next()) {
 						rch.processRow(rs);
 					}
@@ -125,6 +174,90 @@ public class JdbcTemplate {
 		});
 	}
 	
+	/**
+	 * Like query, but fetches the result set incrementally according to the fetch size settings so that large scans
+	 * run in constant memory. Rows are passed to the handler as they arrive.
+	 */
+	public void queryStreaming(String sql, RowCallbackHandler rch, Object... args) {
+		if (fetchSize == 0) {
+			query(sql, rch, args);
+			return;
+		}
+
+		execute(new ConnectionCallback<Object>() {
+			@Override
+			public Object doInConnection(Connection con) throws SQLException, DataAccessException {
+				boolean resetAutoCommit = fetchInTransaction && con.getAutoCommit();
+				if (resetAutoCommit)
+					con.setAutoCommit(false);
+
+				Throwable failure = null;
+				PreparedStatement ps = null;
+				ResultSet rs = null;
+				try {
+					ps = con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+					StatementCacheStats stats = statementCacheStats;
+					if (stats != null)
+						stats.prepared(con, sql);
+					ps.setFetchSize(fetchSize);
+					new ArgumentPreparedStatementSetter(args).setValues(ps);
+					rs = ps.executeQuery();
+					while (rs.next()) {
+						rch.processRow(rs);
+					}
+					return null;
+				}
+				catch (SQLException | RuntimeException | Error e) {
+					failure = e;
+					throw e;
+				}
+				finally {
+					JdbcUtils.closeResultSet(rs);
+					JdbcUtils.closeStatement(ps);
+					if (resetAutoCommit)
+						endReadTransaction(con, failure);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Ends the transaction of a streaming query and restores autocommit. If the query failed, a failure here is added
+	 * to its exception as suppressed, rather than replacing it.
+	 */
+	private static void endReadTransaction(Connection con, Throwable failure) throws SQLException {
+		Exception error = null;
+		try {
+			// Read-only, so a rollback is as good as a commit, and also ends a cancelled read.
+			if (failure == null)
+				con.commit();
+			else
+				con.rollback();
+		}
+		catch (SQLException | RuntimeException e) {
+			error = e;
+		}
+
+		try {
+			con.setAutoCommit(true);
+		}
+		catch (SQLException | RuntimeException e) {
+			if (error == null)
+				error = e;
+			else
+				error.addSuppressed(e);
+		}
+
+		if (error == null)
+			return;
+		if (failure != null)
+			failure.addSuppressed(error);
+		else if (error instanceof SQLException)
+			throw (SQLException) error;
+		else
+			throw (RuntimeException) error;
+	}
+
 	public int update(String sql, Object... args) {
 		return execute(new SimplePreparedStatementCreator(sql), new PreparedStatementCallback<Integer>() {
 			@Override
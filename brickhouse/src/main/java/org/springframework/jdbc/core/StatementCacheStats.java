@@ -0,0 +1,102 @@
+package org.springframework.jdbc.core;
+
+import java.sql.Connection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Estimates the effectiveness of a per-connection prepared statement pool (e.g. DBCP2's poolPreparedStatements). The
+ * pool's own counts are not visible through JDBC or DBCP's public API, so this mirrors it: each physical connection
+ * keeps an LRU of the SQL strings it has prepared, bounded by the pool's per-connection size. A prepare of SQL already
+ * in the connection's LRU is counted as a hit.
+ *
+ * The counts are estimates. The pool may evict differently, e.g. while statements are checked out or when it is
+ * configured with idle eviction, and statements prepared other than through JdbcTemplate are not seen at all.
+ */
+public class StatementCacheStats {
+	private final int maxOpenPerConnection;
+	private final Function<Connection, Object> physicalConnection;
+	private final Map<Object, Map<String, Boolean>> prepared = new WeakHashMap<>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param maxOpenPerConnection
+	 *            the maximum number of pooled statements per connection, or a negative value for no limit.
+	 * @param physicalConnection
+	 *            resolves a (possibly wrapped) connection to the object that identifies the underlying physical
+	 *            connection, since that is what statements are pooled against.
+	 */
+	public StatementCacheStats(int maxOpenPerConnection, Function<Connection, Object> physicalConnection) {
+		this.maxOpenPerConnection = maxOpenPerConnection;
+		this.physicalConnection = physicalConnection;
+	}
+
+	void prepared(Connection con, String sql) {
+		Object key = physicalConnection.apply(con);
+
+		Map<String, Boolean> lru;
+		synchronized (prepared) {
+			lru = prepared.get(key);
+			if (lru == null) {
+				lru = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+					private static final long serialVersionUID = 1L;
+
+					@Override
+					protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+						return maxOpenPerConnection >= 0 && size() > maxOpenPerConnection;
+					}
+				};
+				prepared.put(key, lru);
+			}
+		}
+
+		// A physical connection is only ever used by one thread at a time, but lock anyway to be safe.
+		synchronized (lru) {
+			if (lru.put(sql, Boolean.TRUE) == null)
+				misses.incrementAndGet();
+			else
+				hits.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return the estimated number of prepares that were served from the statement pool.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the estimated number of prepares that were not served from the statement pool.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the estimated ratio of prepares that were served from the statement pool, or 0 if nothing has been
+	 *         prepared yet.
+	 */
+	public double getHitRate() {
+		long h = hits.get();
+		long total = h + misses.get();
+		if (total == 0)
+			return 0;
+		return (double) h / total;
+	}
+
+	public void reset() {
+		hits.set(0);
+		misses.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "StatementCacheStats [estimated hits=" + getHits() + ", misses=" + getMisses() + ", hitRate="
+				+ String.format("%.3f", getHitRate()) + "]";
+	}
+}
@@ -0,0 +1,126 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.binary;
+
+import java.util.Arrays;
+
+import org.brickhouse.ParseException;
+import org.brickhouse.datatype.HBinary;
+import org.brickhouse.datatype.HBoolean;
+import org.brickhouse.datatype.HCoordinates;
+import org.brickhouse.datatype.HDate;
+import org.brickhouse.datatype.HDateTime;
+import org.brickhouse.datatype.HList;
+import org.brickhouse.datatype.HMap;
+import org.brickhouse.datatype.HNA;
+import org.brickhouse.datatype.HNumber;
+import org.brickhouse.datatype.HReference;
+import org.brickhouse.datatype.HRemove;
+import org.brickhouse.datatype.HTime;
+import org.brickhouse.datatype.HTimeZone;
+import org.brickhouse.datatype.HUri;
+import org.brickhouse.datatype.LazyHMap;
+import org.brickhouse.json.JsonEncoder;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BinaryCodecTest {
+    private static HMap sample() {
+        StringBuilder longString = new StringBuilder();
+        for (int i = 0; i < 100; i++)
+            longString.append("\u00e9x");
+
+        return new HMap() //
+                .put("id", new HReference("abc")) //
+                .put("dis", "A thing") //
+                .put("site") //
+                .put("siteRef", new HReference("s1")) //
+                .put("notInTheDictionary", "!bang") //
+                .put("n\u00e4me", "unicode name") //
+                .put("b2", "quote \" back \\ tab \t newline \n \ud83d\ude00") //
+                .put("long", longString.toString()) //
+                .put("d", new HCoordinates(1.23, -3.456)) //
+                .put("e", new HDate(2015, 2, 15)) //
+                .put("f", new HDateTime(2015, 2, 15, 18, 2, 31, HTimeZone.forName("Toronto"), -18000)) //
+                .put("f1", new HDateTime(new HDate(2015, 2, 15), new HTime(18, 2, 31, 230), HTimeZone.UTC)) //
+                .put("g", new HTime(18, 3, 31, 123)) //
+                .put("i", new HUri("http://google.ca")) //
+                .put("j", new HBinary("text/plain")) //
+                .put("l", HBoolean.FALSE) //
+                .put("l1", HBoolean.TRUE) //
+                .put("m", new HNumber(3.14)) //
+                .put("m1", new HNumber(-0.0)) //
+                .put("n", new HNumber(72.5, "\u00b0F")) //
+                .put("n1", HNumber.POS_INF) //
+                .put("n3", HNumber.NaN) //
+                .put("na", HNA.VALUE) //
+                .put("q", HRemove.VALUE) //
+                .put("nil", (HMap) null) //
+                .put("r", new HList().add("asdf").add(123).add(new HMap().put("inner"))) //
+                .put("s", new HMap().put("x", new HList()).put("y", new HMap()));
+    }
+
+    @Test
+    public void roundTrip() {
+        HMap map = sample();
+        HMap decoded = BinaryDecoder.decode(BinaryEncoder.encode(map));
+        Assert.assertEquals(map, decoded);
+        Assert.assertEquals("\u00b0F", decoded.getNumber("n").getUnit());
+        Assert.assertEquals(-18000, decoded.getDateTime("f").getTzOffset());
+        Assert.assertEquals(map.keySet().toString(), decoded.keySet().toString());
+    }
+
+    @Test
+    public void lazy() {
+        HMap map = sample();
+        LazyHMap lazy = BinaryDecoder.decodeLazy(BinaryEncoder.encode(map));
+        Assert.assertEquals(map.get("r"), lazy.get("r"));
+        Assert.assertEquals(map.get("f"), lazy.get("f"));
+        Assert.assertTrue(lazy.has("nil"));
+        Assert.assertNull(lazy.get("nil"));
+        Assert.assertFalse(lazy.has("zz"));
+        Assert.assertEquals(map, lazy.decode());
+        Assert.assertEquals(map.keySet().toString(), lazy.decode().keySet().toString());
+        Assert.assertEquals(map, lazy);
+    }
+
+    @Test
+    public void referenceDis() {
+        HMap map = new HMap().put("id", new HReference("abc", "Abc")).put("ref", new HReference("r", "R"));
+
+        // The storage encoding drops the dis, the same as the JSON storage encoding does.
+        HMap stored = BinaryDecoder.decode(BinaryEncoder.encode(map));
+        Assert.assertNull(stored.getReference("ref").getDis());
+
+        BinaryEncoder encoder = new BinaryEncoder(false);
+        encoder.writeRecord(map);
+        HMap full = BinaryDecoder.decode(encoder.toByteArray());
+        Assert.assertEquals("R", full.getReference("ref").getDis());
+    }
+
+    @Test
+    public void smallerThanJson() {
+        HMap map = new HMap().put("id", new HReference("abc")).put("point").put("his").put("kind", "Number")
+                .put("curVal", new HNumber(72.5, "\u00b0F")).put("siteRef", new HReference("site1"))
+                .put("equipRef", new HReference("equip1"));
+        Assert.assertTrue(BinaryEncoder.encode(map).length * 2 < JsonEncoder.toDbJson(map).length());
+    }
+
+    @Test(expected = ParseException.class)
+    public void unknownVersion() {
+        byte[] record = BinaryEncoder.encode(new HMap().put("a"));
+        record[0] = 99;
+        BinaryDecoder.decode(record);
+    }
+
+    @Test(expected = ParseException.class)
+    public void truncated() {
+        byte[] record = BinaryEncoder.encode(sample());
+        BinaryDecoder.decode(Arrays.copyOf(record, record.length - 3));
+    }
+}
@@ -0,0 +1,107 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.binary;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.brickhouse.ParseException;
+import org.brickhouse.datatype.HDate;
+import org.brickhouse.datatype.HDateTime;
+import org.brickhouse.datatype.HGrid;
+import org.brickhouse.datatype.HList;
+import org.brickhouse.datatype.HMap;
+import org.brickhouse.datatype.HNumber;
+import org.brickhouse.datatype.HReference;
+import org.brickhouse.datatype.HRemove;
+import org.brickhouse.datatype.HTime;
+import org.brickhouse.datatype.HTimeZone;
+import org.brickhouse.zinc.ZincWriter;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BinaryGridTest {
+    private static HGrid sample(int count) {
+        HTimeZone tz = HTimeZone.forName("New_York");
+        List<HMap> rows = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            HMap row = new HMap() //
+                    .put("id", new HReference("p" + i, "Point " + i)) //
+                    .put("point") //
+                    .put("curVal", new HNumber(i * 0.25, "kW")) //
+                    .put("ts", new HDateTime(1430000000000L + i * 3600000L * 7, tz));
+            if (i % 3 == 0)
+                row.put("sensor");
+            if (i % 100 == 7)
+                row.put("rare", new HList(new HDate(2015, 5, 1), new HTime(1, 2, 3, 4)));
+            if (i == 11)
+                row.put("sub", new HMap().put("a").put("b", HRemove.VALUE));
+            rows.add(row);
+        }
+        return new HGrid(new HMap().put("ver", "3.0").put("x"), rows);
+    }
+
+    private static HGrid roundTrip(HGrid grid) {
+        return new BinaryGridReader(new ByteArrayInputStream(BinaryGridWriter.gridToBytes(grid))).readGrid();
+    }
+
+    @Test
+    public void roundTripTest() {
+        HGrid grid = sample(2500);
+        Assert.assertEquals(grid, roundTrip(grid));
+        Assert.assertEquals(new HGrid(), roundTrip(new HGrid()));
+
+        // Offsets that do not match the time zone survive as they are.
+        HDateTime dt = new HDateTime(2015, 2, 15, 18, 2, 31, HTimeZone.forName("Toronto"), -14400);
+        HGrid odd = new HGrid(new HMap().put("dt", dt));
+        HDateTime read = roundTrip(odd).getRows().get(0).get("dt");
+        Assert.assertEquals(dt, read);
+        Assert.assertEquals(-14400, read.getTzOffset());
+        Assert.assertEquals(dt.getMillis(), read.getMillis());
+    }
+
+    @Test
+    public void smallerThanZinc() {
+        HGrid grid = sample(1000);
+        Assert.assertTrue(BinaryGridWriter.gridToBytes(grid).length < ZincWriter.gridToString(grid).length());
+    }
+
+    @Test
+    public void streamingTest() {
+        HGrid grid = sample(2100);
+        final List<HMap> metas = new ArrayList<>();
+        final List<HMap> rows = new ArrayList<>();
+        BinaryGridReader reader = new BinaryGridReader(new ByteArrayInputStream(BinaryGridWriter.gridToBytes(grid)));
+        Assert.assertEquals(2100, reader.readGrid(metas::add, rows::add));
+        Assert.assertEquals(grid.getMeta(), metas.get(0));
+        Assert.assertEquals(grid.getRows(), rows);
+    }
+
+    @Test
+    public void badInput() {
+        byte[] b = BinaryGridWriter.gridToBytes(sample(10));
+        byte[] truncated = new byte[b.length - 3];
+        System.arraycopy(b, 0, truncated, 0, truncated.length);
+        try {
+            new BinaryGridReader(new ByteArrayInputStream(truncated)).readGrid();
+            Assert.fail();
+        }
+        catch (ParseException e) {
+            Assert.assertEquals("Unexpected end of grid", e.getMessage());
+        }
+
+        try {
+            new BinaryGridReader(new ByteArrayInputStream("ver:\"2.0\"\nempty\n".getBytes())).readGrid();
+            Assert.fail();
+        }
+        catch (ParseException e) {
+            Assert.assertEquals("Not a binary grid", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.binary;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.brickhouse.ParseException;
+import org.brickhouse.datatype.HMap;
+import org.brickhouse.datatype.HNumber;
+import org.brickhouse.datatype.HReference;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RecordCompressorTest {
+    private static byte[] record(int i) {
+        return BinaryEncoder.encode(new HMap() //
+                .put("id", new HReference("point-" + i)) //
+                .put("dis", "Building 7 Floor " + i % 5 + " Zone Air Temp Sensor " + i) //
+                .put("point") //
+                .put("sensor") //
+                .put("his") //
+                .put("kind", "Number") //
+                .put("unit", "\u00b0F") //
+                .put("tz", "New_York") //
+                .put("curVal", new HNumber(68 + i % 7, "\u00b0F")) //
+                .put("siteRef", new HReference("site-building-7")) //
+                .put("equipRef", new HReference("equip-vav-" + i % 20)) //
+                .put("hisInterpolate", "linear"));
+    }
+
+    private static List<byte[]> samples(int from, int count) {
+        List<byte[]> samples = new ArrayList<>();
+        for (int i = from; i < from + count; i++)
+            samples.add(record(i));
+        return samples;
+    }
+
+    @Test
+    public void roundTrip() {
+        byte[] dict = DictionaryTrainer.train(samples(0, 200), RecordCompressor.MAX_DICTIONARY_SIZE);
+        RecordCompressor compressor = new RecordCompressor(null);
+        compressor.setDictionary(1, dict);
+
+        for (byte[] record : samples(1000, 50)) {
+            byte[] stored = compressor.compress(record);
+            Assert.assertTrue(stored.length < record.length);
+            Assert.assertArrayEquals(record, compressor.decompress(stored));
+        }
+
+        CompressionStats stats = compressor.getStats();
+        Assert.assertEquals(50, stats.getCompressed());
+        Assert.assertEquals(50, stats.getDecompressed());
+        Assert.assertTrue(stats.getRatio() > 2);
+    }
+
+    @Test
+    public void dictionaryHelps() {
+        RecordCompressor plain = new RecordCompressor(null);
+        plain.setDictionary(1, null);
+        RecordCompressor trained = new RecordCompressor(null);
+        trained.setDictionary(2, DictionaryTrainer.train(samples(0, 200), RecordCompressor.MAX_DICTIONARY_SIZE));
+
+        for (byte[] record : samples(1000, 50)) {
+            Assert.assertArrayEquals(record, plain.decompress(plain.compress(record)));
+            trained.compress(record);
+        }
+        Assert.assertTrue(trained.getStats().getStoredBytes() < plain.getStats().getStoredBytes());
+    }
+
+    @Test
+    public void storedPlain() {
+        RecordCompressor compressor = new RecordCompressor(null);
+        byte[] record = record(1);
+        Assert.assertSame(record, compressor.compress(record));
+
+        // Too small to get any smaller.
+        compressor.setDictionary(1, null);
+        byte[] small = BinaryEncoder.encode(new HMap().put("a"));
+        Assert.assertSame(small, compressor.compress(small));
+        Assert.assertSame(small, compressor.decompress(small));
+    }
+
+    @Test
+    public void loadsDictionary() {
+        final byte[] dict = DictionaryTrainer.train(samples(0, 100), 4096);
+        Assert.assertTrue(dict.length > 0 && dict.length <= 4096);
+
+        RecordCompressor writer = new RecordCompressor(null);
+        writer.setDictionary(3, dict);
+        byte[] stored = writer.compress(record(500));
+
+        RecordCompressor reader = new RecordCompressor(id -> id == 3 ? dict : null);
+        Assert.assertArrayEquals(record(500), reader.decompress(stored));
+    }
+
+    @Test(expected = ParseException.class)
+    public void unknownDictionary() {
+        RecordCompressor writer = new RecordCompressor(null);
+        writer.setDictionary(3, DictionaryTrainer.train(samples(0, 100), 4096));
+        new RecordCompressor(id -> null).decompress(writer.compress(record(500)));
+    }
+}
@@ -0,0 +1,246 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.datatype;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CompactMapTest {
+    private static HValue value(int i) {
+        return new HNumber(i);
+    }
+
+    private static List<String> keys(Map<String, HValue> map) {
+        List<String> keys = new ArrayList<>();
+        for (Entry<String, HValue> e : map.entrySet())
+            keys.add(e.getKey());
+        return keys;
+    }
+
+    private static void assertSame(Map<String, HValue> expected, CompactMap actual) {
+        Assert.assertEquals(expected.size(), actual.size());
+        Assert.assertEquals(new ArrayList<>(expected.keySet()), keys(actual));
+        for (Entry<String, HValue> e : actual.entrySet())
+            Assert.assertEquals(expected.get(e.getKey()), e.getValue());
+        for (String key : expected.keySet()) {
+            Assert.assertTrue(key, actual.containsKey(key));
+            Assert.assertEquals(expected.get(key), actual.get(key));
+        }
+        Assert.assertEquals(expected, actual);
+        Assert.assertEquals(expected.hashCode(), actual.hashCode());
+    }
+
+    @Test
+    public void orderAcrossIndexThreshold() {
+        CompactMap map = new CompactMap();
+        Map<String, HValue> expected = new LinkedHashMap<>();
+        int n = CompactMap.HASH_THRESHOLD * 3;
+        for (int i = 0; i < n; i++) {
+            Assert.assertNull(map.put("tag" + i, value(i)));
+            expected.put("tag" + i, value(i));
+            assertSame(expected, map);
+        }
+
+        // Replacing keeps the position.
+        Assert.assertEquals(value(5), map.put("tag5", value(-5)));
+        expected.put("tag5", value(-5));
+        assertSame(expected, map);
+
+        // Remove from the middle, then from the end and the front, until back below the threshold.
+        for (int i = 1; i < n; i += 2) {
+            Assert.assertEquals(value(i == 5 ? -5 : i), map.remove("tag" + i));
+            expected.remove("tag" + i);
+            assertSame(expected, map);
+        }
+        Assert.assertEquals(value(n - 2), map.remove("tag" + (n - 2)));
+        expected.remove("tag" + (n - 2));
+        assertSame(expected, map);
+        for (int i = 0; map.size() > CompactMap.HASH_THRESHOLD - 2; i += 2) {
+            Assert.assertEquals(value(i), map.remove("tag" + i));
+            expected.remove("tag" + i);
+            assertSame(expected, map);
+        }
+
+        Assert.assertNull(map.remove("tag1"));
+        Assert.assertNull(map.get("tag1"));
+        Assert.assertFalse(map.containsKey("tag1"));
+
+        // Removed keys can be put again, and go to the end.
+        map.put("tag1", value(1));
+        expected.put("tag1", value(1));
+        assertSame(expected, map);
+    }
+
+    @Test
+    public void iteratorRemove() {
+        CompactMap map = new CompactMap();
+        Map<String, HValue> expected = new LinkedHashMap<>();
+        for (int i = 0; i < CompactMap.HASH_THRESHOLD + 4; i++) {
+            map.put("tag" + i, value(i));
+            expected.put("tag" + i, value(i));
+        }
+
+        // Drops below the threshold part way through.
+        List<String> seen = new ArrayList<>();
+        Iterator<Entry<String, HValue>> iter = map.entrySet().iterator();
+        while (iter.hasNext()) {
+            Entry<String, HValue> e = iter.next();
+            String key = e.getKey();
+            seen.add(key);
+            if (((HNumber) e.getValue()).getValue() % 3 != 0) {
+                iter.remove();
+                expected.remove(key);
+            }
+        }
+        Assert.assertEquals(CompactMap.HASH_THRESHOLD + 4, seen.size());
+        assertSame(expected, map);
+
+        iter = map.entrySet().iterator();
+        try {
+            iter.remove();
+            Assert.fail();
+        }
+        catch (IllegalStateException e) {
+            // Expected
+        }
+        iter.next();
+        iter.remove();
+        try {
+            iter.remove();
+            Assert.fail();
+        }
+        catch (IllegalStateException e) {
+            // Expected
+        }
+        expected.remove("tag0");
+        assertSame(expected, map);
+
+        while (iter.hasNext()) {
+            iter.next();
+            iter.remove();
+        }
+        Assert.assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void entrySetValue() {
+        CompactMap map = new CompactMap();
+        map.put("a", value(1));
+        map.put("b", value(2));
+        List<HValue> old = new ArrayList<>();
+        for (Entry<String, HValue> e : map.entrySet())
+            old.add(e.setValue(value(10)));
+        Assert.assertEquals(value(1), old.get(0));
+        Assert.assertEquals(value(2), old.get(1));
+        Assert.assertEquals(value(10), map.get("a"));
+        Assert.assertEquals(value(10), map.get("b"));
+        Assert.assertEquals(2, map.size());
+    }
+
+    @Test
+    public void entriesCanBeKept() {
+        CompactMap map = new CompactMap();
+        map.put("c", value(3));
+        map.put("a", value(1));
+        map.put("b", value(2));
+
+        Set<Entry<String, HValue>> set = new HashSet<>(map.entrySet());
+        Assert.assertEquals(3, set.size());
+        Assert.assertEquals(new HashSet<>(new LinkedHashMap<>(map).entrySet()), set);
+
+        List<String> sorted = new ArrayList<>();
+        map.entrySet().stream().sorted(Entry.comparingByKey()).forEach(e -> sorted.add(e.getKey()));
+        Assert.assertEquals(Arrays.asList("a", "b", "c"), sorted);
+
+        // An entry keeps its tag and value after the map changes.
+        Iterator<Entry<String, HValue>> iter = map.entrySet().iterator();
+        Entry<String, HValue> first = iter.next();
+        map.remove("c");
+        Assert.assertEquals("c", first.getKey());
+        Assert.assertEquals(value(3), first.getValue());
+        try {
+            iter.next();
+            Assert.fail();
+        }
+        catch (ConcurrentModificationException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void entriesCanBeCopied() {
+        CompactMap map = new CompactMap();
+        for (int i = 0; i < 5; i++)
+            map.put("tag" + i, value(i));
+
+        List<Entry<String, HValue>> entries = new ArrayList<>(map.entrySet());
+        Assert.assertEquals(5, entries.size());
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals("tag" + i, entries.get(i).getKey());
+            Assert.assertEquals(value(i), entries.get(i).getValue());
+        }
+
+        // A copy still writes through.
+        entries.get(2).setValue(value(20));
+        Assert.assertEquals(value(20), map.get("tag2"));
+    }
+
+    @Test
+    public void forEachMatchesIteration() {
+        HMap map = new HMap();
+        for (int i = 0; i < CompactMap.HASH_THRESHOLD + 2; i++)
+            map.put("tag" + i, value(i));
+        List<String> visited = new ArrayList<>();
+        map.forEach((key, value) -> visited.add(key + "=" + value));
+        List<String> iterated = new ArrayList<>();
+        for (Entry<String, HValue> e : map.entrySet())
+            iterated.add(e.getKey() + "=" + e.getValue());
+        Assert.assertEquals(iterated, visited);
+    }
+
+    @Test
+    public void matchesLinkedHashMap() {
+        Random random = new Random(42);
+        CompactMap map = new CompactMap();
+        Map<String, HValue> expected = new LinkedHashMap<>();
+        for (int i = 0; i < 20000; i++) {
+            // Enough keys that the map goes back and forth across the threshold.
+            String key = "k" + random.nextInt(CompactMap.HASH_THRESHOLD * 2);
+            switch (random.nextInt(3)) {
+            case 0:
+            case 1:
+                Assert.assertEquals(expected.put(key, value(i)), map.put(key, value(i)));
+                break;
+            default:
+                Assert.assertEquals(expected.remove(key), map.remove(key));
+            }
+            Assert.assertEquals(expected.size(), map.size());
+            Assert.assertEquals(expected.get(key), map.get(key));
+            if (i % 100 == 0)
+                assertSame(expected, map);
+        }
+        assertSame(expected, map);
+
+        CompactMap copy = new CompactMap(map);
+        assertSame(expected, copy);
+        Assert.assertEquals(map, copy);
+        assertSame(expected, new CompactMap(expected));
+    }
+}
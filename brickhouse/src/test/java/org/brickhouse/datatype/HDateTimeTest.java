@@ -0,0 +1,243 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.datatype;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+import org.apache.commons.lang3.StringUtils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HDateTimeTest {
+    private static final HTimeZone NEW_YORK = HTimeZone.forName("New_York");
+
+    private static long utc(String instant) {
+        return Instant.parse(instant).toEpochMilli();
+    }
+
+    private static HDateTime local(int year, int month, int day, int hour, int min, HTimeZone tz) {
+        return new HDateTime(new HDate(year, month, day), new HTime(hour, min), tz);
+    }
+
+    @Test
+    public void springForwardGap() {
+        Assert.assertEquals(utc("2015-03-08T06:59:00Z"), local(2015, 3, 8, 1, 59, NEW_YORK).getMillis());
+        Assert.assertEquals(-5 * 3600, local(2015, 3, 8, 1, 59, NEW_YORK).getTzOffset());
+
+        // 02:30 does not exist, and is moved forward by the gap to 03:30 EDT.
+        HDateTime skipped = local(2015, 3, 8, 2, 30, NEW_YORK);
+        Assert.assertEquals(utc("2015-03-08T07:30:00Z"), skipped.getMillis());
+        Assert.assertEquals(-4 * 3600, skipped.getTzOffset());
+
+        Assert.assertEquals(utc("2015-03-08T07:00:00Z"), local(2015, 3, 8, 3, 0, NEW_YORK).getMillis());
+        Assert.assertEquals(-4 * 3600, local(2015, 3, 8, 3, 0, NEW_YORK).getTzOffset());
+    }
+
+    @Test
+    public void fallBackOverlap() {
+        Assert.assertEquals(utc("2015-11-01T04:59:00Z"), local(2015, 11, 1, 0, 59, NEW_YORK).getMillis());
+        Assert.assertEquals(-4 * 3600, local(2015, 11, 1, 0, 59, NEW_YORK).getTzOffset());
+
+        // 01:30 happens twice, and is taken to be the later one, in EST.
+        HDateTime repeated = local(2015, 11, 1, 1, 30, NEW_YORK);
+        Assert.assertEquals(utc("2015-11-01T06:30:00Z"), repeated.getMillis());
+        Assert.assertEquals(-5 * 3600, repeated.getTzOffset());
+
+        Assert.assertEquals(utc("2015-11-01T07:00:00Z"), local(2015, 11, 1, 2, 0, NEW_YORK).getMillis());
+
+        // Both instants are shown at 01:30, with their own offsets.
+        HDateTime first = new HDateTime(utc("2015-11-01T05:30:00Z"), NEW_YORK);
+        Assert.assertEquals(new HTime(1, 30), first.getTime());
+        Assert.assertEquals(-4 * 3600, first.getTzOffset());
+        HDateTime second = new HDateTime(utc("2015-11-01T06:30:00Z"), NEW_YORK);
+        Assert.assertEquals(new HTime(1, 30), second.getTime());
+        Assert.assertEquals(-5 * 3600, second.getTzOffset());
+        Assert.assertTrue(first.compareTo(second) < 0);
+    }
+
+    @Test
+    public void negativeEpochMillis() {
+        HDateTime justBefore = new HDateTime(-1, HTimeZone.UTC);
+        Assert.assertEquals(new HDate(1969, 12, 31), justBefore.getDate());
+        Assert.assertEquals(new HTime(23, 59, 59, 999), justBefore.getTime());
+
+        long millis = utc("1960-02-29T12:00:00.250Z");
+        HDateTime dt = new HDateTime(millis, NEW_YORK);
+        Assert.assertEquals(new HDate(1960, 2, 29), dt.getDate());
+        Assert.assertEquals(new HTime(7, 0, 0, 250), dt.getTime());
+        Assert.assertEquals(-5 * 3600, dt.getTzOffset());
+        Assert.assertEquals(millis, new HDateTime(dt.getDate(), dt.getTime(), NEW_YORK).getMillis());
+        Assert.assertEquals(millis, HDateTime.parse(dt.toString()).getMillis());
+    }
+
+    @Test
+    public void leapDays() {
+        Assert.assertEquals(0, new HDate(1970, 1, 1).toEpochDay());
+        Assert.assertEquals(11016, new HDate(2000, 2, 29).toEpochDay());
+        Assert.assertEquals(2, new HDate(2000, 3, 1).toEpochDay() - new HDate(2000, 2, 28).toEpochDay());
+        Assert.assertEquals(2, new HDate(2016, 3, 1).toEpochDay() - new HDate(2016, 2, 28).toEpochDay());
+        // 1900 and 2100 are not leap years.
+        Assert.assertEquals(1, new HDate(1900, 3, 1).toEpochDay() - new HDate(1900, 2, 28).toEpochDay());
+        Assert.assertEquals(1, new HDate(2100, 3, 1).toEpochDay() - new HDate(2100, 2, 28).toEpochDay());
+
+        Assert.assertEquals(new HDate(2016, 2, 29), HDate.ofEpochDay(new HDate(2016, 2, 29).toEpochDay()));
+        Assert.assertEquals(new HDate(1960, 2, 29), HDate.ofEpochDay(-3594));
+    }
+
+    @Test
+    public void everyDayMatchesLocalDate() {
+        long from = LocalDate.of(1900, 1, 1).toEpochDay();
+        long to = LocalDate.of(2200, 1, 1).toEpochDay();
+        for (long day = from; day < to; day++) {
+            LocalDate expected = LocalDate.ofEpochDay(day);
+            HDate date = HDate.ofEpochDay(day);
+            Assert.assertEquals(expected.getYear(), date.getYear());
+            Assert.assertEquals(expected.getMonthValue(), date.getMonth());
+            Assert.assertEquals(expected.getDayOfMonth(), date.getDay());
+            Assert.assertEquals(day, date.toEpochDay());
+        }
+    }
+
+    @Test
+    public void millisOfDay() {
+        Assert.assertEquals(0, HTime.MIDNIGHT.toMillisOfDay());
+        Assert.assertEquals(86399999, new HTime(23, 59, 59, 999).toMillisOfDay());
+        HTime time = new HTime(12, 34, 56, 789);
+        Assert.assertEquals(time, HTime.ofMillisOfDay(time.toMillisOfDay()));
+    }
+
+    /**
+     * Local times in the early hours of every day of a year, when clocks change, in every zone, against
+     * GregorianCalendar.
+     */
+    @Test
+    public void everyZoneMatchesGregorianCalendar() {
+        int zones = 0;
+        for (String id : TimeZone.getAvailableIDs()) {
+            HTimeZone tz = HTimeZone.fromJava(TimeZone.getTimeZone(id), false);
+            if (tz == null)
+                continue;
+            zones++;
+
+            GregorianCalendar cal = new GregorianCalendar(tz.java);
+            for (long day = LocalDate.of(2015, 1, 1).toEpochDay(); day < LocalDate.of(2016, 1, 1).toEpochDay(); day++) {
+                HDate date = HDate.ofEpochDay(day);
+                for (int hour = 0; hour < 4; hour++) {
+                    cal.clear();
+                    cal.set(date.getYear(), date.getMonth() - 1, date.getDay(), hour, 30);
+                    HDateTime dt = new HDateTime(date, new HTime(hour, 30), tz);
+                    String message = tz + " " + date + " " + hour + ":30";
+                    Assert.assertEquals(message, cal.getTimeInMillis(), dt.getMillis());
+                    Assert.assertEquals(message, cal.get(Calendar.ZONE_OFFSET) + cal.get(Calendar.DST_OFFSET),
+                            dt.getTzOffset() * 1000L);
+                }
+            }
+        }
+        Assert.assertTrue(zones > 100);
+    }
+
+    //
+    // Formatting, against the StringUtils.leftPad implementation that appendTo replaced.
+    //
+    private static String baseline(HDate date) {
+        return StringUtils.leftPad(Integer.toString(date.getYear()), 4, '0') + '-'
+                + StringUtils.leftPad(Integer.toString(date.getMonth()), 2, '0') + '-'
+                + StringUtils.leftPad(Integer.toString(date.getDay()), 2, '0');
+    }
+
+    private static String baseline(HTime time) {
+        String s = StringUtils.leftPad(Integer.toString(time.getHour()), 2, '0') + ':'
+                + StringUtils.leftPad(Integer.toString(time.getMinute()), 2, '0') + ':'
+                + StringUtils.leftPad(Integer.toString(time.getSecond()), 2, '0');
+        if (time.getMs() != 0) {
+            String millis = StringUtils.leftPad(Integer.toString(time.getMs()), 3, '0');
+            int len = 3;
+            while (millis.charAt(len - 1) == '0')
+                len--;
+            s += '.' + millis.substring(0, len);
+        }
+        return s;
+    }
+
+    private static String baseline(HDateTime dt) {
+        StringBuilder s = new StringBuilder();
+        s.append(baseline(dt.getDate())).append('T').append(baseline(dt.getTime()));
+        int offset = dt.getTzOffset();
+        if (offset == 0)
+            s.append('Z');
+        else {
+            s.append(offset < 0 ? '-' : '+');
+            offset = Math.abs(offset);
+            s.append(StringUtils.leftPad(Integer.toString(offset / 3600), 2, '0')).append(':');
+            s.append(StringUtils.leftPad(Integer.toString((offset % 3600) / 60), 2, '0'));
+        }
+        return s.append(' ').append(dt.getTz().name).toString();
+    }
+
+    /**
+     * Checks that appendTo appends to what is already in the buffer, and that toString is the same.
+     */
+    private static void assertFormat(String expected, HDateTime dt) {
+        Assert.assertEquals(expected, baseline(dt));
+        StringBuilder sb = new StringBuilder("x");
+        dt.appendTo(sb);
+        Assert.assertEquals("x" + expected, sb.toString());
+        Assert.assertEquals(expected, dt.toString());
+
+        sb.setLength(0);
+        dt.getDate().appendTo(sb);
+        Assert.assertEquals(baseline(dt.getDate()), sb.toString());
+        sb.setLength(0);
+        dt.getTime().appendTo(sb);
+        Assert.assertEquals(baseline(dt.getTime()), sb.toString());
+    }
+
+    @Test
+    public void formatYearsBefore1000() {
+        // The HDate(String) constructor does not check the year.
+        for (String date : new String[] { "0001-01-01", "0045-12-31", "0999-01-02" }) {
+            HDateTime dt = new HDateTime(new HDate(date), new HTime(1, 2, 3), HTimeZone.UTC, 0);
+            Assert.assertEquals(date, dt.getDate().toString());
+            assertFormat(date + "T01:02:03Z UTC", dt);
+        }
+    }
+
+    @Test
+    public void formatMillis() {
+        String[] expected = { "", ".001", ".005", ".01", ".1", ".12", ".999" };
+        int[] ms = { 0, 1, 5, 10, 100, 120, 999 };
+        for (int i = 0; i < ms.length; i++) {
+            HDateTime dt = new HDateTime(new HDate(2015, 4, 5), new HTime(6, 7, 8, ms[i]), HTimeZone.UTC, 0);
+            assertFormat("2015-04-05T06:07:08" + expected[i] + "Z UTC", dt);
+            Assert.assertEquals(dt, HDateTime.parse(dt.toString()));
+        }
+    }
+
+    @Test
+    public void formatOffsets() {
+        HDate date = new HDate(2015, 4, 5);
+        HTime time = new HTime(6, 7, 8, 120);
+        assertFormat("2015-04-05T06:07:08.12Z UTC", new HDateTime(date, time, HTimeZone.UTC, 0));
+        assertFormat("2015-04-05T06:07:08.12-04:00 New_York", new HDateTime(date, time, NEW_YORK));
+        assertFormat("2015-01-05T06:07:08.12-05:00 New_York",
+                new HDateTime(new HDate(2015, 1, 5), time, NEW_YORK));
+        assertFormat("2015-01-05T06:07:08.12-03:30 St_Johns",
+                new HDateTime(new HDate(2015, 1, 5), time, HTimeZone.forName("St_Johns")));
+        assertFormat("2015-04-05T06:07:08.12+05:45 Kathmandu",
+                new HDateTime(date, time, HTimeZone.forName("Kathmandu")));
+        assertFormat("2015-04-05T06:07:08.12+14:00 Kiritimati",
+                new HDateTime(date, time, HTimeZone.forName("Kiritimati")));
+        assertFormat("1960-02-29T23:59:59.999-05:00 New_York",
+                new HDateTime(utc("1960-03-01T04:59:59.999Z"), NEW_YORK));
+    }
+}
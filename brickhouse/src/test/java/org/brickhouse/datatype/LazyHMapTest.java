@@ -0,0 +1,73 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.datatype;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LazyHMapTest {
+    /**
+     * Indexes the given tags, with each value being its offset as a number, and counts the values decoded.
+     */
+    private static class CountingMap extends LazyHMap {
+        final List<Integer> decoded = new ArrayList<>();
+
+        CountingMap(String... names) {
+            for (int i = 0; i < names.length; i++)
+                addTag(names[i], i);
+        }
+
+        @Override
+        protected HValue decodeValue(int offset) {
+            decoded.add(offset);
+            return new HNumber(offset);
+        }
+    }
+
+    @Test
+    public void sizeWithoutDecoding() {
+        CountingMap map = new CountingMap("a", "b", "c");
+        Assert.assertEquals(3, map.size());
+        Assert.assertFalse(map.isEmpty());
+        Assert.assertTrue(map.decoded.isEmpty());
+    }
+
+    @Test
+    public void empty() {
+        CountingMap map = new CountingMap();
+        Assert.assertEquals(0, map.size());
+        Assert.assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void repeatedTagCountsOnce() {
+        CountingMap map = new CountingMap("a", "b", "a", "c", "b");
+        Assert.assertEquals(3, map.size());
+        Assert.assertTrue(map.decoded.isEmpty());
+
+        // The last value wins, and the size agrees with the decoded map.
+        Assert.assertEquals(new HNumber(2), map.get("a"));
+        Assert.assertEquals(3, map.decode().size());
+        Assert.assertEquals(new HNumber(4), map.decode().get("b"));
+    }
+
+    @Test
+    public void sizeAfterMaterializing() {
+        CountingMap map = new CountingMap("a", "b", "a");
+        map.put("d", new HNumber(9));
+        Assert.assertEquals(3, map.size());
+        map.remove("a");
+        map.remove("b");
+        map.remove("d");
+        Assert.assertEquals(0, map.size());
+        Assert.assertTrue(map.isEmpty());
+    }
+}
@@ -0,0 +1,113 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.filter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.brickhouse.datatype.HNumber;
+import org.brickhouse.datatype.HReference;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FilterSqlTest {
+    private static final HReference A = new HReference("a");
+    private static final HReference B = new HReference("b");
+
+    private static void assertSql(String expected, List<Object> expectedParams, Filter filter) {
+        List<Object> params = new ArrayList<>();
+        Assert.assertEquals(filter.toString(), expected, filter.toSql(params));
+        Assert.assertEquals(filter.toString(), expectedParams, params);
+    }
+
+    private static void assertSql(String expected, Filter filter) {
+        assertSql(expected, Collections.emptyList(), filter);
+    }
+
+    private static void assertNotPushed(Filter filter) {
+        assertSql(null, filter);
+    }
+
+    @Test
+    public void all() {
+        assertSql("1=1", Filter.ALL);
+    }
+
+    @Test
+    public void hasAndMissingId() {
+        // Every stored record has an id.
+        assertSql("1=1", Filter.has("id"));
+        assertSql("1=0", Filter.missing("id"));
+        assertNotPushed(Filter.has("site"));
+        assertNotPushed(Filter.missing("site"));
+        assertNotPushed(Filter.has("siteRef->id"));
+    }
+
+    @Test
+    public void eqId() {
+        assertSql("id=?", Arrays.asList("a"), Filter.eq("id", A));
+        // An id is always a reference, so it can never equal anything else.
+        assertSql("1=0", Filter.eq("id", "a"));
+        assertNotPushed(Filter.eq("siteRef", A));
+        assertNotPushed(Filter.eq("siteRef->id", A));
+    }
+
+    @Test
+    public void neId() {
+        assertSql("id<>?", Arrays.asList("a"), Filter.ne("id", A));
+        assertSql("1=1", Filter.ne("id", "a"));
+        assertNotPushed(Filter.ne("siteRef", A));
+    }
+
+    @Test
+    public void otherComparisonsAreNotPushed() {
+        assertNotPushed(Filter.lt("id", A));
+        assertNotPushed(Filter.le("id", A));
+        assertNotPushed(Filter.gt("id", A));
+        assertNotPushed(Filter.ge("id", A));
+        assertNotPushed(Filter.lt("n", new HNumber(1)));
+    }
+
+    @Test
+    public void compounds() {
+        assertSql("(id=?) AND (id<>?)", Arrays.asList("a", "b"), Filter.eq("id", A).and(Filter.ne("id", B)));
+        assertSql("(id=?) OR (id=?)", Arrays.asList("a", "b"), Filter.eq("id", A).or(Filter.eq("id", B)));
+        assertSql("((id=?) OR (id=?)) AND (1=1)", Arrays.asList("a", "b"),
+                Filter.eq("id", A).or(Filter.eq("id", B)).and(Filter.has("id")));
+        assertSql("NOT (id=?)", Arrays.asList("a"), Filter.negate(Filter.eq("id", A)));
+        assertSql("NOT ((id=?) OR (1=0))", Arrays.asList("a"),
+                Filter.negate(Filter.eq("id", A).or(Filter.missing("id"))));
+    }
+
+    @Test
+    public void unpushableBranchRollsBackParams() {
+        List<Object> params = new ArrayList<>();
+        params.add("existing");
+
+        // The first branch adds a parameter before the second turns out not to be pushable.
+        Assert.assertNull(Filter.eq("id", A).and(Filter.has("site")).toSql(params));
+        Assert.assertEquals(Arrays.asList("existing"), params);
+        Assert.assertNull(Filter.eq("id", A).or(Filter.eq("id", B).and(Filter.has("site"))).toSql(params));
+        Assert.assertEquals(Arrays.asList("existing"), params);
+
+        // An unpushable first branch stops before the second adds anything.
+        Assert.assertNull(Filter.has("site").or(Filter.eq("id", A)).toSql(params));
+        Assert.assertEquals(Arrays.asList("existing"), params);
+
+        Assert.assertNull(Filter.negate(Filter.eq("id", A).and(Filter.has("site"))).toSql(params));
+        Assert.assertEquals(Arrays.asList("existing"), params);
+    }
+
+    @Test
+    public void parsedFilters() {
+        assertSql("(id=?) OR (id=?)", Arrays.asList("a", "b"), Filter.parse("id == @a or id == @b"));
+        assertNotPushed(Filter.parse("id == @a and site"));
+    }
+}
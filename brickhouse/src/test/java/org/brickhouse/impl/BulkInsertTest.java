@@ -0,0 +1,116 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.impl;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.brickhouse.datatype.HMap;
+import org.brickhouse.datatype.HReference;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.DataAccessException;
+
+public class BulkInsertTest {
+    private FakeDatabase db;
+    private MysqlImpl mysql;
+
+    @Before
+    public void before() {
+        db = new FakeDatabase();
+        mysql = new MysqlImpl(db.getBasicDataSource());
+    }
+
+    private static List<HMap> rows(int count) {
+        List<HMap> rows = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            rows.add(new HMap().put("id", new HReference("r" + i)).put("dis", "Row " + i).put("n", i));
+        return rows;
+    }
+
+    /**
+     * @return the log, with each insert shortened to the number of rows that it writes.
+     */
+    private List<String> log() {
+        List<String> log = new ArrayList<>();
+        for (String sql : db.getLog()) {
+            if (sql.startsWith("INSERT INTO"))
+                log.add("INSERT " + (sql.split("\\(\\?,\\?,\\?\\)", -1).length - 1));
+            else
+                log.add(sql);
+        }
+        return log;
+    }
+
+    @Test
+    public void chunksRowsAndCommitsEveryInterval() {
+        mysql.setBulkCommitInterval(1200);
+        List<HMap> rows = rows(2600);
+        mysql.bulkInsert("points", RecordCodec.JSON, rows);
+
+        Assert.assertEquals(Arrays.asList("CONNECT", "AUTOCOMMIT false", //
+                "INSERT 500", "INSERT 500", "INSERT 200", "COMMIT", //
+                "INSERT 500", "INSERT 500", "INSERT 200", "COMMIT", //
+                "INSERT 200", "COMMIT", "AUTOCOMMIT true"), log());
+
+        Map<String, HMap> stored = db.rows();
+        Assert.assertEquals(2600, stored.size());
+        int i = 0;
+        for (Map.Entry<String, HMap> e : stored.entrySet()) {
+            Assert.assertEquals(rows.get(i).id().getId(), e.getKey());
+            Assert.assertEquals(rows.get(i), e.getValue());
+            i++;
+        }
+    }
+
+    @Test
+    public void exactMultipleOfChunk() {
+        mysql.setBulkCommitInterval(1000);
+        mysql.bulkInsert("points", RecordCodec.JSON, rows(1000));
+        Assert.assertEquals(Arrays.asList("CONNECT", "AUTOCOMMIT false", "INSERT 500", "INSERT 500", "COMMIT",
+                "AUTOCOMMIT true"), log());
+        Assert.assertEquals(1000, db.rows().size());
+    }
+
+    @Test
+    public void failedIntervalRollsBackAndStops() {
+        mysql.setBulkCommitInterval(1000);
+        db.setFailure((sql, params) -> params.contains("r1700") ? new SQLException("bad row") : null);
+        try {
+            mysql.bulkInsert("points", RecordCodec.JSON, rows(2500));
+            Assert.fail();
+        }
+        catch (DataAccessException e) {
+            Assert.assertEquals("bad row", e.getMessage());
+        }
+
+        // The first interval was committed; the second, including its first statement, was rolled back.
+        Assert.assertEquals(Arrays.asList("CONNECT", "AUTOCOMMIT false", "INSERT 500", "INSERT 500", "COMMIT",
+                "INSERT 500", "INSERT 500", "ROLLBACK", "AUTOCOMMIT true"), log());
+        Map<String, HMap> stored = db.rows();
+        Assert.assertEquals(1000, stored.size());
+        Assert.assertTrue(stored.containsKey("r999"));
+        Assert.assertFalse(stored.containsKey("r1000"));
+    }
+
+    @Test
+    public void defaultInterval() {
+        Assert.assertEquals(DatabaseImpl.DEFAULT_BULK_COMMIT_INTERVAL, mysql.getBulkCommitInterval());
+        try {
+            mysql.setBulkCommitInterval(0);
+            Assert.fail();
+        }
+        catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
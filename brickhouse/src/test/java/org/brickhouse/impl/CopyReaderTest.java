@@ -0,0 +1,169 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.brickhouse.datatype.HMap;
+import org.brickhouse.datatype.HReference;
+import org.brickhouse.impl.PostgresqlImpl.CopyReader;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CopyReaderTest {
+    private static HMap row(String id, String dis) {
+        HMap row = new HMap().put("id", new HReference(id));
+        if (dis != null)
+            row.put("dis", dis);
+        return row;
+    }
+
+    /**
+     * Reads everything, asking for at most bufferSize characters at a time, at an offset into the buffer.
+     */
+    private static String read(List<HMap> rows, RecordCodec codec, int bufferSize) {
+        CopyReader reader = new CopyReader(rows, codec);
+        char[] buf = new char[bufferSize + 3];
+        StringBuilder sb = new StringBuilder();
+        int n;
+        while ((n = reader.read(buf, 3, bufferSize)) != -1) {
+            Assert.assertTrue(n > 0 && n <= bufferSize);
+            sb.append(buf, 3, n);
+        }
+        Assert.assertEquals(-1, reader.read(buf, 0, bufferSize));
+        return sb.toString();
+    }
+
+    /**
+     * Parses COPY text format back into fields, with null for \N.
+     */
+    private static List<List<String>> parse(String text) {
+        Assert.assertTrue(text.isEmpty() || text.endsWith("\n"));
+        List<List<String>> lines = new ArrayList<>();
+        for (String line : text.split("\n")) {
+            if (text.isEmpty())
+                break;
+            List<String> fields = new ArrayList<>();
+            for (String field : line.split("\t", -1)) {
+                if (field.equals("\\N")) {
+                    fields.add(null);
+                    continue;
+                }
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < field.length(); i++) {
+                    char c = field.charAt(i);
+                    if (c == '\r')
+                        Assert.fail("Unescaped carriage return");
+                    if (c != '\\') {
+                        sb.append(c);
+                        continue;
+                    }
+                    c = field.charAt(++i);
+                    switch (c) {
+                    case '\\':
+                        sb.append('\\');
+                        break;
+                    case 't':
+                        sb.append('\t');
+                        break;
+                    case 'n':
+                        sb.append('\n');
+                        break;
+                    case 'r':
+                        sb.append('\r');
+                        break;
+                    default:
+                        Assert.fail("Unexpected escape \\" + c);
+                    }
+                }
+                fields.add(sb.toString());
+            }
+            Assert.assertEquals(3, fields.size());
+            lines.add(fields);
+        }
+        return lines;
+    }
+
+    @Test
+    public void escapesSpecialCharacters() {
+        HMap row = row("a", "tab\there\nnew\rret\\slash \\N");
+        String text = read(Collections.singletonList(row), RecordCodec.JSON, 1024);
+        Assert.assertTrue(text.startsWith("a\ttab\\there\\nnew\\rret\\\\slash \\\\N\t"));
+
+        List<String> fields = parse(text).get(0);
+        Assert.assertEquals(Arrays.asList("a", row.disOrNull(), SqlTable.toString(row)), fields);
+    }
+
+    @Test
+    public void nullDisIsWrittenAsNull() {
+        HMap row = row("a", null);
+        String text = read(Collections.singletonList(row), RecordCodec.JSON, 1024);
+        Assert.assertTrue(text.startsWith("a\t\\N\t"));
+        Assert.assertEquals(Arrays.asList("a", null, SqlTable.toString(row)), parse(text).get(0));
+    }
+
+    @Test
+    public void escapesTheJsonRecord() {
+        // JSON escapes the control characters in strings, but its backslashes must be escaped again for COPY.
+        HMap row = row("a", "d").put("s", "quote\" back\\slash\nnewline\ttab");
+        String json = SqlTable.toString(row);
+        Assert.assertTrue(json.contains("\\"));
+
+        List<String> fields = parse(read(Collections.singletonList(row), RecordCodec.JSON, 1024)).get(0);
+        Assert.assertEquals(json, fields.get(2));
+        Assert.assertEquals(row, SqlTable.toMap(fields.get(2)));
+    }
+
+    @Test
+    public void binaryRecordIsHex() {
+        HMap row = row("a", "d").put("n", 1234).put("s", "\u00e9\t\n");
+        String text = read(Collections.singletonList(row), RecordCodec.BINARY, 1024);
+
+        String field = parse(text).get(0).get(2);
+        Assert.assertTrue(field.startsWith("\\x"));
+        Assert.assertTrue(field.substring(2).matches("([0-9a-f]{2})*"));
+
+        byte[] bytes = new byte[(field.length() - 2) / 2];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) Integer.parseInt(field.substring(2 + i * 2, 4 + i * 2), 16);
+        Assert.assertArrayEquals(RecordCodec.BINARY.encodeBinary(row), bytes);
+        Assert.assertEquals(row, RecordCodec.BINARY.decode(bytes));
+    }
+
+    @Test
+    public void shortReadsSplitRows() {
+        List<HMap> rows = new ArrayList<>();
+        for (int i = 0; i < 50; i++)
+            rows.add(row("r" + i, i % 5 == 0 ? null : "dis\t" + i + "\\\n").put("n", i));
+
+        for (RecordCodec codec : new RecordCodec[] { RecordCodec.JSON, RecordCodec.BINARY }) {
+            String whole = read(rows, codec, 1 << 16);
+            List<List<String>> lines = parse(whole);
+            Assert.assertEquals(rows.size(), lines.size());
+            for (int i = 0; i < rows.size(); i++) {
+                Assert.assertEquals("r" + i, lines.get(i).get(0));
+                Assert.assertEquals(rows.get(i).disOrNull(), lines.get(i).get(1));
+            }
+
+            for (int size : new int[] { 1, 2, 3, 7, 64, 1000 })
+                Assert.assertEquals("buffer " + size, whole, read(rows, codec, size));
+        }
+    }
+
+    @Test
+    public void emptyAndZeroLengthReads() {
+        Assert.assertEquals("", read(Collections.<HMap> emptyList(), RecordCodec.JSON, 16));
+
+        CopyReader reader = new CopyReader(Collections.singletonList(row("a", "d")), RecordCodec.JSON);
+        Assert.assertEquals(0, reader.read(new char[4], 0, 0));
+        Assert.assertEquals(4, reader.read(new char[4], 0, 4));
+    }
+}
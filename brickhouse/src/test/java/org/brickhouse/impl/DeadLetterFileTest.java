@@ -0,0 +1,117 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.impl;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.List;
+
+import org.brickhouse.TableTx;
+import org.brickhouse.datatype.HList;
+import org.brickhouse.datatype.HMap;
+import org.brickhouse.datatype.HReference;
+import org.brickhouse.json.JsonDecoder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DeadLetterFileTest {
+    private File file;
+    private DeadLetterFile deadLetters;
+
+    @Before
+    public void before() throws Exception {
+        file = File.createTempFile("points", ".deadletter");
+        file.delete();
+        deadLetters = new DeadLetterFile(file);
+    }
+
+    @After
+    public void after() {
+        file.delete();
+    }
+
+    private List<String> lines() throws Exception {
+        return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void entriesAreJsonLines() throws Exception {
+        SQLException error = new SQLException("bad value");
+        deadLetters.add(DeadLetterFile.rowEntry("insert", MemoryTableTest.row("a", 1)), error);
+        deadLetters.add(DeadLetterFile.deleteEntry("b"), error);
+        deadLetters.add(DeadLetterFile.diffEntry(new HReference("c"), new HMap().put("n", 2)), error);
+        deadLetters.add(DeadLetterFile.transactionEntry(
+                new TableTx().update(MemoryTableTest.row("a", 3)).delete("b").getOps()), error);
+        Assert.assertEquals(4, deadLetters.getCount());
+
+        List<String> lines = lines();
+        Assert.assertEquals(4, lines.size());
+        for (String line : lines) {
+            HMap entry = JsonDecoder.readDbMap(line);
+            Assert.assertEquals("java.sql.SQLException: bad value", entry.getString("error"));
+            Assert.assertNotNull(entry.get("ts"));
+        }
+
+        HMap insert = JsonDecoder.readDbMap(lines.get(0));
+        Assert.assertEquals("insert", insert.getString("op"));
+        Assert.assertEquals(MemoryTableTest.row("a", 1), insert.get("row"));
+
+        HMap delete = JsonDecoder.readDbMap(lines.get(1));
+        Assert.assertEquals("delete", delete.getString("op"));
+        Assert.assertEquals("b", delete.getString("id"));
+
+        HMap diff = JsonDecoder.readDbMap(lines.get(2));
+        Assert.assertEquals("diff", diff.getString("op"));
+        Assert.assertEquals("c", diff.getString("id"));
+        Assert.assertEquals(new HMap().put("n", 2), diff.get("diff"));
+
+        HMap tx = JsonDecoder.readDbMap(lines.get(3));
+        Assert.assertEquals("transaction", tx.getString("op"));
+        HList ops = tx.get("ops");
+        Assert.assertEquals(2, ops.size());
+        Assert.assertEquals("update", ((HMap) ops.get(0)).getString("op"));
+        Assert.assertEquals("delete", ((HMap) ops.get(1)).getString("op"));
+    }
+
+    @Test
+    public void replayKeepsWritesThatFailAgain() throws Exception {
+        FakeDatabase db = new FakeDatabase();
+        db.put(MemoryTableTest.row("a", 1));
+        db.put(MemoryTableTest.row("b", 1));
+        SqlTable table = db.table();
+
+        SQLException error = new SQLException("bad value");
+        deadLetters.add(DeadLetterFile.rowEntry("insert", MemoryTableTest.row("d", 1)), error);
+        deadLetters.add(DeadLetterFile.rowEntry("update", MemoryTableTest.row("a", 2)), error);
+        deadLetters.add(DeadLetterFile.rowEntry("upsert", MemoryTableTest.row("z", 1)), error);
+        deadLetters.add(DeadLetterFile.diffEntry(new HReference("a"), new HMap().put("n", 3)), error);
+        deadLetters.add(DeadLetterFile.deleteEntry("b"), error);
+
+        db.setFailure((sql, params) -> params.contains("z") ? new SQLException("still bad") : null);
+        Assert.assertEquals(4, deadLetters.replay(table));
+        Assert.assertEquals(MemoryTableTest.row("d", 1), db.get("d"));
+        Assert.assertEquals(MemoryTableTest.row("a", 3), db.get("a"));
+        Assert.assertNull(db.get("b"));
+        Assert.assertNull(db.get("z"));
+
+        List<String> lines = lines();
+        Assert.assertEquals(1, lines.size());
+        HMap entry = JsonDecoder.readDbMap(lines.get(0));
+        Assert.assertEquals("upsert", entry.getString("op"));
+        Assert.assertTrue(entry.getString("error").contains("still bad"));
+
+        db.setFailure(null);
+        Assert.assertEquals(1, deadLetters.replay(table));
+        Assert.assertEquals(MemoryTableTest.row("z", 1), db.get("z"));
+        Assert.assertFalse(file.exists());
+    }
+}
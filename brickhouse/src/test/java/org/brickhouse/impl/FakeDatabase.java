@@ -0,0 +1,403 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.brickhouse.Database;
+import org.brickhouse.datatype.HMap;
+import org.brickhouse.json.JsonDecoder;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * An in-memory database of one table of (id, dis, record) rows, with the record as JSON text, behind JDBC proxies. It
+ * understands the statements that SqlTable makes when it has no dialect, and MySQL's multi-row inserts.
+ *
+ * Transactions are serialized. A connection with autocommit off holds the database from its first statement until
+ * it commits or rolls back, and a rollback restores the rows as they were. Connections, statements, commits and
+ * rollbacks are logged, and any of them can be made to fail.
+ */
+public class FakeDatabase {
+    public interface Failure {
+        /**
+         * @param sql
+         *            the statement, or CONNECT, COMMIT, ROLLBACK or AUTOCOMMIT.
+         * @return the exception to throw instead of executing the statement, or null to execute it.
+         */
+        SQLException check(String sql, List<Object> params);
+    }
+
+    // One or more rows.
+    private static final Pattern INSERT = Pattern
+            .compile("INSERT INTO \\w+ \\(id, dis, \\w+\\) VALUES \\(\\?,\\?,\\?\\)(,\\(\\?,\\?,\\?\\))*");
+    private static final Pattern UPDATE = Pattern.compile("UPDATE \\w+ SET dis=\\?, \\w+=\\? WHERE id=\\?");
+    private static final Pattern DELETE = Pattern.compile("DELETE FROM \\w+ WHERE id=\\?");
+    private static final Pattern DELETE_IN = Pattern.compile("DELETE FROM \\w+ WHERE id IN \\(.*\\)");
+    private static final Pattern SELECT_ID = Pattern.compile("SELECT (\\w+) FROM \\w+ WHERE id=\\?( FOR UPDATE)?");
+    private static final Pattern SELECT = Pattern.compile("SELECT \\w+ FROM \\w+");
+    private static final Pattern STATS = Pattern.compile("INSERT INTO \\w+_stats .*");
+
+    // Each row is { dis, record }.
+    private final Map<String, String[]> rows = new LinkedHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final List<String> log = Collections.synchronizedList(new ArrayList<>());
+    private volatile Failure failure;
+
+    private final DataSource dataSource = proxy(DataSource.class, (p, m, args) -> {
+        if (m.getName().equals("getConnection"))
+            return new Conn().connection;
+        return defaultValue(m.getReturnType());
+    });
+
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+
+    /**
+     * @return a pool over this database, for constructing a DatabaseImpl.
+     */
+    public BasicDataSource getBasicDataSource() {
+        return new BasicDataSource() {
+            @Override
+            public Connection getConnection() throws SQLException {
+                return dataSource.getConnection();
+            }
+        };
+    }
+
+    /**
+     * @return a table on this database, written without a dialect.
+     */
+    public SqlTable table() {
+        return new SqlTable(new JdbcTemplate(dataSource), "points", false, false);
+    }
+
+    /**
+     * @return a memory table over the given table, writing behind on its own scheduler.
+     */
+    public static MemoryTable memoryTable(SqlTable table, int partitions) {
+        Database database = proxy(Database.class, (p, m, args) -> {
+            if (m.getName().equals("getTable"))
+                return table;
+            throw new UnsupportedOperationException(m.getName());
+        });
+        return new MemoryTable(database, "points", true, false, false, partitions);
+    }
+
+    public void setFailure(Failure failure) {
+        this.failure = failure;
+    }
+
+    public List<String> getLog() {
+        synchronized (log) {
+            return new ArrayList<>(log);
+        }
+    }
+
+    public void clearLog() {
+        log.clear();
+    }
+
+    /**
+     * Stores the row directly, as if it had been written before.
+     */
+    public void put(HMap row) {
+        lock.lock();
+        try {
+            rows.put(row.id().getId(), new String[] { row.disOrNull(), SqlTable.toString(row) });
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the committed row, or null if there is none. Waits for any transaction to finish.
+     */
+    public HMap get(String id) {
+        lock.lock();
+        try {
+            String[] row = rows.get(id);
+            return row == null ? null : JsonDecoder.readDbMap(row[1]);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the committed rows by id, in the order that they were inserted. Waits for any transaction to finish.
+     */
+    public Map<String, HMap> rows() {
+        lock.lock();
+        try {
+            Map<String, HMap> result = new LinkedHashMap<>();
+            for (Map.Entry<String, String[]> e : rows.entrySet())
+                result.put(e.getKey(), JsonDecoder.readDbMap(e.getValue()[1]));
+            return result;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private void check(String sql, List<Object> params) throws SQLException {
+        log.add(sql);
+        Failure f = failure;
+        if (f != null) {
+            SQLException e = f.check(sql, params);
+            if (e != null)
+                throw e;
+        }
+    }
+
+    /**
+     * @return the update count, or the values of the single column of a query.
+     */
+    private Object execute(String sql, List<Object> params) throws SQLException {
+        String id = params.isEmpty() ? null : (String) params.get(params.size() - 1);
+        Matcher m;
+        if (STATS.matcher(sql).matches())
+            return 1;
+        if (INSERT.matcher(sql).matches()) {
+            // Check every row first, so that a statement is all or nothing.
+            for (int i = 0; i < params.size(); i += 3) {
+                if (rows.containsKey(params.get(i)))
+                    throw new SQLException("duplicate key value: " + params.get(i), "23505");
+            }
+            for (int i = 0; i < params.size(); i += 3) {
+                String[] row = { (String) params.get(i + 1), (String) params.get(i + 2) };
+                rows.put((String) params.get(i), row);
+            }
+            return params.size() / 3;
+        }
+        if (UPDATE.matcher(sql).matches()) {
+            if (!rows.containsKey(id))
+                return 0;
+            rows.put(id, new String[] { (String) params.get(0), (String) params.get(1) });
+            return 1;
+        }
+        if (DELETE.matcher(sql).matches())
+            return rows.remove(id) == null ? 0 : 1;
+        if (DELETE_IN.matcher(sql).matches()) {
+            int count = 0;
+            for (Object param : params) {
+                if (rows.remove(param) != null)
+                    count++;
+            }
+            return count;
+        }
+        if ((m = SELECT_ID.matcher(sql)).matches()) {
+            String[] row = rows.get(id);
+            if (row == null)
+                return Collections.emptyList();
+            return Collections.singletonList(m.group(1).equals("dis") ? row[0] : row[1]);
+        }
+        if (SELECT.matcher(sql).matches()) {
+            List<Object> records = new ArrayList<>();
+            for (String[] row : rows.values())
+                records.add(row[1]);
+            return records;
+        }
+        throw new SQLException("Unsupported statement: " + sql);
+    }
+
+    private class Conn {
+        final Connection connection = proxy(Connection.class, this::invoke);
+        private boolean autoCommit = true;
+        // The rows as they were when the transaction started, or null if there is none.
+        private Map<String, String[]> before;
+
+        Conn() throws SQLException {
+            check("CONNECT", Collections.emptyList());
+        }
+
+        private Object invoke(Object proxy, java.lang.reflect.Method m, Object[] args) throws SQLException {
+            switch (m.getName()) {
+            case "prepareStatement":
+                return new Stmt(this, (String) args[0]).statement;
+            case "getAutoCommit":
+                return autoCommit;
+            case "setAutoCommit":
+                check("AUTOCOMMIT " + args[0], Collections.emptyList());
+                if ((Boolean) args[0] && before != null)
+                    end(true);
+                autoCommit = (Boolean) args[0];
+                return null;
+            case "commit":
+                check("COMMIT", Collections.emptyList());
+                end(true);
+                return null;
+            case "rollback":
+                check("ROLLBACK", Collections.emptyList());
+                end(false);
+                return null;
+            case "close":
+                if (before != null)
+                    end(false);
+                return null;
+            case "getMetaData":
+                return proxy(DatabaseMetaData.class, (p, dm, dargs) -> {
+                    if (dm.getName().equals("supportsBatchUpdates"))
+                        return true;
+                    return defaultValue(dm.getReturnType());
+                });
+            }
+            return defaultValue(m.getReturnType());
+        }
+
+        Object execute(String sql, List<Object> params) throws SQLException {
+            check(sql, params);
+            if (autoCommit) {
+                lock.lock();
+                try {
+                    return FakeDatabase.this.execute(sql, params);
+                }
+                finally {
+                    lock.unlock();
+                }
+            }
+
+            if (before == null) {
+                lock.lock();
+                before = new LinkedHashMap<>(rows);
+            }
+            return FakeDatabase.this.execute(sql, params);
+        }
+
+        private void end(boolean commit) {
+            if (before == null)
+                return;
+            if (!commit) {
+                rows.clear();
+                rows.putAll(before);
+            }
+            before = null;
+            lock.unlock();
+        }
+    }
+
+    private class Stmt {
+        final PreparedStatement statement = proxy(PreparedStatement.class, this::invoke);
+        private final Conn conn;
+        private final String sql;
+        private final List<Object> params = new ArrayList<>();
+        private final List<List<Object>> batch = new ArrayList<>();
+
+        Stmt(Conn conn, String sql) {
+            this.conn = conn;
+            this.sql = sql;
+        }
+
+        private Object invoke(Object proxy, java.lang.reflect.Method m, Object[] args) throws SQLException {
+            String name = m.getName();
+            if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+                int index = (Integer) args[0];
+                while (params.size() < index)
+                    params.add(null);
+                params.set(index - 1, name.equals("setNull") ? null : args[1]);
+                return null;
+            }
+
+            switch (name) {
+            case "setFetchSize":
+                log.add("FETCH SIZE " + args[0]);
+                return null;
+            case "executeUpdate":
+                return conn.execute(sql, params);
+            case "executeQuery":
+                return resultSet((List<?>) conn.execute(sql, params));
+            case "addBatch":
+                batch.add(new ArrayList<>(params));
+                return null;
+            case "executeBatch":
+                int[] counts = new int[batch.size()];
+                for (int i = 0; i < counts.length; i++)
+                    counts[i] = (Integer) conn.execute(sql, batch.get(i));
+                batch.clear();
+                return counts;
+            case "getConnection":
+                return conn.connection;
+            }
+            return defaultValue(m.getReturnType());
+        }
+    }
+
+    private static ResultSet resultSet(List<?> values) {
+        int[] row = { -1 };
+        return proxy(ResultSet.class, (p, m, args) -> {
+            switch (m.getName()) {
+            case "next":
+                return ++row[0] < values.size();
+            case "getString":
+            case "getObject":
+            case "getBytes":
+                return values.get(row[0]);
+            case "getMetaData":
+                return proxy(ResultSetMetaData.class, (rp, rm, rargs) -> {
+                    if (rm.getName().equals("getColumnCount"))
+                        return 1;
+                    return defaultValue(rm.getReturnType());
+                });
+            }
+            return defaultValue(m.getReturnType());
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(FakeDatabase.class.getClassLoader(), new Class<?>[] { type },
+                (p, m, args) -> {
+                    switch (m.getName()) {
+                    case "equals":
+                        return p == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(p);
+                    case "toString":
+                        return "Fake" + type.getSimpleName();
+                    }
+                    return handler.invoke(p, m, args);
+                });
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class)
+            return false;
+        if (type == int.class)
+            return 0;
+        if (type == long.class)
+            return 0L;
+        if (type == short.class)
+            return (short) 0;
+        if (type == byte.class)
+            return (byte) 0;
+        if (type == double.class)
+            return 0D;
+        if (type == float.class)
+            return 0F;
+        return null;
+    }
+}
@@ -0,0 +1,683 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.impl;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.brickhouse.TableListenerAdapter;
+import org.brickhouse.datatype.HMap;
+import org.brickhouse.datatype.HNumber;
+import org.brickhouse.datatype.HReference;
+import org.brickhouse.datatype.HString;
+import org.brickhouse.filter.Filter;
+import org.brickhouse.json.JsonDecoder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MemoryTableTest {
+    private FakeDatabase db;
+    private MemoryTable table;
+
+    @Before
+    public void before() {
+        db = new FakeDatabase();
+        for (String id : new String[] { "a", "b", "c" })
+            db.put(row(id, 1));
+        table = FakeDatabase.memoryTable(db.table(), 1);
+    }
+
+    @After
+    public void after() {
+        table.close();
+    }
+
+    static HMap row(String id, int n) {
+        return new HMap().put("id", new HReference(id)).put("n", n);
+    }
+
+    static int n(HMap row) {
+        return ((HNumber) row.get("n")).intValue();
+    }
+
+    private int versions(String id) {
+        int count = 0;
+        for (MemoryTable.Version v = table.data.get(id); v != null; v = v.older)
+            count++;
+        return count;
+    }
+
+    /**
+     * Writes from another thread while the scan is part way through, and checks that the scan still sees the table as
+     * it was when it started.
+     */
+    @Test
+    public void scanSeesItsSnapshot() throws Exception {
+        Map<String, Integer> seen = new HashMap<>();
+        table.readAll(Filter.ALL, row -> {
+            if (seen.isEmpty()) {
+                Thread writer = new Thread(() -> {
+                    table.updateById(row("b", 2));
+                    table.deleteById("c");
+                    table.insert(row("d", 1));
+                });
+                writer.start();
+                try {
+                    writer.join();
+                }
+                catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            seen.put(row.id().getId(), n(row));
+        });
+
+        Assert.assertEquals(3, seen.size());
+        Assert.assertEquals(Integer.valueOf(1), seen.get("b"));
+        Assert.assertTrue(seen.containsKey("c"));
+        Assert.assertFalse(seen.containsKey("d"));
+
+        Assert.assertEquals(2, n(table.readById("b")));
+        Assert.assertNull(table.readById("c"));
+        Assert.assertEquals(3, table.readAll(Filter.ALL).size());
+    }
+
+    @Test
+    public void olderVersionsArePrunedAfterScan() {
+        table.readAll(Filter.ALL, row -> {
+            if (row.id().getId().equals("a")) {
+                table.updateById(row("b", 2));
+                table.updateById(row("b", 3));
+                table.deleteById("c");
+
+                // The versions that the scan can see are kept.
+                Assert.assertEquals(3, versions("b"));
+                Assert.assertEquals(2, versions("c"));
+            }
+        });
+
+        Assert.assertEquals(1, versions("a"));
+        Assert.assertEquals(1, versions("b"));
+        Assert.assertEquals(3, n(table.data.get("b").row));
+        Assert.assertFalse(table.data.containsKey("c"));
+        Assert.assertEquals(2, table.data.size());
+    }
+
+    @Test
+    public void writesWithoutScansKeepOneVersion() {
+        table.updateById(row("a", 2));
+        table.updateById(row("a", 3));
+        table.deleteById("b");
+        Assert.assertEquals(1, versions("a"));
+        Assert.assertFalse(table.data.containsKey("b"));
+    }
+
+    @Test
+    public void failedTransactionChangesNothing() {
+        db.clearLog();
+        try {
+            table.transaction(tx -> {
+                tx.insert(row("d", 1));
+                tx.update(row("a", 2));
+                tx.delete("b");
+                tx.update(new HMap().put("n", 3));
+            });
+            Assert.fail();
+        }
+        catch (RuntimeException e) {
+            Assert.assertEquals("id is required", e.getMessage());
+        }
+
+        Assert.assertEquals(0, table.getWriteBehindBacklog());
+        Assert.assertNull(table.readById("d"));
+        Assert.assertEquals(1, n(table.readById("a")));
+        Assert.assertNotNull(table.readById("b"));
+        Assert.assertEquals(1, versions("a"));
+
+        // Nothing was queued to be written behind.
+        table.close();
+        Assert.assertEquals("[]", db.getLog().toString());
+        Assert.assertEquals(3, db.rows().size());
+        Assert.assertEquals(1, n(db.get("a")));
+    }
+
+    @Test
+    public void committedTransactionIsWrittenBehindTogether() {
+        Assert.assertEquals(3, table.transaction(tx -> tx.insert(row("d", 1)).update(row("a", 2)).delete("b")));
+        table.close();
+
+        Assert.assertNull(db.get("b"));
+        Assert.assertEquals(2, n(db.get("a")));
+        Assert.assertEquals(1, n(db.get("d")));
+        Assert.assertTrue(db.getLog().contains("COMMIT"));
+    }
+
+    /**
+     * Transactions set a and b to the same value, so a scan that saw part of one would see them differ.
+     */
+    @Test
+    public void scansSeeWholeTransactions() throws Exception {
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicInteger scans = new AtomicInteger();
+        AtomicInteger torn = new AtomicInteger();
+        Thread[] readers = new Thread[2];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread(() -> {
+                while (!done.get()) {
+                    Map<String, Integer> seen = new HashMap<>();
+                    table.readAll(Filter.ALL, row -> seen.put(row.id().getId(), n(row)));
+                    if (!seen.get("a").equals(seen.get("b")))
+                        torn.incrementAndGet();
+                    scans.incrementAndGet();
+                }
+            });
+            readers[i].start();
+        }
+
+        for (int i = 2; i < 2000 || scans.get() < 100; i++) {
+            int n = i;
+            table.transaction(tx -> tx.update(row("a", n)).update(row("b", n)));
+        }
+        done.set(true);
+        for (Thread reader : readers)
+            reader.join();
+
+        Assert.assertEquals(0, torn.get());
+    }
+
+    @Test
+    public void changeWithSameHashIsWritten() {
+        HMap aa = row("a", 1).put("s", "Aa");
+        HMap bb = row("a", 1).put("s", "BB");
+        Assert.assertEquals(aa.contentHash(), bb.contentHash());
+        Assert.assertFalse(aa.equals(bb));
+
+        table.updateById(aa);
+        table.updateById(bb);
+        Assert.assertEquals(new HString("BB"), table.readById("a").get("s"));
+        table.close();
+
+        Assert.assertEquals(0, table.getSkippedWrites());
+        Assert.assertEquals(new HString("BB"), db.get("a").get("s"));
+    }
+
+    @Test
+    public void unchangedWritesAreSkipped() {
+        List<String> events = new ArrayList<>();
+        table.addListener(new TableListenerAdapter() {
+            @Override
+            public void update(HMap map, int count) {
+                events.add("update " + map.id().getId());
+            }
+
+            @Override
+            public void upsert(HMap record) {
+                events.add("upsert " + record.id().getId());
+            }
+
+            @Override
+            public void applyDiff(HReference id, HMap diff, int count) {
+                events.add("applyDiff " + id.getId());
+            }
+        });
+        db.clearLog();
+
+        Assert.assertEquals(1, table.updateById(row("a", 1)));
+        table.upsert(row("b", 1));
+        Assert.assertEquals(1, table.applyDiff(new HReference("c"), new HMap().put("n", 1)));
+        table.batchUpdate(Arrays.asList(row("a", 1), row("b", 1)));
+        Assert.assertEquals(5, table.getSkippedWrites());
+        Assert.assertEquals(0, table.getWriteBehindBacklog());
+
+        table.close();
+        Assert.assertEquals("[]", db.getLog().toString());
+        Assert.assertTrue(events.isEmpty());
+    }
+
+    private static String ids(List<HMap> rows) {
+        List<String> ids = new ArrayList<>();
+        for (HMap row : rows)
+            ids.add(row.id().getId());
+        return ids.toString();
+    }
+
+    /**
+     * Holds the writer on the insert of x while the writes after it are queued, so that they are taken and coalesced
+     * together.
+     */
+    @Test
+    public void coalescedWritesKeepOrder() throws Exception {
+        List<String> events = Collections.synchronizedList(new ArrayList<>());
+        table.addListener(new TableListenerAdapter() {
+            @Override
+            public void insert(HMap record) {
+                events.add("insert " + record.id().getId());
+            }
+
+            @Override
+            public void batchInsert(List<HMap> records) {
+                events.add("batchInsert " + ids(records));
+            }
+
+            @Override
+            public void update(HMap map, int count) {
+                events.add("update " + map.id().getId() + " " + n(map));
+            }
+
+            @Override
+            public void batchUpdate(List<HMap> records, int count) {
+                events.add("batchUpdate " + ids(records));
+            }
+
+            @Override
+            public void deleteById(String id, int count) {
+                events.add("delete " + id);
+            }
+        });
+
+        CountDownLatch held = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        db.setFailure((sql, params) -> {
+            if (sql.startsWith("INSERT") && "x".equals(params.get(0))) {
+                held.countDown();
+                try {
+                    release.await();
+                }
+                catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return null;
+        });
+
+        table.insert(row("x", 1));
+        held.await();
+        table.insert(row("d", 1));
+        table.insert(row("e", 1));
+        table.deleteById("d");
+        table.updateById(row("a", 2));
+        table.updateById(row("b", 2));
+        table.deleteById("a");
+        table.insert(row("g", 1));
+        table.updateById(row("e", 2));
+        table.updateById(row("e", 3));
+        release.countDown();
+        table.close();
+
+        Assert.assertEquals("[insert x, batchInsert [d, e], delete d, batchUpdate [a, b], delete a, insert g, "
+                + "update e 2, update e 3]", events.toString());
+        Assert.assertEquals("[b, c, e, g, x]", new TreeSet<>(db.rows().keySet()).toString());
+        Assert.assertEquals(2, n(db.get("b")));
+        Assert.assertEquals(3, n(db.get("e")));
+    }
+
+    /**
+     * Writes many rows over several writers, with each row updated in increasing order and sometimes deleted and
+     * inserted again, and checks that each row's writes reached the database in order.
+     */
+    @Test
+    public void partitionsKeepPerRowOrder() {
+        table.close();
+        table = FakeDatabase.memoryTable(db.table(), 4);
+        Map<String, List<Integer>> written = new ConcurrentHashMap<>();
+        table.addListener(new TableListenerAdapter() {
+            private void written(HMap row) {
+                written.computeIfAbsent(row.id().getId(), k -> Collections.synchronizedList(new ArrayList<>()))
+                        .add(n(row));
+            }
+
+            @Override
+            public void insert(HMap record) {
+                written(record);
+            }
+
+            @Override
+            public void batchInsert(List<HMap> records) {
+                records.forEach(this::written);
+            }
+
+            @Override
+            public void update(HMap map, int count) {
+                written(map);
+            }
+
+            @Override
+            public void batchUpdate(List<HMap> records, int count) {
+                records.forEach(this::written);
+            }
+        });
+
+        Random random = new Random(0);
+        Map<String, Integer> expected = new HashMap<>();
+        for (int n = 1; n <= 50; n++) {
+            for (int i = 0; i < 40; i++) {
+                String id = "r" + i;
+                if (!expected.containsKey(id)) {
+                    table.insert(row(id, n));
+                    expected.put(id, n);
+                }
+                else if (random.nextInt(10) == 0) {
+                    table.deleteById(id);
+                    expected.remove(id);
+                }
+                else {
+                    table.updateById(row(id, n));
+                    expected.put(id, n);
+                }
+            }
+        }
+        table.close();
+
+        Map<String, HMap> rows = db.rows();
+        for (int i = 0; i < 40; i++) {
+            String id = "r" + i;
+            Integer n = expected.get(id);
+            if (n == null)
+                Assert.assertNull(id, rows.get(id));
+            else
+                Assert.assertEquals(id, n.intValue(), n(rows.get(id)));
+
+            List<Integer> values = written.get(id);
+            for (int j = 1; j < values.size(); j++)
+                Assert.assertTrue(id + " " + values, values.get(j - 1) < values.get(j));
+        }
+    }
+
+    private void awaitWrittenBehind() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (table.getWriteBehindBacklog() > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        Assert.assertEquals(0, table.getWriteBehindBacklog());
+    }
+
+    private static SQLException connectionLost() {
+        return new SQLException("connection lost", "08006");
+    }
+
+    @Test
+    public void transientFailureIsRetriedAsUpsert() throws Exception {
+        table.setRetryPolicy(new RetryPolicy(1, 10, 100, 0));
+        AtomicInteger failures = new AtomicInteger();
+        db.setFailure((sql, params) -> {
+            if (sql.startsWith("INSERT") && "d".equals(params.get(0)) && failures.getAndIncrement() < 2)
+                return connectionLost();
+            return null;
+        });
+        db.clearLog();
+
+        table.insert(row("d", 1));
+        awaitWrittenBehind();
+
+        Assert.assertEquals(2, table.getWriteBehindRetries());
+        Assert.assertEquals(row("d", 1), db.get("d"));
+        // Without a dialect, the upsert is an update and then an insert.
+        String insert = "CONNECT, INSERT INTO points (id, dis, json) VALUES (?,?,?)";
+        String update = "CONNECT, UPDATE points SET dis=?, json=? WHERE id=?";
+        Assert.assertEquals("[" + insert + ", " + update + ", " + insert + ", " + update + ", " + insert + "]",
+                db.getLog().toString());
+    }
+
+    @Test
+    public void failedWriteIsDroppedWithoutDeadLetterFile() throws Exception {
+        Assert.assertNull(table.getDeadLetterFile());
+        db.setFailure((sql, params) -> sql.startsWith("UPDATE") ? new SQLException("bad value", "22000") : null);
+
+        table.updateById(row("a", 2));
+        table.close();
+
+        Assert.assertEquals(0, table.getWriteBehindRetries());
+        Assert.assertEquals(1, n(db.get("a")));
+        Assert.assertFalse(new File("points.deadletter").exists());
+    }
+
+    @Test
+    public void failedWriteIsDeadLettered() throws Exception {
+        File file = File.createTempFile("points", ".deadletter");
+        file.delete();
+        try {
+            table.setDeadLetterFile(new DeadLetterFile(file));
+            db.setFailure((sql, params) -> sql.startsWith("UPDATE") ? new SQLException("bad value", "22000") : null);
+
+            table.updateById(row("a", 2));
+            table.close();
+
+            Assert.assertEquals(1, n(db.get("a")));
+            List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+            Assert.assertEquals(1, lines.size());
+            HMap entry = JsonDecoder.readDbMap(lines.get(0));
+            Assert.assertEquals("update", entry.getString("op"));
+            Assert.assertEquals(row("a", 2), entry.get("row"));
+            Assert.assertTrue(entry.getString("error").contains("bad value"));
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * A batch insert that fails with a real key conflict is retried row by row as inserts, so that only the
+     * conflicting row is dead lettered, and the row that the database already has is not overwritten.
+     */
+    @Test
+    public void conflictingInsertBatchIsDeadLettered() throws Exception {
+        // Bulk inserts through a database are all or nothing.
+        table.close();
+        MysqlImpl mysql = new MysqlImpl(db.getBasicDataSource());
+        table = FakeDatabase.memoryTable(new SqlTable(mysql, "points", true, false, RecordCodec.JSON), 1);
+
+        File file = File.createTempFile("points", ".deadletter");
+        file.delete();
+        try {
+            table.setDeadLetterFile(new DeadLetterFile(file));
+            // Written to the database behind the table's back.
+            db.put(row("z", 1));
+
+            // Hold the writer so that the rows are taken as one batch.
+            CountDownLatch held = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            db.setFailure((sql, params) -> {
+                if (sql.startsWith("INSERT") && "x".equals(params.get(0))) {
+                    held.countDown();
+                    try {
+                        release.await();
+                    }
+                    catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return null;
+            });
+            table.insert(row("x", 1));
+            held.await();
+            db.clearLog();
+            table.batchInsert(Arrays.asList(row("d", 2), row("z", 2), row("e", 2)));
+            release.countDown();
+            table.close();
+
+            Assert.assertEquals(1, n(db.get("z")));
+            Assert.assertEquals(2, n(db.get("d")));
+            Assert.assertEquals(2, n(db.get("e")));
+            for (String sql : db.getLog())
+                Assert.assertFalse(sql, sql.startsWith("UPDATE"));
+
+            List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+            Assert.assertEquals(1, lines.size());
+            HMap entry = JsonDecoder.readDbMap(lines.get(0));
+            Assert.assertEquals("insert", entry.getString("op"));
+            Assert.assertEquals(row("z", 2), entry.get("row"));
+            Assert.assertTrue(entry.getString("error").contains("duplicate key"));
+        }
+        finally {
+            file.delete();
+            // Stops the database's scheduler, which the table writes behind on.
+            mysql.close();
+            table = FakeDatabase.memoryTable(db.table(), 1);
+        }
+    }
+
+    @Test
+    public void interruptedCloseKeepsTheInterrupt() throws Exception {
+        CountDownLatch held = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        db.setFailure((sql, params) -> {
+            if (sql.startsWith("INSERT")) {
+                held.countDown();
+                try {
+                    release.await();
+                }
+                catch (InterruptedException e) {
+                    // Closing the scheduler interrupts its threads.
+                }
+            }
+            return null;
+        });
+
+        table.insert(row("d", 1));
+        held.await();
+        table.insert(row("e", 1));
+
+        Thread.currentThread().interrupt();
+        try {
+            long start = System.currentTimeMillis();
+            table.close();
+            Assert.assertTrue(System.currentTimeMillis() - start < 10000);
+            Assert.assertTrue(Thread.currentThread().isInterrupted());
+            Assert.assertTrue(table.getWriteBehindBacklog() > 0);
+        }
+        finally {
+            Thread.interrupted();
+            release.countDown();
+        }
+
+        // The closed table's writes will never finish, so give after() a fresh one to close.
+        table = FakeDatabase.memoryTable(db.table(), 1);
+    }
+
+    @Test
+    public void closeWithOpenCircuitDeadLetters() throws Exception {
+        File file = File.createTempFile("points", ".deadletter");
+        file.delete();
+        try {
+            table.setDeadLetterFile(new DeadLetterFile(file));
+            table.setRetryPolicy(new RetryPolicy(1, 1, 1, 60000));
+            db.setFailure((sql, params) -> sql.startsWith("INSERT") ? connectionLost() : null);
+
+            table.insert(row("d", 1));
+            long deadline = System.currentTimeMillis() + 10000;
+            while (table.getWriteBehindRetries() == 0 && System.currentTimeMillis() < deadline)
+                Thread.sleep(1);
+
+            // The circuit is open for a minute, but closing does not wait for it.
+            long start = System.currentTimeMillis();
+            table.close();
+            Assert.assertTrue(System.currentTimeMillis() - start < 10000);
+
+            Assert.assertNull(db.get("d"));
+            List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+            Assert.assertEquals(1, lines.size());
+            HMap entry = JsonDecoder.readDbMap(lines.get(0));
+            Assert.assertEquals("insert", entry.getString("op"));
+            Assert.assertTrue(entry.getString("error").contains("closed while the database was unavailable"));
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void closeDrainsAllLanes() {
+        table.close();
+        WriteBehindScheduler scheduler = new WriteBehindScheduler(2, 1000, 60000);
+        try {
+            table = new MemoryTable(db.table(), scheduler, false, false, 4);
+            for (int i = 0; i < 100; i++)
+                table.insert(row("r" + i, i));
+            Assert.assertEquals(100, table.getWriteBehindBacklog());
+
+            // Without the flush on close, the writes would wait a minute.
+            long start = System.currentTimeMillis();
+            table.close();
+            Assert.assertTrue(System.currentTimeMillis() - start < 10000);
+            Assert.assertEquals(0, table.getWriteBehindBacklog());
+            Assert.assertEquals(103, db.rows().size());
+        }
+        finally {
+            scheduler.close();
+        }
+    }
+
+    /**
+     * Two tables with more partitions than the shared scheduler has threads run transactions that span their
+     * partitions, so that lanes park on the spanning tasks while others need the threads.
+     */
+    @Test
+    public void spanningTransactionsOnSharedScheduler() throws Exception {
+        table.close();
+        WriteBehindScheduler scheduler = new WriteBehindScheduler(2, 5, 1);
+        FakeDatabase[] dbs = { new FakeDatabase(), new FakeDatabase() };
+        MemoryTable[] tables = new MemoryTable[dbs.length];
+        Map<String, List<Integer>> expected = new ConcurrentHashMap<>();
+        try {
+            for (int t = 0; t < tables.length; t++)
+                tables[t] = new MemoryTable(dbs[t].table(), scheduler, false, false, 4);
+            table = tables[0];
+
+            Thread[] writers = new Thread[tables.length];
+            for (int t = 0; t < tables.length; t++) {
+                MemoryTable writing = tables[t];
+                writers[t] = new Thread(() -> {
+                    for (int n = 1; n <= 200; n++) {
+                        int value = n;
+                        writing.transaction(tx -> {
+                            for (int i = 0; i < 8; i++)
+                                tx.upsert(row("r" + i, value));
+                        });
+                        writing.upsert(row("s" + (value % 8), value));
+                    }
+                });
+                writers[t].start();
+            }
+            for (Thread writer : writers) {
+                writer.join(30000);
+                Assert.assertFalse(writer.isAlive());
+            }
+            for (MemoryTable closing : tables)
+                closing.close();
+        }
+        finally {
+            scheduler.close();
+        }
+
+        for (FakeDatabase written : dbs) {
+            Map<String, HMap> rows = written.rows();
+            Assert.assertEquals(16, rows.size());
+            for (int i = 0; i < 8; i++) {
+                Assert.assertEquals(200, n(rows.get("r" + i)));
+                Assert.assertEquals(200 - (8 - i) % 8, n(rows.get("s" + i)));
+            }
+            // Each transaction was written in one commit, whole.
+            Assert.assertEquals(200, Collections.frequency(written.getLog(), "COMMIT"));
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.impl;
+
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.dao.DataAccessException;
+
+public class RetryPolicyTest {
+    @Test
+    public void transientFailures() {
+        RetryPolicy policy = new RetryPolicy();
+        Assert.assertTrue(policy.isTransient(new SQLException("connection lost", "08006")));
+        Assert.assertTrue(policy.isTransient(new SQLException("deadlock", "40P01")));
+        Assert.assertTrue(policy.isTransient(new SQLException("lock wait timeout", "HY000", 1205)));
+        Assert.assertTrue(policy.isTransient(new SQLTransientConnectionException("timeout")));
+        Assert.assertTrue(policy.isTransient(
+                new DataAccessException("wrapped", new SQLException("connection lost", "08006"))));
+
+        Assert.assertFalse(policy.isTransient(new SQLException("duplicate key", "23505")));
+        Assert.assertFalse(policy.isTransient(new RuntimeException("id is required")));
+    }
+
+    @Test
+    public void backoffDoublesUpToMax() {
+        RetryPolicy policy = new RetryPolicy(100, 1000, 5, 30000);
+        Assert.assertEquals(100, policy.delay(0));
+        Assert.assertEquals(200, policy.delay(1));
+        Assert.assertEquals(800, policy.delay(3));
+        Assert.assertEquals(1000, policy.delay(4));
+        Assert.assertEquals(1000, policy.delay(100));
+    }
+
+    @Test
+    public void circuitOpensAndCloses() {
+        RetryPolicy policy = new RetryPolicy(1, 10, 3, 60000);
+        policy.failure();
+        policy.failure();
+        Assert.assertFalse(policy.isOpen());
+        Assert.assertEquals(1, policy.delay(0));
+
+        policy.failure();
+        Assert.assertTrue(policy.isOpen());
+        // Retries wait for the circuit to close.
+        Assert.assertTrue(policy.delay(0) > 59000);
+
+        policy.success();
+        Assert.assertFalse(policy.isOpen());
+        Assert.assertEquals(1, policy.delay(0));
+
+        // A success resets the count of failures in a row.
+        policy.failure();
+        policy.failure();
+        Assert.assertFalse(policy.isOpen());
+    }
+
+    @Test
+    public void circuitClosesAfterOpenTime() throws Exception {
+        RetryPolicy policy = new RetryPolicy(1, 10, 1, 20);
+        policy.failure();
+        Assert.assertTrue(policy.isOpen());
+        Thread.sleep(40);
+        Assert.assertFalse(policy.isOpen());
+    }
+}
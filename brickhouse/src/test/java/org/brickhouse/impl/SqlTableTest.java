@@ -0,0 +1,191 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.impl;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.brickhouse.TableListenerAdapter;
+import org.brickhouse.datatype.HMap;
+import org.brickhouse.datatype.HNumber;
+import org.brickhouse.datatype.HRemove;
+import org.brickhouse.datatype.HReference;
+import org.brickhouse.filter.Filter;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.DataAccessException;
+
+public class SqlTableTest {
+    private FakeDatabase db;
+    private SqlTable table;
+    private final List<String> events = new ArrayList<>();
+
+    @Before
+    public void before() {
+        db = new FakeDatabase();
+        for (String id : new String[] { "a", "b" })
+            db.put(row(id, 1));
+        table = db.table();
+        table.addListener(new TableListenerAdapter() {
+            @Override
+            public void insert(HMap record) {
+                events.add("insert " + record.id().getId());
+            }
+
+            @Override
+            public void update(HMap map, int count) {
+                events.add("update " + map.id().getId() + " " + count);
+            }
+
+            @Override
+            public void applyDiff(HReference id, HMap diff, int count) {
+                events.add("applyDiff " + id.getId() + " " + diff.keySet() + " " + count);
+            }
+
+            @Override
+            public void deleteById(String id, int count) {
+                events.add("delete " + id + " " + count);
+            }
+
+            @Override
+            public void deleteAll(Filter filter, int count) {
+                events.add("deleteAll " + filter + " " + count);
+            }
+        });
+    }
+
+    static HMap row(String id, int n) {
+        return new HMap().put("id", new HReference(id)).put("n", n);
+    }
+
+    static int n(HMap row) {
+        return ((HNumber) row.get("n")).intValue();
+    }
+
+    @Test
+    public void transactionCommits() {
+        Assert.assertEquals(3, table.transaction(tx -> tx.insert(row("c", 1)).update(row("a", 2)).delete("b")));
+        Assert.assertEquals(1, n(db.get("c")));
+        Assert.assertEquals(2, n(db.get("a")));
+        Assert.assertNull(db.get("b"));
+        Assert.assertEquals("[insert c, update a 1, delete b 1]", events.toString());
+    }
+
+    @Test
+    public void failedTransactionRollsBack() {
+        db.setFailure((sql, params) -> sql.startsWith("DELETE") ? new SQLException("delete failed") : null);
+        try {
+            table.transaction(tx -> tx.insert(row("c", 1)).update(row("a", 2)).delete("b"));
+            Assert.fail();
+        }
+        catch (DataAccessException e) {
+            Assert.assertEquals("delete failed", e.getCause().getMessage());
+        }
+
+        Assert.assertNull(db.get("c"));
+        Assert.assertEquals(1, n(db.get("a")));
+        Assert.assertNotNull(db.get("b"));
+        Assert.assertTrue(db.getLog().contains("ROLLBACK"));
+        Assert.assertFalse(db.getLog().contains("COMMIT"));
+        Assert.assertTrue(events.isEmpty());
+    }
+
+    @Test
+    public void applyDiffMergesAndNotifies() {
+        db.put(row("a", 1).put("x", "old").put("y", "kept"));
+        HMap diff = new HMap().put("x", HRemove.VALUE).put("n", 2).put("z", "new");
+        Assert.assertEquals(1, table.applyDiff(new HReference("a"), diff));
+
+        Assert.assertEquals(row("a", 2).put("y", "kept").put("z", "new"), db.get("a"));
+        Assert.assertTrue(db.getLog().contains("SELECT json FROM points WHERE id=? FOR UPDATE"));
+        Assert.assertEquals("[applyDiff a [x, n, z] 1]", events.toString());
+    }
+
+    @Test
+    public void applyDiffToMissingRow() {
+        Assert.assertEquals(0, table.applyDiff(new HReference("c"), new HMap().put("n", 2)));
+        Assert.assertNull(db.get("c"));
+        Assert.assertEquals("[applyDiff c [n] 0]", events.toString());
+    }
+
+    /**
+     * @return the log, with each DELETE ... IN shortened to the number of ids that it deletes.
+     */
+    private List<String> deleteLog() {
+        List<String> log = new ArrayList<>();
+        for (String sql : db.getLog()) {
+            if (sql.startsWith("DELETE FROM points WHERE id IN ("))
+                log.add("DELETE IN " + (sql.split("\\?", -1).length - 1));
+            else
+                log.add(sql);
+        }
+        return log;
+    }
+
+    private void putRows(int count) {
+        for (int i = 0; i < count; i++)
+            db.put(row("r" + i, i));
+    }
+
+    @Test
+    public void deleteAllPushesIdFiltersDown() {
+        Filter filter = Filter.eq("id", new HReference("a"));
+        Assert.assertEquals(1, table.deleteAll(filter));
+        Assert.assertEquals("[CONNECT, DELETE FROM points WHERE id=?]", db.getLog().toString());
+        Assert.assertNull(db.get("a"));
+        Assert.assertNotNull(db.get("b"));
+        Assert.assertEquals("[deleteAll " + filter + " 1]", events.toString());
+    }
+
+    @Test
+    public void deleteAllFallsBackToChunkedDeletes() {
+        putRows(1200);
+        db.clearLog();
+
+        Filter filter = Filter.lt("n", new HNumber(1100));
+        // a and b have n=1 as well.
+        Assert.assertEquals(1102, table.deleteAll(filter));
+
+        Assert.assertEquals(Arrays.asList("CONNECT", "SELECT json FROM points", "CONNECT", "AUTOCOMMIT false",
+                "DELETE IN 500", "DELETE IN 500", "DELETE IN 102", "COMMIT", "AUTOCOMMIT true"), deleteLog());
+        Assert.assertEquals(100, db.rows().size());
+        Assert.assertNull(db.get("r1099"));
+        Assert.assertNotNull(db.get("r1100"));
+        Assert.assertEquals("[deleteAll " + filter + " 1102]", events.toString());
+    }
+
+    @Test
+    public void failedChunkRollsBackTheWholeDelete() {
+        putRows(1200);
+        db.clearLog();
+        db.setFailure((sql, params) -> params.contains("r700") ? new SQLException("delete failed") : null);
+
+        try {
+            table.deleteAll(Filter.lt("n", new HNumber(1100)));
+            Assert.fail();
+        }
+        catch (DataAccessException e) {
+            Assert.assertEquals("delete failed", e.getMessage());
+        }
+
+        Assert.assertEquals(Arrays.asList("CONNECT", "SELECT json FROM points", "CONNECT", "AUTOCOMMIT false",
+                "DELETE IN 500", "DELETE IN 500", "ROLLBACK", "AUTOCOMMIT true"), deleteLog());
+        Assert.assertEquals(1202, db.rows().size());
+        Assert.assertTrue(events.isEmpty());
+    }
+
+    @Test
+    public void deleteAllWithNoMatches() {
+        Assert.assertEquals(0, table.deleteAll(Filter.has("missingTag")));
+        Assert.assertEquals("[CONNECT, SELECT json FROM points]", db.getLog().toString());
+        Assert.assertEquals(2, db.rows().size());
+    }
+}
@@ -0,0 +1,46 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.impl;
+
+import org.brickhouse.StorageFormat;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class UpsertSqlTest {
+    // Neither constructor connects; the pool opens connections when first asked.
+    private final PostgresqlImpl postgresql = new PostgresqlImpl("localhost", "test", "user", "password");
+    private final MysqlImpl mysql = new MysqlImpl("localhost", "test", "user", "password");
+
+    @Test
+    public void postgresql() {
+        Assert.assertEquals("INSERT INTO points (id, dis, json) VALUES (?,?,?)"
+                + " ON CONFLICT (id) DO UPDATE SET dis=EXCLUDED.dis, json=EXCLUDED.json",
+                postgresql.upsertSql("points", StorageFormat.JSON));
+        Assert.assertEquals("INSERT INTO points (id, dis, data) VALUES (?,?,?)"
+                + " ON CONFLICT (id) DO UPDATE SET dis=EXCLUDED.dis, data=EXCLUDED.data",
+                postgresql.upsertSql("points", StorageFormat.BINARY));
+    }
+
+    @Test
+    public void mysql() {
+        Assert.assertEquals("INSERT INTO points (id, dis, json) VALUES (?,?,?)"
+                + " ON DUPLICATE KEY UPDATE dis=VALUES(dis), json=VALUES(json)",
+                mysql.upsertSql("points", StorageFormat.JSON));
+        Assert.assertEquals("INSERT INTO points (id, dis, data) VALUES (?,?,?)"
+                + " ON DUPLICATE KEY UPDATE dis=VALUES(dis), data=VALUES(data)",
+                mysql.upsertSql("points", StorageFormat.BINARY));
+    }
+
+    @Test
+    public void mysqlMultiRow() {
+        Assert.assertEquals("INSERT INTO points (id, dis, json) VALUES (?,?,?),(?,?,?),(?,?,?)"
+                + " ON DUPLICATE KEY UPDATE dis=VALUES(dis), json=VALUES(json)",
+                MysqlImpl.multiRowInsert("points", StorageFormat.JSON, 3,
+                        " ON DUPLICATE KEY UPDATE dis=VALUES(dis), json=VALUES(json)"));
+    }
+}
@@ -0,0 +1,193 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class WriteBehindSchedulerTest {
+    private WriteBehindScheduler scheduler;
+
+    @After
+    public void after() {
+        if (scheduler != null)
+            scheduler.close();
+    }
+
+    /**
+     * Records the numbers added to it in the order that they are processed. A negative number parks the lane, and
+     * Integer.MIN_VALUE makes it fail once.
+     */
+    class TestLane extends WriteBehindScheduler.Lane<Integer> {
+        final List<Integer> processed = Collections.synchronizedList(new ArrayList<>());
+        final AtomicBoolean running = new AtomicBoolean();
+        volatile boolean overlapped;
+        final AtomicInteger calls = new AtomicInteger();
+        private boolean failed;
+
+        TestLane() {
+            super(scheduler);
+        }
+
+        @Override
+        protected long process(int maxTasks) {
+            if (!running.compareAndSet(false, true))
+                overlapped = true;
+            calls.incrementAndGet();
+            try {
+                Integer task;
+                for (int i = 0; i < maxTasks && (task = poll()) != null; i++) {
+                    if (task == Integer.MIN_VALUE && !failed) {
+                        failed = true;
+                        throw new IllegalStateException("test failure");
+                    }
+                    processed.add(task);
+                    if (task < 0) {
+                        scheduler.park(this);
+                        return WriteBehindScheduler.PARK;
+                    }
+                }
+                return 0;
+            }
+            finally {
+                running.set(false);
+            }
+        }
+
+        @Override
+        protected boolean hasPending() {
+            return false;
+        }
+
+        void addAll(int from, int to) {
+            for (int i = from; i < to; i++)
+                add(i);
+        }
+
+        void await(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (processed.size() < count && System.currentTimeMillis() < deadline)
+                Thread.sleep(1);
+            Assert.assertEquals(count, processed.size());
+        }
+    }
+
+    private static List<Integer> range(int from, int to) {
+        List<Integer> list = new ArrayList<>();
+        for (int i = from; i < to; i++)
+            list.add(i);
+        return list;
+    }
+
+    @Test
+    public void lanesProcessInOrderOnOneThreadAtATime() throws Exception {
+        scheduler = new WriteBehindScheduler(3, 7, 1);
+        TestLane[] lanes = new TestLane[5];
+        for (int i = 0; i < lanes.length; i++)
+            lanes[i] = new TestLane();
+
+        for (int from = 0; from < 2000; from += 100) {
+            for (TestLane lane : lanes)
+                lane.addAll(from, from + 100);
+        }
+        for (TestLane lane : lanes) {
+            lane.await(2000);
+            Assert.assertEquals(range(0, 2000), lane.processed);
+            Assert.assertFalse(lane.overlapped);
+            // Processed a batch at a time, not all at once.
+            Assert.assertTrue(lane.calls.get() >= 2000 / 7);
+        }
+    }
+
+    @Test
+    public void parkedLaneWaitsUntilResumed() throws Exception {
+        scheduler = new WriteBehindScheduler(1, 100, 1);
+        TestLane parked = new TestLane();
+        TestLane other = new TestLane();
+
+        parked.add(1);
+        parked.add(-1);
+        parked.add(2);
+        parked.await(2);
+        Assert.assertEquals(WriteBehindScheduler.PARKED, parked.state.get());
+
+        // Other lanes carry on meanwhile, on the only thread.
+        other.addAll(0, 10);
+        other.await(10);
+        parked.add(3);
+        Thread.sleep(50);
+        Assert.assertEquals(2, parked.processed.size());
+
+        scheduler.resume(parked);
+        parked.await(4);
+        Assert.assertEquals("[1, -1, 2, 3]", parked.processed.toString());
+    }
+
+    @Test
+    public void interruptedAwaitIdleKeepsTheInterrupt() throws Exception {
+        scheduler = new WriteBehindScheduler(1, 100, 1);
+        TestLane parked = new TestLane();
+        parked.add(-1);
+        parked.await(1);
+
+        Thread.currentThread().interrupt();
+        try {
+            Assert.assertFalse(scheduler.awaitIdle(parked));
+            Assert.assertTrue(Thread.currentThread().isInterrupted());
+        }
+        finally {
+            Thread.interrupted();
+        }
+
+        scheduler.resume(parked);
+        Assert.assertTrue(scheduler.awaitIdle(parked));
+    }
+
+    @Test
+    public void flushSkipsLatency() throws Exception {
+        scheduler = new WriteBehindScheduler(2, 1000, 60000);
+        TestLane[] lanes = new TestLane[4];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new TestLane();
+            lanes[i].addAll(0, 10);
+        }
+        Thread.sleep(50);
+        for (TestLane lane : lanes)
+            Assert.assertTrue(lane.processed.isEmpty());
+
+        long start = System.currentTimeMillis();
+        for (TestLane lane : lanes)
+            scheduler.flush(lane);
+        for (TestLane lane : lanes)
+            scheduler.awaitIdle(lane);
+        Assert.assertTrue(System.currentTimeMillis() - start < 10000);
+        for (TestLane lane : lanes) {
+            Assert.assertEquals(range(0, 10), lane.processed);
+            Assert.assertEquals(WriteBehindScheduler.IDLE, lane.state.get());
+        }
+    }
+
+    @Test
+    public void failingLaneIsRetried() throws Exception {
+        scheduler = new WriteBehindScheduler(1, 100, 1);
+        TestLane lane = new TestLane();
+        lane.add(1);
+        lane.add(Integer.MIN_VALUE);
+        lane.add(2);
+        lane.await(2);
+        Assert.assertEquals(Integer.valueOf(1), lane.processed.get(0));
+        Assert.assertEquals(Integer.valueOf(2), lane.processed.get(1));
+    }
+}
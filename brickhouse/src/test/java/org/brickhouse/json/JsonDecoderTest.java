@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2015, Matthew Lohbihler
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.json;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.brickhouse.ParseException;
+import org.brickhouse.datatype.HBinary;
+import org.brickhouse.datatype.HBoolean;
+import org.brickhouse.datatype.HCoordinates;
+import org.brickhouse.datatype.HDate;
+import org.brickhouse.datatype.HDateTime;
+import org.brickhouse.datatype.HList;
+import org.brickhouse.datatype.HMap;
+import org.brickhouse.datatype.HNumber;
+import org.brickhouse.datatype.HReference;
+import org.brickhouse.datatype.HRemove;
+import org.brickhouse.datatype.HTime;
+import org.brickhouse.datatype.HTimeZone;
+import org.brickhouse.datatype.HUri;
+import org.brickhouse.datatype.LazyHMap;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.serotonin.json.JsonContext;
+import com.serotonin.json.JsonReader;
+import com.serotonin.json.JsonWriter;
+
+public class JsonDecoderTest {
+    private static HMap sample() {
+        return new HMap() //
+                .put("id", new HReference("abc", "Abc dis")) //
+                .put("a") //
+                .put("b", "B") //
+                .put("b1", "x:looks coded") //
+                .put("b2", "quote \" back \\ slash / tab \t newline \n unicode \u00e9\u0001") //
+                .put("c", new HReference("C", "Cdis")) //
+                .put("c1", new HReference("noDis")) //
+                .put("d", new HCoordinates(1.23, -3.456)) //
+                .put("e", new HDate(2015, 2, 15)) //
+                .put("f", new HDateTime(2015, 2, 15, 18, 2, 31, HTimeZone.forName("Toronto"), 0)) //
+                .put("g", new HTime(18, 3, 31, 123)) //
+                .put("i", new HUri("http://google.ca")) //
+                .put("j", new HBinary("text/plain")) //
+                .put("l", HBoolean.FALSE) //
+                .put("l1", HBoolean.TRUE) //
+                .put("m", new HNumber(3.14)) //
+                .put("m1", new HNumber(-42)) //
+                .put("m2", new HNumber(0.00001)) //
+                .put("m3", new HNumber(123456789012345678D)) //
+                .put("n", new HNumber(3.14, "dicts")) //
+                .put("n1", HNumber.POS_INF) //
+                .put("n2", HNumber.NEG_INF) //
+                .put("n3", HNumber.NaN) //
+                .put("n4", new HNumber(-12.5, "\u00b0F")) //
+                .put("o", "!bang") //
+                .put("p", "") //
+                .put("q", HRemove.VALUE) //
+                .put("r", new HList().add("asdf").add(123).add(new HMap().put("inner"))) //
+                .put("s", new HMap().put("x", new HList()).put("y", new HMap()));
+    }
+
+    @Test
+    public void dbCompatibility() throws Exception {
+        compare(JsonUtils.dbCtx(), true);
+    }
+
+    @Test
+    public void ctxCompatibility() throws Exception {
+        compare(JsonUtils.ctx(), false);
+    }
+
+    private void compare(JsonContext ctx, boolean db) throws Exception {
+        String json = JsonWriter.writeToString(ctx, sample());
+
+        HMap expected = new JsonReader(ctx, json).read(HMap.class);
+        HMap actual = db ? JsonDecoder.readDbMap(json) : JsonDecoder.readMap(json);
+
+        Assert.assertEquals(expected, actual);
+        Assert.assertEquals(expected.getReference("c").getDis(), actual.getReference("c").getDis());
+        Assert.assertEquals(expected.getNumber("n4").getUnit(), actual.getNumber("n4").getUnit());
+
+        // The decoder keeps document order.
+        Assert.assertEquals(new ArrayList<>(sample().keySet()), new ArrayList<>(actual.keySet()));
+    }
+
+    @Test
+    public void whitespaceAndNulls() throws Exception {
+        String json = " { \"a\" : \"m:\" ,\n\"b\":null, \"c\" : [ 1 , -2.5e3 , true ] } ";
+        HMap map = JsonDecoder.readDbMap(json);
+        Assert.assertEquals(new JsonReader(JsonUtils.dbCtx(), json).read(HMap.class), map);
+        Assert.assertNull(map.get("b"));
+    }
+
+    @Test
+    public void numbers() throws Exception {
+        String[] numbers = { "0", "-0", "1", "0.1", "0.3", "123.4567", "-9999.9999", "1234567890.12345",
+                "9007199254740993", "1e300", "4.9e-324", "1.", ".5" };
+        for (String n : numbers)
+            Assert.assertEquals(n, Double.parseDouble(n), JsonDecoder.parseDouble(n, 0, n.length()), 0);
+    }
+
+    @Test
+    public void keysAreReused() {
+        List<HMap> maps = new ArrayList<>();
+        for (int i = 0; i < 2; i++)
+            maps.add(JsonDecoder.readDbMap("{\"siteRef\":\"r:" + i + "\"}"));
+        Assert.assertSame(maps.get(0).keySet().iterator().next(), maps.get(1).keySet().iterator().next());
+    }
+
+    @Test
+    public void lazy() throws Exception {
+        String json = JsonWriter.writeToString(JsonUtils.dbCtx(), sample());
+        HMap full = JsonDecoder.readDbMap(json);
+
+        LazyHMap lazy = JsonDecoder.readLazyDbMap(json);
+        Assert.assertEquals(full.getNumber("n4"), lazy.getNumber("n4"));
+        Assert.assertEquals(full.get("r"), lazy.get("r"));
+        Assert.assertTrue(lazy.has("q"));
+        Assert.assertNull(lazy.get("zz"));
+
+        HMap decoded = lazy.decode();
+        Assert.assertEquals(HMap.class, decoded.getClass());
+        Assert.assertEquals(full, decoded);
+        Assert.assertEquals(new ArrayList<>(full.keySet()), new ArrayList<>(decoded.keySet()));
+
+        // Anything other than get decodes the lot.
+        Assert.assertEquals(full, lazy);
+        Assert.assertEquals(full.size(), lazy.put("extra").size() - 1);
+
+        // Values are not checked until they are asked for.
+        LazyHMap bad = JsonDecoder.readLazyDbMap("{\"a\":\"q:what\", \"b\":[1,{\"c\":\"]\"}]}");
+        Assert.assertEquals(new HList().add(1).add(new HMap().put("c", "]")), bad.get("b"));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void badCode() {
+        JsonDecoder.readDbMap("{\"a\":\"q:what\"}");
+    }
+
+    @Test(expected = ParseException.class)
+    public void malformed() {
+        JsonDecoder.readDbMap("{\"a\":\"m:\"");
+    }
+}
@@ -0,0 +1,126 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.json;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.brickhouse.datatype.HBinary;
+import org.brickhouse.datatype.HBoolean;
+import org.brickhouse.datatype.HCoordinates;
+import org.brickhouse.datatype.HDate;
+import org.brickhouse.datatype.HDateTime;
+import org.brickhouse.datatype.HGrid;
+import org.brickhouse.datatype.HList;
+import org.brickhouse.datatype.HMap;
+import org.brickhouse.datatype.HNumber;
+import org.brickhouse.datatype.HReference;
+import org.brickhouse.datatype.HRemove;
+import org.brickhouse.datatype.HTime;
+import org.brickhouse.datatype.HTimeZone;
+import org.brickhouse.datatype.HUri;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.serotonin.json.JsonContext;
+import com.serotonin.json.JsonWriter;
+
+public class JsonEncoderTest {
+    private static HMap sample() {
+        return new HMap() //
+                .put("id", new HReference("abc", "Abc dis")) //
+                .put("a") //
+                .put("b", "B") //
+                .put("b1", "x:looks coded") //
+                .put("b2", "quote \" back \\ slash / tab \t newline \n ctl \u0001\u0085\u2001 ok \u00e9\u2100") //
+                .put("c", new HReference("C", "Cdis")) //
+                .put("c1", new HReference("noDis")) //
+                .put("d", new HCoordinates(1.23, -3.456)) //
+                .put("e", new HDate(2015, 2, 15)) //
+                .put("f", new HDateTime(2015, 2, 15, 18, 2, 31, HTimeZone.forName("Toronto"), 0)) //
+                .put("g", new HTime(18, 3, 31, 123)) //
+                .put("i", new HUri("http://google.ca")) //
+                .put("j", new HBinary("text/plain")) //
+                .put("l", HBoolean.FALSE) //
+                .put("l1", HBoolean.TRUE) //
+                .put("n", new HNumber(3.14, "dicts")) //
+                .put("n1", HNumber.POS_INF) //
+                .put("n2", HNumber.NEG_INF) //
+                .put("n3", HNumber.NaN) //
+                .put("n4", new HNumber(-12.5, "\u00b0F")) //
+                .put("o", "!bang") //
+                .put("p", "") //
+                .put("q", HRemove.VALUE) //
+                .put("r", new HList().add("asdf").add(123).add(new HMap().put("inner"))) //
+                .put("s", new HMap().put("x", new HList()).put("y", new HMap()));
+    }
+
+    private static final double[] NUMBERS = { 0, -0.0, 1, -1, 42, 3.14, 0.00005, 0.00015, 0.00025, 1.23456789,
+            -9999.99995, 1e15, 1e20, 9007199254740993D, 123456.5, Double.NaN, Double.POSITIVE_INFINITY,
+            Double.MIN_VALUE, Double.MAX_VALUE };
+
+    @Test
+    public void dbCompatibility() throws Exception {
+        compare(JsonUtils.dbCtx(), sample());
+        Assert.assertEquals(write(JsonUtils.dbCtx(), sample()), JsonEncoder.toDbJson(sample()));
+    }
+
+    @Test
+    public void ctxCompatibility() throws Exception {
+        compare(JsonUtils.ctx(), sample());
+        Assert.assertEquals(write(JsonUtils.ctx(), sample()), JsonEncoder.toJson(sample()));
+    }
+
+    @Test
+    public void numbers() throws Exception {
+        for (double d : NUMBERS) {
+            compare(JsonUtils.dbCtx(), new HMap().put("v", new HNumber(d)).put("u", new HNumber(d, "kW")));
+            compare(JsonUtils.dbCtx(), new HList().add(new HNumber(-d)).add(new HNumber(-d, "%")));
+        }
+    }
+
+    @Test
+    public void grid() throws Exception {
+        List<HMap> rows = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+            rows.add(sample().put("i", i));
+
+        for (HGrid grid : new HGrid[] { new HGrid(rows), new HGrid(new HMap().put("ver", "3.0"), rows),
+                new HGrid(new ArrayList<HMap>()) }) {
+            StringWriter out = new StringWriter();
+            JsonEncoder.write(grid, false, out);
+            Assert.assertEquals(write(JsonUtils.ctx(), grid), out.toString());
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            JsonEncoder.write(grid, true, bytes);
+            Assert.assertEquals(write(JsonUtils.dbCtx(), grid),
+                    new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void roundTrip() {
+        HMap map = sample();
+        Assert.assertEquals(map, JsonDecoder.readMap(JsonEncoder.toJson(map)));
+    }
+
+    private static void compare(JsonContext ctx, Object value) throws Exception {
+        StringBuilder sb = new StringBuilder("prefix");
+        JsonEncoder.write((org.brickhouse.datatype.HValue) value, ctx == JsonUtils.dbCtx(), sb);
+        Assert.assertEquals("prefix" + write(ctx, value), sb.toString());
+    }
+
+    private static String write(JsonContext ctx, Object value) throws Exception {
+        StringWriter out = new StringWriter();
+        new JsonWriter(ctx, out).writeObject(value);
+        return out.toString();
+    }
+}
@@ -0,0 +1,97 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.brickhouse.json;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.brickhouse.ParseException;
+import org.brickhouse.datatype.HGrid;
+import org.brickhouse.datatype.HList;
+import org.brickhouse.datatype.HMap;
+import org.brickhouse.datatype.HNumber;
+import org.brickhouse.datatype.HReference;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class JsonGridTest {
+    private static HGrid sample(int count) {
+        List<HMap> rows = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            rows.add(new HMap() //
+                    .put("id", new HReference("r" + i, "Row " + i)) //
+                    .put("dis", "braces { [ \" } ] and \\ escapes " + i) //
+                    .put("point") //
+                    .put("val", new HNumber(i * 1.5, "kW")) //
+                    .put("list", new HList().add(i).add(new HMap().put("inner"))));
+        }
+        return new HGrid(new HMap().put("src", "test"), rows);
+    }
+
+    @Test
+    public void writeTest() throws Exception {
+        HGrid grid = sample(2000);
+        for (boolean db : new boolean[] { false, true }) {
+            StringWriter expected = new StringWriter();
+            JsonEncoder.write(grid, db, expected);
+
+            StringWriter out = new StringWriter();
+            new JsonGridWriter(out, db).writeGrid(grid);
+            Assert.assertEquals(expected.toString(), out.toString());
+        }
+    }
+
+    @Test
+    public void readTest() throws Exception {
+        HGrid grid = sample(2000);
+        StringWriter out = new StringWriter();
+        new JsonGridWriter(out, false).writeGrid(grid);
+        String json = out.toString();
+
+        Assert.assertEquals(grid, new JsonGridReader(new StringReader(json), false).readGrid());
+
+        final List<HMap> metas = new ArrayList<>();
+        final List<HMap> rows = new ArrayList<>();
+        Assert.assertEquals(2000, new JsonGridReader(new StringReader(json), false).readGrid(metas::add, rows::add));
+        Assert.assertEquals(grid.getMeta(), metas.get(0));
+        Assert.assertEquals(grid.getRows(), rows);
+    }
+
+    @Test
+    public void layoutTest() {
+        String json = " { \"cols\" : [ {\"name\":\"a\"}, 3, true ] , \"rows\" : [ {\"a\":\"s:x\"} , null ] ,"
+                + " \"other\":-1.5e3, \"meta\":{\"m\":\"m:\"} } ";
+        HGrid grid = new JsonGridReader(new StringReader(json), false).readGrid();
+        Assert.assertEquals(new HMap().put("m"), grid.getMeta());
+        Assert.assertEquals(2, grid.getRows().size());
+        Assert.assertEquals("x", grid.getRows().get(0).getString("a"));
+        Assert.assertTrue(grid.getRows().get(1).isEmpty());
+
+        Assert.assertEquals(new HGrid(), new JsonGridReader(new StringReader("{}"), false).readGrid());
+
+        try {
+            new JsonGridReader(new StringReader(json), false).readGrid(null, row -> {
+                // Nothing
+            });
+            Assert.fail();
+        }
+        catch (ParseException e) {
+            Assert.assertTrue(e.getMessage().startsWith("The grid meta must come before the rows"));
+        }
+
+        try {
+            new JsonGridReader(new StringReader("{\"rows\":[{\"a\":1}"), false).readGrid();
+            Assert.fail();
+        }
+        catch (ParseException e) {
+            Assert.assertTrue(e.getMessage().startsWith("Unexpected end of input"));
+        }
+    }
+}
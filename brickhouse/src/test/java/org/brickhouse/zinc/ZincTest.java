@@ -7,9 +7,12 @@
  */
 package org.brickhouse.zinc;
 
+import java.io.StringReader;
 import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.List;
 
+import org.brickhouse.ParseException;
 import org.brickhouse.datatype.HBinary;
 import org.brickhouse.datatype.HBoolean;
 import org.brickhouse.datatype.HCoordinates;
@@ -24,6 +27,7 @@ import org.brickhouse.datatype.HRemove;
 import org.brickhouse.datatype.HTime;
 import org.brickhouse.datatype.HTimeZone;
 import org.brickhouse.datatype.HUri;
+import org.brickhouse.io.RowBatcher;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -151,6 +155,113 @@ public class ZincTest {
         Assert.assertEquals(grid, in);
     }
 
+    @Test
+    public void numbersTest() throws Exception {
+        String[] numbers = { "0", "-0", "12.5", "1_000.25", "-3.75", "123456789012345678", "0.1234567890123456789",
+                "1.5e-3", "2.5E10" };
+        for (String n : numbers) {
+            HNumber num = (HNumber) new ZincReader(n).readScalar();
+            Assert.assertEquals(n, Double.parseDouble(n.replace("_", "")), num.getValue(), 0);
+        }
+        Assert.assertEquals(new HNumber(72.5, "\u00b0F"), new ZincReader("72.5\u00b0F").readScalar());
+    }
+
+    @Test
+    public void readerWindowTest() throws Exception {
+        StringBuilder sb = new StringBuilder("ver:\"2.0\"\nid,dis,val\n");
+        for (int i = 0; i < 2000; i++)
+            sb.append("@r").append(i).append(",\"Row ").append(i).append("\",").append(i).append(".5kW\n");
+        String zinc = sb.toString();
+
+        // The reader's window is refilled many times, with values split across the refills.
+        HGrid fromReader = new ZincReader(new StringReader(zinc)).readGrid();
+        Assert.assertEquals(new ZincReader(zinc).readGrid(), fromReader);
+        Assert.assertEquals(2000, fromReader.getRows().size());
+        Assert.assertEquals(new HNumber(1999.5, "kW"), fromReader.getRows().get(1999).get("val"));
+        Assert.assertSame(fromReader.getRows().get(0).getNumber("val").getUnit(),
+                fromReader.getRows().get(1).getNumber("val").getUnit());
+    }
+
+    @Test
+    public void errorLineTest() throws Exception {
+        try {
+            new ZincReader(new StringReader("ver:\"2.0\"\na,b\n1,2\n3 4\n")).readGrid();
+            Assert.fail();
+        }
+        catch (ParseException e) {
+            Assert.assertEquals("Expecting comma in row (char=0x34 '4') [Line 4]", e.getMessage());
+        }
+    }
+
+    @Test
+    public void streamingTest() throws Exception {
+        StringBuilder sb = new StringBuilder("ver:\"2.0\" src:\"import\"\nid,dis,val\n");
+        for (int i = 0; i < 25; i++)
+            sb.append("@r").append(i).append(",\"Row ").append(i).append("\",").append(i == 3 ? "" : i).append('\n');
+        String zinc = sb.toString();
+
+        final List<HMap> metas = new ArrayList<>();
+        final List<List<HMap>> batches = new ArrayList<>();
+        RowBatcher batcher = new RowBatcher(10, rows -> {
+            Assert.assertEquals(1, metas.size());
+            batches.add(rows);
+        });
+        int count = new ZincReader(new StringReader(zinc)).readGrid(metas::add, batcher);
+        batcher.flush();
+
+        Assert.assertEquals(25, count);
+        Assert.assertEquals(25, batcher.getCount());
+        Assert.assertEquals("import", metas.get(0).getString("src"));
+        Assert.assertEquals(3, batches.size());
+        Assert.assertEquals(5, batches.get(2).size());
+
+        List<HMap> rows = new ArrayList<>();
+        for (List<HMap> batch : batches)
+            rows.addAll(batch);
+        Assert.assertEquals(new ZincReader(zinc).readGrid().getRows(), rows);
+        Assert.assertFalse(rows.get(3).has("val"));
+
+        // Empty grids have no columns, so their rows have no tags.
+        Assert.assertEquals(1, new ZincReader("ver:\"2.0\"\nempty\nN\n").readGrid(null, row -> {
+            Assert.assertTrue(row.isEmpty());
+        }));
+    }
+
+    @Test
+    public void streamingWriterTest() throws Exception {
+        List<HMap> rows = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            HMap row = new HMap().put("id", new HReference("r" + i)).put("val", new HNumber(i * 1.5, "kW"));
+            if (i == 15)
+                row.put("late", "tag \"quoted\"");
+            rows.add(row);
+        }
+        HGrid grid = new HGrid(new HMap().put("src", "export"), rows);
+
+        // Declared columns
+        StringWriter out = new StringWriter();
+        ZincRowWriter writer = new ZincRowWriter(new ZincWriter(out), grid.getMeta(),
+                CollectionUtils.toList("id", "val", "late"));
+        for (HMap row : rows)
+            writer.accept(row);
+        Assert.assertEquals(20, writer.finish());
+        Assert.assertEquals(grid, stringToGrid(out.toString()));
+
+        // Columns taken from the rows, with the late column found in the spilled rows.
+        out = new StringWriter();
+        writer = new ZincRowWriter(new ZincWriter(out), grid.getMeta(), 5);
+        for (HMap row : rows)
+            writer.accept(row);
+        Assert.assertEquals(20, writer.finish());
+        Assert.assertTrue(out.toString().startsWith("ver:\"2.0\" src:\"export\"\nid,val,late\n"));
+        Assert.assertEquals(grid, stringToGrid(out.toString()));
+
+        // No rows
+        out = new StringWriter();
+        Assert.assertEquals(0, new ZincRowWriter(new ZincWriter(out), null, 5).finish());
+        Assert.assertEquals(new HGrid(), stringToGrid(out.toString()));
+    }
+
     private String gridToString(HGrid grid) {
         StringWriter out = new StringWriter();
         ZincWriter writer = new ZincWriter(out);
@@ -0,0 +1,136 @@
+package org.springframework.jdbc.core;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.brickhouse.datatype.HMap;
+import org.brickhouse.datatype.HReference;
+import org.brickhouse.impl.FakeDatabase;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.DataAccessException;
+
+public class JdbcTemplateTest {
+	private FakeDatabase db;
+	private JdbcTemplate jt;
+
+	@Before
+	public void before() {
+		db = new FakeDatabase();
+		for (int i = 0; i < 3; i++)
+			db.put(new HMap().put("id", new HReference("r" + i)).put("n", i));
+		jt = new JdbcTemplate(db.getDataSource());
+	}
+
+	private List<String> stream() {
+		List<String> records = new ArrayList<>();
+		jt.queryStreaming("SELECT json FROM points", rs -> records.add(rs.getString(1)));
+		return records;
+	}
+
+	@Test
+	public void streamsWithFetchSizeInTransaction() {
+		jt.setFetchSize(100);
+		jt.setFetchInTransaction(true);
+		Assert.assertEquals(3, stream().size());
+		Assert.assertEquals("[CONNECT, AUTOCOMMIT false, FETCH SIZE 100, SELECT json FROM points, COMMIT, AUTOCOMMIT true]",
+				db.getLog().toString());
+	}
+
+	@Test
+	public void streamsWithFetchSizeOnly() {
+		jt.setFetchSize(Integer.MIN_VALUE);
+		Assert.assertEquals(3, stream().size());
+		Assert.assertEquals("[CONNECT, FETCH SIZE -2147483648, SELECT json FROM points]", db.getLog().toString());
+	}
+
+	@Test
+	public void noFetchSizeFallsBackToQuery() {
+		jt.setFetchInTransaction(true);
+		Assert.assertEquals(3, stream().size());
+		Assert.assertEquals("[CONNECT, SELECT json FROM points]", db.getLog().toString());
+	}
+
+	@Test
+	public void callbackFailureRollsBack() {
+		jt.setFetchSize(100);
+		jt.setFetchInTransaction(true);
+		IllegalStateException stop = new IllegalStateException("stop");
+		try {
+			jt.queryStreaming("SELECT json FROM points", rs -> {
+				throw stop;
+			});
+			Assert.fail();
+		}
+		catch (IllegalStateException e) {
+			Assert.assertSame(stop, e);
+			Assert.assertEquals(0, e.getSuppressed().length);
+		}
+		List<String> log = db.getLog();
+		Assert.assertTrue(log.contains("ROLLBACK"));
+		Assert.assertFalse(log.contains("COMMIT"));
+		Assert.assertEquals("AUTOCOMMIT true", log.get(log.size() - 1));
+	}
+
+	@Test
+	public void failingRollbackIsSuppressed() {
+		jt.setFetchSize(100);
+		jt.setFetchInTransaction(true);
+		db.setFailure((sql, params) -> sql.equals("ROLLBACK") ? new SQLException("rollback failed") : null);
+		IllegalStateException stop = new IllegalStateException("stop");
+		try {
+			jt.queryStreaming("SELECT json FROM points", rs -> {
+				throw stop;
+			});
+			Assert.fail();
+		}
+		catch (IllegalStateException e) {
+			Assert.assertSame(stop, e);
+			Assert.assertEquals(1, e.getSuppressed().length);
+			Assert.assertEquals("rollback failed", e.getSuppressed()[0].getMessage());
+		}
+		List<String> log = db.getLog();
+		Assert.assertEquals("AUTOCOMMIT true", log.get(log.size() - 1));
+	}
+
+	@Test
+	public void failingResetIsSuppressedByReadFailure() {
+		jt.setFetchSize(100);
+		jt.setFetchInTransaction(true);
+		db.setFailure((sql, params) -> {
+			if (sql.startsWith("SELECT"))
+				return new SQLException("read failed");
+			if (sql.equals("AUTOCOMMIT true"))
+				return new SQLException("reset failed");
+			return null;
+		});
+		try {
+			stream();
+			Assert.fail();
+		}
+		catch (DataAccessException e) {
+			Assert.assertEquals("read failed", e.getCause().getMessage());
+			Assert.assertEquals(1, e.getCause().getSuppressed().length);
+			Assert.assertEquals("reset failed", e.getCause().getSuppressed()[0].getMessage());
+		}
+		Assert.assertTrue(db.getLog().contains("ROLLBACK"));
+	}
+
+	@Test
+	public void failingCommitIsThrown() {
+		jt.setFetchSize(100);
+		jt.setFetchInTransaction(true);
+		db.setFailure((sql, params) -> sql.equals("COMMIT") ? new SQLException("commit failed") : null);
+		try {
+			stream();
+			Assert.fail();
+		}
+		catch (DataAccessException e) {
+			Assert.assertEquals("commit failed", e.getCause().getMessage());
+		}
+		List<String> log = db.getLog();
+		Assert.assertEquals("AUTOCOMMIT true", log.get(log.size() - 1));
+	}
+}
@@ -0,0 +1,121 @@
+package org.springframework.jdbc.core;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.brickhouse.datatype.HMap;
+import org.brickhouse.datatype.HReference;
+import org.brickhouse.impl.FakeDatabase;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StatementCacheStatsTest {
+	private FakeDatabase db;
+	private Connection con1;
+	private Connection con2;
+
+	@Before
+	public void before() throws SQLException {
+		db = new FakeDatabase();
+		con1 = db.getDataSource().getConnection();
+		con2 = db.getDataSource().getConnection();
+	}
+
+	private static void assertCounts(StatementCacheStats stats, long hits, long misses) {
+		Assert.assertEquals(hits, stats.getHits());
+		Assert.assertEquals(misses, stats.getMisses());
+	}
+
+	@Test
+	public void repeatedSqlIsAHit() {
+		StatementCacheStats stats = new StatementCacheStats(10, con -> con);
+		Assert.assertEquals(0, stats.getHitRate(), 0);
+
+		stats.prepared(con1, "a");
+		stats.prepared(con1, "b");
+		stats.prepared(con1, "a");
+		stats.prepared(con1, "a");
+		assertCounts(stats, 2, 2);
+		Assert.assertEquals(0.5, stats.getHitRate(), 0);
+	}
+
+	@Test
+	public void statementsArePooledPerConnection() {
+		StatementCacheStats stats = new StatementCacheStats(10, con -> con);
+		stats.prepared(con1, "a");
+		stats.prepared(con2, "a");
+		assertCounts(stats, 0, 2);
+		stats.prepared(con2, "a");
+		stats.prepared(con1, "a");
+		assertCounts(stats, 2, 2);
+	}
+
+	@Test
+	public void wrappedConnectionsShareTheirPhysicalConnection() {
+		Object physical = new Object();
+		StatementCacheStats stats = new StatementCacheStats(10, con -> physical);
+		stats.prepared(con1, "a");
+		stats.prepared(con2, "a");
+		assertCounts(stats, 1, 1);
+	}
+
+	@Test
+	public void leastRecentlyUsedIsEvicted() {
+		StatementCacheStats stats = new StatementCacheStats(2, con -> con);
+		stats.prepared(con1, "a");
+		stats.prepared(con1, "b");
+		// Using a makes b the eldest, so c evicts b.
+		stats.prepared(con1, "a");
+		stats.prepared(con1, "c");
+		assertCounts(stats, 1, 3);
+
+		stats.prepared(con1, "a");
+		stats.prepared(con1, "c");
+		assertCounts(stats, 3, 3);
+		stats.prepared(con1, "b");
+		assertCounts(stats, 3, 4);
+	}
+
+	@Test
+	public void negativeLimitIsUnbounded() {
+		StatementCacheStats stats = new StatementCacheStats(-1, con -> con);
+		for (int i = 0; i < 1000; i++)
+			stats.prepared(con1, "sql" + i);
+		for (int i = 0; i < 1000; i++)
+			stats.prepared(con1, "sql" + i);
+		assertCounts(stats, 1000, 1000);
+	}
+
+	@Test
+	public void reset() {
+		StatementCacheStats stats = new StatementCacheStats(10, con -> con);
+		stats.prepared(con1, "a");
+		stats.prepared(con1, "a");
+		stats.reset();
+		assertCounts(stats, 0, 0);
+
+		// The pool itself is not reset.
+		stats.prepared(con1, "a");
+		assertCounts(stats, 1, 0);
+	}
+
+	@Test
+	public void templateReportsPrepares() {
+		db.put(new HMap().put("id", new HReference("a")).put("n", 1));
+		JdbcTemplate jt = new JdbcTemplate(db.getDataSource());
+		Object physical = new Object();
+		StatementCacheStats stats = new StatementCacheStats(10, con -> physical);
+		jt.setStatementCacheStats(stats);
+
+		jt.update("DELETE FROM points WHERE id=?", "x");
+		jt.update("DELETE FROM points WHERE id=?", "y");
+		jt.setFetchSize(100);
+		jt.queryStreaming("SELECT json FROM points", rs -> {
+		});
+		jt.queryStreaming("SELECT json FROM points", rs -> {
+		});
+		assertCounts(stats, 2, 2);
+		Assert.assertSame(stats, jt.getStatementCacheStats());
+	}
+}
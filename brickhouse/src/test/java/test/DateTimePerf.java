@@ -0,0 +1,93 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package test;
+
+import java.util.Random;
+
+import org.brickhouse.datatype.HDateTime;
+import org.brickhouse.datatype.HMap;
+import org.brickhouse.datatype.HTimeZone;
+import org.brickhouse.filter.Filter;
+
+import com.serotonin.util.ExecutionTimerNano;
+
+/**
+ * Times constructing, formatting, parsing and comparing date times.
+ */
+public class DateTimePerf {
+    static final Random RANDOM = new Random(0);
+
+    static final String[] zones = { "UTC", "New_York", "Los_Angeles", "London", "Berlin", "Tokyo", "Sydney" };
+
+    public static void main(String[] args) {
+        long[] millis = new long[100000];
+        HTimeZone[] tzs = new HTimeZone[millis.length];
+        for (int i = 0; i < millis.length; i++) {
+            millis[i] = 1000000000000L + (long) (RANDOM.nextDouble() * 1000000000000L);
+            tzs[i] = HTimeZone.forName(zones[RANDOM.nextInt(zones.length)]);
+        }
+
+        // Warm up
+        run(millis, tzs, new ExecutionTimerNano(), 10);
+
+        ExecutionTimerNano timer = new ExecutionTimerNano();
+        run(millis, tzs, timer, 30);
+        System.out.println(timer);
+    }
+
+    static void run(long[] millis, HTimeZone[] tzs, ExecutionTimerNano timer, int iterations) {
+        HDateTime[] dts = new HDateTime[millis.length];
+        HDateTime[] local = new HDateTime[millis.length];
+        String[] strings = new String[millis.length];
+        HMap[] rows = new HMap[millis.length];
+        StringBuilder sb = new StringBuilder();
+        Filter filter = Filter.parse("ts < " + new HDateTime(1500000000000L, HTimeZone.UTC));
+        int sink = 0;
+
+        for (int i = 0; i < iterations; i++) {
+            timer.start();
+            for (int j = 0; j < millis.length; j++)
+                dts[j] = new HDateTime(millis[j], tzs[j]);
+            timer.mark("from millis");
+
+            for (int j = 0; j < millis.length; j++)
+                local[j] = new HDateTime(dts[j].getDate(), dts[j].getTime(), tzs[j]);
+            timer.mark("from local");
+
+            for (int j = 0; j < millis.length; j++)
+                strings[j] = dts[j].toString();
+            timer.mark("toString");
+
+            for (int j = 0; j < millis.length; j++) {
+                sb.setLength(0);
+                dts[j].appendTo(sb);
+            }
+            timer.mark("appendTo");
+
+            for (int j = 0; j < millis.length; j++)
+                dts[j] = HDateTime.parse(strings[j]);
+            timer.mark("parse");
+
+            for (int j = 1; j < millis.length; j++)
+                sink += dts[j].compareTo(local[j - 1]);
+            timer.mark("compareTo");
+
+            for (int j = 0; j < millis.length; j++)
+                rows[j] = new HMap().put("ts", dts[j]);
+            timer.mark("rows");
+
+            for (int j = 0; j < millis.length; j++) {
+                if (filter.include(rows[j], null))
+                    sink++;
+            }
+            timer.mark("filter");
+        }
+        if (sink == 42)
+            System.out.println();
+    }
+}
@@ -0,0 +1,85 @@
+/* 
+ * Copyright (c) 2015, Matthew Lohbihler
+ * 
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package test;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.brickhouse.binary.BinaryGridReader;
+import org.brickhouse.binary.BinaryGridWriter;
+import org.brickhouse.datatype.HDateTime;
+import org.brickhouse.datatype.HGrid;
+import org.brickhouse.datatype.HMap;
+import org.brickhouse.datatype.HNumber;
+import org.brickhouse.datatype.HReference;
+import org.brickhouse.datatype.HTimeZone;
+import org.brickhouse.zinc.ZincReader;
+import org.brickhouse.zinc.ZincWriter;
+
+import com.serotonin.util.ExecutionTimerNano;
+
+/**
+ * Compares writing and reading grids as Zinc and in the binary grid format.
+ */
+public class GridCodecPerf {
+    static final Random RANDOM = new Random(0);
+
+    static final String[] markers = { "point", "sensor", "cmd", "sp", "air", "temp", "zone", "discharge", "elec",
+            "power", "his" };
+
+    public static void main(String[] args) {
+        HGrid grid = generate(10000);
+
+        // Warm up
+        run(grid, new ExecutionTimerNano(), 20);
+
+        ExecutionTimerNano timer = new ExecutionTimerNano();
+        run(grid, timer, 50);
+        System.out.println(timer);
+
+        System.out.println("Zinc size: " + ZincWriter.gridToString(grid).length());
+        System.out.println("Binary size: " + BinaryGridWriter.gridToBytes(grid).length);
+    }
+
+    static HGrid generate(int count) {
+        HTimeZone tz = HTimeZone.forName("New_York");
+        List<HMap> rows = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            HMap row = new HMap();
+            row.put("id", new HReference("p" + i, "Point " + i));
+            row.put("dis", "Floor " + i % 10 + " Zone " + i % 37);
+            for (String marker : markers) {
+                if (RANDOM.nextInt(3) > 0)
+                    row.put(marker);
+            }
+            row.put("curVal", new HNumber(RANDOM.nextDouble() * 100, "kW"));
+            row.put("ts", new HDateTime(1430000000000L + i * 60000L, tz));
+            if (RANDOM.nextInt(20) == 0)
+                row.put("note", "Checked on site");
+            rows.add(row);
+        }
+        return new HGrid(rows);
+    }
+
+    static void run(HGrid grid, ExecutionTimerNano timer, int iterations) {
+        for (int i = 0; i < iterations; i++) {
+            timer.start();
+            String zinc = ZincWriter.gridToString(grid);
+            timer.mark("zinc write");
+            new ZincReader(zinc).readGrid();
+            timer.mark("zinc read");
+
+            byte[] binary = BinaryGridWriter.gridToBytes(grid);
+            timer.mark("binary write");
+            new BinaryGridReader(new ByteArrayInputStream(binary)).readGrid();
+            timer.mark("binary read");
+        }
+    }
+}